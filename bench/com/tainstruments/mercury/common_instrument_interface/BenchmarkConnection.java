@@ -0,0 +1,72 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import java.io.IOException;
+
+
+/**
+ *  A CiiClient logged in to a CiiSimulator on loopback, for the benchmarks
+ *  that need a connected client. The simulator is told to ignore every
+ *  command, so the only answers the client sees are the ones the
+ *  benchmark routes to it itself.
+ *
+ *  Package visibility
+ */
+class BenchmarkConnection {
+
+    private final CiiSimulator simulator;
+    private final CiiClient client;
+
+
+    BenchmarkConnection() throws IOException {
+
+        simulator = new CiiSimulator(0);
+        simulator.setDropProbability(1.0);
+        simulator.start();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+        configuration.setCommandTimeout(0);
+
+        client = new CiiClient("127.0.0.1", configuration);
+
+        if (!client.connect(client.AccessLevel_Master)) {
+            simulator.stop();
+            throw new IOException("Couldn't log in to the simulator on " + simulator.getPort());
+        }
+    }
+
+
+    CiiClient getClient() {
+        return client;
+    }
+
+
+    void close() {
+        client.disconnect();
+        simulator.stop();
+    }
+
+
+    /**
+     *  An answer that nothing waits on.
+     */
+    static class NullCompletion implements CommandCompletion {
+
+        @Override
+        public void receiveAck() {
+        }
+
+        @Override
+        public void receiveNak(int errorCode) {
+        }
+
+        @Override
+        public void receiveResponse(int subcommand, int statusCode, byte[] data, int startingOffset, int dataLength) {
+        }
+
+        @Override
+        public void saveSequenceNumber(int sequenceNumber) {
+        }
+    }
+}
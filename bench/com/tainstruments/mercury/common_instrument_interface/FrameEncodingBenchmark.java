@@ -0,0 +1,104 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  The send side of a command. encode is the frame CiiClient.sendMessage()
+ *  builds, on its own. sendGet is the whole of sendMessage(), a sequence
+ *  number, the frame, the in flight slot and the write to the socket,
+ *  with its ACK and RSP routed straight back so the slot is free again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodingBenchmark {
+
+    private final int MtGetCommand = 0x20544547;      /* "GET " */
+    private final int MtAck = 0x204B4341;             /* "ACK " */
+    private final int MtResponse = 0x20505352;        /* "RSP " */
+
+    @Param({"0", "64", "1024"})
+    public int dataLength;
+
+    private byte[] type;
+    private byte[] data;
+    private int sequenceNumber;
+
+    private BenchmarkConnection connection;
+    private CiiClient client;
+    private byte[] ack;
+    private byte[] response;
+    private CommandCompletion completion;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        type = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(MtGetCommand).array();
+        data = new byte[dataLength];
+
+        connection = new BenchmarkConnection();
+        client = connection.getClient();
+
+        ack = new byte[8];
+        response = new byte[16];
+        ByteBuffer.wrap(ack).order(ByteOrder.LITTLE_ENDIAN).putInt(MtAck);
+        ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN).putInt(MtResponse);
+
+        //
+        //  Remembers the sequence number sendGet() hands out.
+        //
+        completion = new BenchmarkConnection.NullCompletion() {
+            @Override
+            public void saveSequenceNumber(int sequenceNumber) {
+                FrameEncodingBenchmark.this.sequenceNumber = sequenceNumber;
+            }
+        };
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+
+    @Benchmark
+    public byte[] encode() {
+        return FrameEncoder.encodeCommand(type, ++sequenceNumber, 0x1234, data);
+    }
+
+
+    @Benchmark
+    public boolean sendGet() {
+
+        boolean sent = client.sendGet(0x1234, data, completion, 0);
+
+        ByteBuffer.wrap(ack).order(ByteOrder.LITTLE_ENDIAN).putInt(4, sequenceNumber);
+        ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN).putInt(4, sequenceNumber);
+        client.routeReceivedMessage(ack, ack.length);
+        client.routeReceivedMessage(response, response.length);
+
+        return sent;
+    }
+}
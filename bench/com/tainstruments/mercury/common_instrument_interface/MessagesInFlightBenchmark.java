@@ -0,0 +1,77 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  One command's whole life in the in flight ring, reserve, add, get and
+ *  remove, with 1 to 64 threads sharing the one ring the way senders and
+ *  the reader thread do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagesInFlightBenchmark {
+
+    private MessagesInFlight messagesInFlight;
+    private CommandCompletion completion;
+
+
+    @Setup
+    public void setUp() {
+        messagesInFlight = new MessagesInFlight(1024);
+        completion = new BenchmarkConnection.NullCompletion();
+    }
+
+
+    @Benchmark
+    @Threads(1)
+    public MessageTracker threads01() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MessageTracker threads04() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public MessageTracker threads16() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public MessageTracker threads64() {
+        return cycle();
+    }
+
+
+    private MessageTracker cycle() {
+
+        int sequenceNumber = messagesInFlight.getSequenceNumber();
+        messagesInFlight.add(sequenceNumber, completion);
+
+        MessageTracker tracker = messagesInFlight.get(sequenceNumber);
+
+        messagesInFlight.remove(sequenceNumber);
+
+        return tracker;
+    }
+}
@@ -0,0 +1,74 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.common_messages.RealTimeSignals;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  A real time signals STAT routed to RealTimeSignals and decoded into
+ *  its floats, for 8 to 4096 signals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RealTimeSignalsBenchmark {
+
+    private final int MtStatus = 0x54415453;          /* "STAT" */
+    private final int RealTimeSignalsSubstatus = 0x20002;
+
+    @Param({"8", "64", "512", "4096"})
+    public int signalCount;
+
+    private BenchmarkConnection connection;
+    private CiiClient client;
+    private RealTimeSignals realTimeSignals;
+    private byte[] status;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        connection = new BenchmarkConnection();
+        client = connection.getClient();
+        realTimeSignals = new RealTimeSignals(client);
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + 4 * signalCount).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MtStatus);
+        bb.putInt(RealTimeSignalsSubstatus);
+        for (int i = 0; i < signalCount; i++) {
+            bb.putFloat(i * 0.5f);
+        }
+        status = bb.array();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+
+    @Benchmark
+    public void decode() {
+        client.routeReceivedMessage(status, status.length);
+    }
+}
@@ -0,0 +1,139 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  routeReceivedMessage() for each message type the server sends. The
+ *  ACK, RSP and NAK cases put a command in flight by hand first, there
+ *  has to be one for them to find, but send nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteReceivedMessageBenchmark {
+
+    private final int MtAccept = 0x54504341;          /* "ACPT" */
+    private final int MtAck = 0x204B4341;             /* "ACK " */
+    private final int MtNak = 0x204B414E;             /* "NAK " */
+    private final int MtResponse = 0x20505352;        /* "RSP " */
+    private final int MtStatus = 0x54415453;          /* "STAT" */
+
+    private final int HandledSubstatus = 0x20100;
+    private final int UnhandledSubstatus = 0x20101;
+
+    private BenchmarkConnection connection;
+    private CiiClient client;
+    private MessagesInFlight messagesInFlight;
+    private CommandCompletion completion;
+
+    private byte[] accept;
+    private byte[] ack;
+    private byte[] nak;
+    private byte[] response;
+    private byte[] status;
+    private byte[] unhandledStatus;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        connection = new BenchmarkConnection();
+        client = connection.getClient();
+        messagesInFlight = client.getMessagesInFlight();
+        completion = new BenchmarkConnection.NullCompletion();
+
+        client.registerStatusHandler(HandledSubstatus, new ReceiveStatusHandler() {
+            @Override
+            public void receiveStatus(int substatus, byte[] buffer, int startingOffset, int dataLength) {
+            }
+        });
+
+        accept = message(20, MtAccept, client.AccessLevel_Master);
+        ack = message(8, MtAck, 0);
+        nak = message(12, MtNak, 0, 1);
+        response = message(80, MtResponse, 0, 0x1234, 0);
+        status = message(72, MtStatus, HandledSubstatus);
+        unhandledStatus = message(72, MtStatus, UnhandledSubstatus);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+
+    @Benchmark
+    public void accept() {
+        client.routeReceivedMessage(accept, accept.length);
+    }
+
+
+    @Benchmark
+    public void ackResponse() {
+        int sequenceNumber = putInFlight();
+        setSequenceNumber(ack, sequenceNumber);
+        setSequenceNumber(response, sequenceNumber);
+        client.routeReceivedMessage(ack, ack.length);
+        client.routeReceivedMessage(response, response.length);
+    }
+
+
+    @Benchmark
+    public void nak() {
+        setSequenceNumber(nak, putInFlight());
+        client.routeReceivedMessage(nak, nak.length);
+    }
+
+
+    @Benchmark
+    public void status() {
+        client.routeReceivedMessage(status, status.length);
+    }
+
+
+    @Benchmark
+    public void unhandledStatus() {
+        client.routeReceivedMessage(unhandledStatus, unhandledStatus.length);
+    }
+
+
+    private int putInFlight() {
+        int sequenceNumber = messagesInFlight.getSequenceNumber();
+        messagesInFlight.add(sequenceNumber, completion);
+        return sequenceNumber;
+    }
+
+
+    private static void setSequenceNumber(byte[] message, int sequenceNumber) {
+        ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).putInt(4, sequenceNumber);
+    }
+
+
+    private static byte[] message(int length, int... values) {
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int value : values) {
+            bb.putInt(value);
+        }
+        return bb.array();
+    }
+}
@@ -0,0 +1,4 @@
+package com.tainstruments.mercury.common_instrument_interface.jmh_generated;
+public class FrameEncodingBenchmark_jmhType extends FrameEncodingBenchmark_jmhType_B3 {
+}
+
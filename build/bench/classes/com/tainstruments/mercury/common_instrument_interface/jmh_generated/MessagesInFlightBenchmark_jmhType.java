@@ -0,0 +1,4 @@
+package com.tainstruments.mercury.common_instrument_interface.jmh_generated;
+public class MessagesInFlightBenchmark_jmhType extends MessagesInFlightBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.tainstruments.mercury.common_instrument_interface.jmh_generated;
+public class RealTimeSignalsBenchmark_jmhType extends RealTimeSignalsBenchmark_jmhType_B3 {
+}
+
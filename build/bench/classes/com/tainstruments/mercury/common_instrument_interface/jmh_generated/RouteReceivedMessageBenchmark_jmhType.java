@@ -0,0 +1,4 @@
+package com.tainstruments.mercury.common_instrument_interface.jmh_generated;
+public class RouteReceivedMessageBenchmark_jmhType extends RouteReceivedMessageBenchmark_jmhType_B3 {
+}
+
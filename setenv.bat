@@ -4,7 +4,7 @@
 ::  These may need to be adjusted on your system.
 ::
 SET _ANT_BIN="C:\Program Files\NetBeans 8.0.2\extide\ant\bin"
-SET _JDK_DIR="C:\Program Files\Java\jdk1.7.0_79\bin"
+SET _JDK_DIR="C:\Program Files\Java\jdk1.8.0_65\bin"
 
 SET PATH=%_ANT_BIN%;%_JDK_DIR%;%PATH%
 
@@ -31,28 +31,19 @@ public class ActionMessage extends CommandMessage {
 
         boolean sendSuccess;
 
-        synchronized(sync){
+        syncLock.lock();
+        try {
 
             resetCompleted();
 
-            sendSuccess = ciiClient.sendAction(subStatus, data, this);
+            sendSuccess = ciiClient.sendAction(subStatus, data, this, timeoutInMs);
             if (!sendSuccess){
                 return false;
             }
 
-            try {
-                sync.wait(timeoutInMs);
-            } catch (InterruptedException ex) {
-                System.out.println("Failed waiting - exception " + ex);
-                return false;
-            }
-
-            if (!isCompleted()){
-                return false;
-            }
-            else{
-                return errorCode == 0;
-            }
+            return awaitCompletion(timeoutInMs);
+        } finally {
+            syncLock.unlock();
         }
     }
 
@@ -64,9 +55,12 @@ public class ActionMessage extends CommandMessage {
     }
 
     public boolean send(byte [] data) {
-        synchronized(sync){
+        syncLock.lock();
+        try {
             resetCompleted();
-            return ciiClient.sendAction(subStatus, data, this);
+            return ciiClient.sendAction(subStatus, data, this, DEFAULT_TIMEOUT_IN_MS);
+        } finally {
+            syncLock.unlock();
         }
     }
 
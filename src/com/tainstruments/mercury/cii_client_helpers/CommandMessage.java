@@ -1,24 +1,107 @@
 package com.tainstruments.mercury.cii_client_helpers;
 
 import com.tainstruments.mercury.common_instrument_interface.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * Base for the helper messages. The synchronous calls wait on a lock and
+ * condition rather than synchronized / wait(), so a virtual thread
+ * waiting on one gives its carrier thread back.
+ */
 public class CommandMessage implements CommandCompletion {
 
     protected final CiiClient ciiClient;
     protected final int subStatus;
     protected volatile int sequenceNumber;
+    protected volatile CommandTrace trace;
 
-    protected final Object sync;
+    private final long lateCallbackWaitInMs = 1000;
+
+    protected final ReentrantLock syncLock;
+    protected final Condition syncCondition;
     protected int errorCode;
     protected boolean completed;
+    protected boolean abandoned;
 
     
     protected void resetCompleted() {
         completed = false;
+        abandoned = false;
         errorCode = -1;
     }
 
+    /**
+     *  Call holding syncLock, after sending. Waits for the answer, a
+     *  timeout from the client, or timeoutInMs, 0 waits forever.
+     *  @return true if the command completed with a 0 status.
+     */
+    protected boolean awaitCompletion(long timeoutInMs) {
+
+        try {
+            if (timeoutInMs <= 0) {
+                while (!completed && !abandoned) {
+                    syncCondition.await();
+                }
+            }
+            else {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+                while (!completed && !abandoned && (remaining > 0)) {
+                    remaining = syncCondition.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            System.out.println("Failed waiting - exception " + ex);
+            abandonInFlight();
+            return false;
+        }
+
+        if (!completed && !abandoned) {
+            //
+            //  We gave up before the client's timer did, its deadline is a
+            //  tick or two later. Take the command back so nothing for it
+            //  lands on our next call.
+            //
+            abandonInFlight();
+        }
+
+        if (!isCompleted()){
+            return false;
+        }
+        else{
+            return errorCode == 0;
+        }
+    }
+
+    /*
+     *  Holding syncLock. If the command was already taken, by its answer,
+     *  the timer or the connection going, that callback is on its way.
+     *  Wait for it here, briefly, it needs syncLock.
+     */
+    private void abandonInFlight() {
+
+        if (ciiClient.deleteCommandInProgress(sequenceNumber)) {
+            return;
+        }
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(lateCallbackWaitInMs);
+        boolean interrupted = false;
+
+        while (!completed && !abandoned && (remaining > 0)) {
+            try {
+                remaining = syncCondition.awaitNanos(remaining);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public boolean isCompleted() {
         return completed;
     }
@@ -27,12 +110,21 @@ public class CommandMessage implements CommandCompletion {
         return errorCode;
     }
 
+    /**
+     * @return The last command's stamps, null unless the client traces
+     * commands.
+     */
+    public CommandTrace getTrace() {
+        return trace;
+    }
+
     public CommandMessage(  CiiClient ciiClient,
                             int subStatus){
         
         this.ciiClient = ciiClient;
         this.subStatus = subStatus;
-        sync = new Object();
+        syncLock = new ReentrantLock();
+        syncCondition = syncLock.newCondition();
         completed = false;
         errorCode = -1;
     }
@@ -43,10 +135,13 @@ public class CommandMessage implements CommandCompletion {
 
     @Override
     public void receiveNak(int errorCode) {
-        synchronized(sync){
+        syncLock.lock();
+        try {
             this.errorCode = errorCode;
             completed = true;
-            sync.notify();
+            syncCondition.signalAll();
+        } finally {
+            syncLock.unlock();
         }
     }
 
@@ -56,10 +151,13 @@ public class CommandMessage implements CommandCompletion {
                                     byte[] data,
                                     int startingOffset,
                                     int dataLength){
-        synchronized(sync){
+        syncLock.lock();
+        try {
             this.errorCode = statusCode;
             completed = true;
-            sync.notify();
+            syncCondition.signalAll();
+        } finally {
+            syncLock.unlock();
         }
     }
 
@@ -67,5 +165,37 @@ public class CommandMessage implements CommandCompletion {
     public void saveSequenceNumber(int sequenceNumber){
         this.sequenceNumber = sequenceNumber;
     }
+
+    @Override
+    public void saveTrace(CommandTrace trace){
+        this.trace = trace;
+    }
+
+    /**
+     *  Leaves completed false, so a synchronous caller wakes up and fails
+     *  now instead of sitting out the rest of its wait.
+     */
+    @Override
+    public void receiveTimeout() {
+        abandon();
+    }
+
+    /**
+     *  Same for a connection that went, no answer is coming.
+     */
+    @Override
+    public void receiveConnectionLost() {
+        abandon();
+    }
+
+    private void abandon() {
+        syncLock.lock();
+        try {
+            abandoned = true;
+            syncCondition.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
     
 }
@@ -28,28 +28,19 @@ public class SetMessage extends CommandMessage {
         
         boolean sendSuccess;
 
-        synchronized(sync){
+        syncLock.lock();
+        try {
 
             resetCompleted();
-            
-            sendSuccess = ciiClient.sendAction(subStatus, data, this);
-            if (!sendSuccess){
-                return false;
-            }
 
-            try {
-                sync.wait(timeoutInMs);
-            } catch (InterruptedException ex) {
-                System.out.println("Failed waiting - exception " + ex);
+            sendSuccess = ciiClient.sendAction(subStatus, data, this, timeoutInMs);
+            if (!sendSuccess){
                 return false;
             }
 
-            if (!isCompleted()){
-                return false;
-            }
-            else{
-                return errorCode == 0;
-            }
+            return awaitCompletion(timeoutInMs);
+        } finally {
+            syncLock.unlock();
         }
     }
 
@@ -62,9 +53,12 @@ public class SetMessage extends CommandMessage {
 
     public boolean set(byte[] data){
 
-        synchronized(sync){
+        syncLock.lock();
+        try {
             resetCompleted();
-            return ciiClient.sendAction(subStatus, data, this);
+            return ciiClient.sendAction(subStatus, data, this, DEFAULT_TIMEOUT_IN_MS);
+        } finally {
+            syncLock.unlock();
         }
     }
 
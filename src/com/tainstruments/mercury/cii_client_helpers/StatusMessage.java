@@ -21,7 +21,7 @@ public abstract class StatusMessage implements ReceiveStatusHandler {
      *  Do this to clean up. This unhooks the StstusMessage from the CII.
      */
     public void close() {
-        ciiClient.unregisterStatusHandler(subStatus);
+        ciiClient.unregisterStatusHandler(subStatus, this);
     }
 
     @Override
@@ -0,0 +1,549 @@
+package com.tainstruments.mercury.cii_load_generator;
+
+import com.tainstruments.mercury.cii_client_helpers.CommandMessage;
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import com.tainstruments.mercury.common_instrument_interface.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Drives GETs or ACTNs through a connected CiiClient and records how long
+ * each took to be ACKed and answered.
+ *
+ * Closed loop, the default, keeps a fixed number of commands outstanding
+ * and sends the next as soon as one is answered. With setRate() it's open
+ * loop instead, a command goes out every 1 / rate seconds whether or not
+ * the earlier ones were answered, and latency counts from when it should
+ * have gone out, so a stall shows up in the numbers rather than just
+ * slowing the sender down.
+ *
+ * Pipelined, the default, sends with sendGet() / sendAction() and a
+ * completion, from one thread. Synchronous runs one thread per
+ * outstanding command, each blocking in the same wait the helper
+ * messages' getSynchronous() uses, for comparing the two.
+ *
+ * Run it with main() against an instrument or the simulator.
+ */
+public class CiiLoadGenerator {
+
+    private final CiiClient ciiClient;
+
+    private final LatencyHistogram ackLatency;
+    private final LatencyHistogram responseLatency;
+    private final AtomicLong sentCount;
+    private final AtomicLong responseCount;
+    private final AtomicLong nakCount;
+    private final AtomicLong timeoutCount;
+    private final AtomicLong lostCount;
+    private final AtomicLong failedSendCount;
+
+    private boolean isAction;
+    private int subcommand;
+    private byte[] data;
+    private int concurrency;
+    private int ratePerSecond;
+    private boolean synchronous;
+    private long commandTimeout;
+
+    private volatile boolean running;
+    private volatile long statisticsStart;
+    private Semaphore outstanding;
+    private Thread[] threads;
+
+
+    public CiiLoadGenerator(CiiClient ciiClient) {
+
+        this.ciiClient = ciiClient;
+
+        ackLatency = new LatencyHistogram();
+        responseLatency = new LatencyHistogram();
+        sentCount = new AtomicLong();
+        responseCount = new AtomicLong();
+        nakCount = new AtomicLong();
+        timeoutCount = new AtomicLong();
+        lostCount = new AtomicLong();
+        failedSendCount = new AtomicLong();
+
+        subcommand = 0x2;
+        data = null;
+        concurrency = 1;
+        commandTimeout = 5000;
+    }
+
+
+    /**
+     * What to send. The default is a GET of the serial number.
+     * @param dataLength Bytes of data to send with each, 0 for none.
+     */
+    public void setCommand(boolean isAction, int subcommand, int dataLength) {
+        this.isAction = isAction;
+        this.subcommand = subcommand;
+        this.data = (dataLength > 0) ? new byte[dataLength] : null;
+    }
+
+    /**
+     * Commands kept outstanding in closed loop, threads when synchronous.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Commands per second, open loop. 0, the default, is closed loop.
+     */
+    public void setRate(int ratePerSecond) {
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+    }
+
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public void setCommandTimeout(long commandTimeoutInMs) {
+        this.commandTimeout = commandTimeoutInMs;
+    }
+
+
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+
+        if (synchronous && (ratePerSecond > 0)) {
+            throw new IllegalStateException("Synchronous commands can't be sent at a rate, only a concurrency");
+        }
+
+        running = true;
+        resetStatistics();
+
+        if (synchronous) {
+            threads = new Thread[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                threads[i] = newThread(new SynchronousSender(), "Cii-Load-Sync-Thread-" + i);
+            }
+        }
+        else {
+            outstanding = new Semaphore(concurrency);
+            threads = new Thread[] { newThread(new PipelinedSender(), "Cii-Load-Send-Thread") };
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Stops sending and waits for the sending threads. Anything still
+     * outstanding is left to finish or time out.
+     */
+    public synchronized void stop() {
+
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        for (Thread thread : threads) {
+            //
+            //  The synchronous senders finish the command they're on.
+            //
+            if (!synchronous) {
+                thread.interrupt();
+            }
+            try {
+                thread.join(commandTimeout + 1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Starts the numbers again from now, after a warm up say.
+     */
+    public void resetStatistics() {
+        ackLatency.reset();
+        responseLatency.reset();
+        sentCount.set(0);
+        responseCount.set(0);
+        nakCount.set(0);
+        timeoutCount.set(0);
+        lostCount.set(0);
+        failedSendCount.set(0);
+        statisticsStart = System.nanoTime();
+    }
+
+
+    /**
+     * Send to ACK, ns.
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * Send to RSP, ns.
+     */
+    public LatencyHistogram getResponseLatency() {
+        return responseLatency;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    public long getNakCount() {
+        return nakCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getFailedSendCount() {
+        return failedSendCount.get();
+    }
+
+    /**
+     * @return Responses per second since the statistics were last reset.
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - statisticsStart;
+        return (elapsed <= 0) ? 0 : responseCount.get() * 1e9 / elapsed;
+    }
+
+
+    public String report() {
+        return String.format("%s %s, %s%n", synchronous ? "synchronous" : "pipelined",
+                                            isAction ? "ACTN" : "GET",
+                                            (ratePerSecond > 0) ? ("open loop at " + ratePerSecond + "/s")
+                                                                : ("closed loop, " + concurrency + " outstanding")) +
+                String.format("  throughput  %.0f responses/s%n", getThroughput()) +
+                String.format("  sent %d  responses %d  naks %d  timeouts %d  lost %d  failed sends %d%n",
+                                getSentCount(), getResponseCount(), getNakCount(),
+                                getTimeoutCount(), lostCount.get(), getFailedSendCount()) +
+                String.format("  send->ACK   %s%n", ackLatency.summary()) +
+                String.format("  send->RSP   %s%n", responseLatency.summary());
+    }
+
+
+
+    /*
+     *  One command in flight, pipelined. Its start is when it was sent in
+     *  closed loop, when it should have been in open loop.
+     */
+    private class PipelinedCommand implements CommandCompletion {
+
+        private final long start;
+
+        PipelinedCommand(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void receiveAck() {
+            ackLatency.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public void receiveNak(int errorCode) {
+            nakCount.incrementAndGet();
+            done();
+        }
+
+        @Override
+        public void receiveResponse(int subcommand, int statusCode, byte[] data, int startingOffset, int dataLength) {
+            responseLatency.record(System.nanoTime() - start);
+            responseCount.incrementAndGet();
+            done();
+        }
+
+        @Override
+        public void saveSequenceNumber(int sequenceNumber) {
+        }
+
+        @Override
+        public void receiveTimeout() {
+            timeoutCount.incrementAndGet();
+            done();
+        }
+
+        @Override
+        public void receiveConnectionLost() {
+            lostCount.incrementAndGet();
+            done();
+        }
+
+        private void done() {
+            if (ratePerSecond == 0) {
+                outstanding.release();
+            }
+        }
+    }
+
+
+    private class PipelinedSender implements Runnable {
+
+        @Override
+        public void run() {
+
+            long interval = (ratePerSecond > 0) ? 1000000000L / ratePerSecond : 0;
+            long due = System.nanoTime();
+
+            while (running) {
+
+                long start;
+
+                if (interval > 0) {
+                    waitUntil(due);
+                    start = due;
+                    due += interval;
+                }
+                else {
+                    try {
+                        outstanding.acquire();
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                    start = System.nanoTime();
+                }
+
+                if (!running) {
+                    break;
+                }
+
+                PipelinedCommand command = new PipelinedCommand(start);
+
+                boolean sent = isAction ? ciiClient.sendAction(subcommand, data, command, commandTimeout)
+                                        : ciiClient.sendGet(subcommand, data, command, commandTimeout);
+
+                if (sent) {
+                    sentCount.incrementAndGet();
+                }
+                else {
+                    failedSendCount.incrementAndGet();
+                    command.done();
+                    //
+                    //  Not connected, or every slot is taken. Don't spin.
+                    //
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        }
+    }
+
+
+    /*
+     *  The helper messages' synchronous path: send under the message's
+     *  lock, then wait on its condition for the answer.
+     */
+    private class SynchronousCommand extends CommandMessage {
+
+        private volatile long start;
+        private volatile boolean answered;
+
+        SynchronousCommand(CiiClient ciiClient, int subcommand) {
+            super(ciiClient, subcommand);
+        }
+
+        /**
+         *  @return false if it couldn't be sent at all.
+         */
+        boolean sendSynchronous() {
+
+            syncLock.lock();
+            try {
+                resetCompleted();
+                answered = false;
+                start = System.nanoTime();
+
+                boolean sent = isAction ? ciiClient.sendAction(subStatus, data, this, commandTimeout)
+                                        : ciiClient.sendGet(subStatus, data, this, commandTimeout);
+                if (!sent) {
+                    return false;
+                }
+
+                sentCount.incrementAndGet();
+                awaitCompletion(commandTimeout);
+
+                if (!answered && !isCompleted()) {
+                    timeoutCount.incrementAndGet();
+                }
+                return true;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        @Override
+        public void receiveAck() {
+            ackLatency.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public void receiveNak(int errorCode) {
+            answered = true;
+            nakCount.incrementAndGet();
+            super.receiveNak(errorCode);
+        }
+
+        @Override
+        public void receiveResponse(int subcommand, int statusCode, byte[] data, int startingOffset, int dataLength) {
+            answered = true;
+            responseLatency.record(System.nanoTime() - start);
+            responseCount.incrementAndGet();
+            super.receiveResponse(subcommand, statusCode, data, startingOffset, dataLength);
+        }
+
+        @Override
+        public void receiveConnectionLost() {
+            answered = true;
+            lostCount.incrementAndGet();
+            super.receiveConnectionLost();
+        }
+    }
+
+
+    private class SynchronousSender implements Runnable {
+
+        @Override
+        public void run() {
+
+            SynchronousCommand command = new SynchronousCommand(ciiClient, subcommand);
+
+            while (running) {
+                if (!command.sendSynchronous()) {
+                    failedSendCount.incrementAndGet();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        }
+    }
+
+
+    private static void waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+
+    private static Thread newThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+
+
+    /**
+     *  CiiLoadGenerator [-host address] [-port n] [-simulator] [-latency ms]
+     *                   [-concurrency n] [-rate n] [-sync] [-action]
+     *                   [-subcommand n] [-size bytes] [-eventloop threads]
+     *                   [-warmup s] [-duration s]
+     *
+     *  -simulator starts a CiiSimulator on loopback and drives that,
+     *  -latency sets how long it holds each RSP back.
+     */
+    public static void main(String argv[]) throws Exception {
+
+        String host = "127.0.0.1";
+        int port = 8080;
+        boolean simulated = false;
+        long simulatedLatency = 0;
+        int concurrency = 1;
+        int rate = 0;
+        boolean sync = false;
+        boolean action = false;
+        int subcommand = 0x2;
+        int size = 0;
+        int eventLoopThreads = 0;
+        int warmup = 2;
+        int duration = 10;
+
+        for (int i = 0; i < argv.length; i++) {
+            String option = argv[i];
+            switch (option) {
+                case "-host":           host = argv[++i]; break;
+                case "-port":           port = Integer.parseInt(argv[++i]); break;
+                case "-simulator":      simulated = true; break;
+                case "-latency":        simulatedLatency = Long.parseLong(argv[++i]); break;
+                case "-concurrency":    concurrency = Integer.parseInt(argv[++i]); break;
+                case "-rate":           rate = Integer.parseInt(argv[++i]); break;
+                case "-sync":           sync = true; break;
+                case "-action":         action = true; break;
+                case "-subcommand":     subcommand = Integer.decode(argv[++i]); break;
+                case "-size":           size = Integer.parseInt(argv[++i]); break;
+                case "-eventloop":      eventLoopThreads = Integer.parseInt(argv[++i]); break;
+                case "-warmup":         warmup = Integer.parseInt(argv[++i]); break;
+                case "-duration":       duration = Integer.parseInt(argv[++i]); break;
+                default:
+                    System.out.println("Unknown option " + option);
+                    return;
+            }
+        }
+
+        CiiSimulator simulator = null;
+
+        if (simulated) {
+            simulator = new CiiSimulator(0);
+            simulator.setResponseLatency(simulatedLatency);
+            simulator.start();
+            host = "127.0.0.1";
+            port = simulator.getPort();
+        }
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(port);
+        configuration.setMaxCommandsInFlight(Math.max(1024, 2 * Math.max(concurrency, rate)));
+        if (eventLoopThreads > 0) {
+            configuration.setEventLoopGroup(new CiiEventLoopGroup(eventLoopThreads));
+        }
+
+        CiiClient client = new CiiClient(host, configuration);
+
+        if (!client.connect(client.AccessLevel_Master)) {
+            System.out.println("Couldn't connect to " + host + ":" + port);
+            return;
+        }
+
+        CiiLoadGenerator generator = new CiiLoadGenerator(client);
+        generator.setCommand(action, subcommand, size);
+        generator.setConcurrency(concurrency);
+        generator.setRate(rate);
+        generator.setSynchronous(sync);
+        generator.start();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        generator.resetStatistics();
+
+        for (int second = 1; second <= duration; second++) {
+            Thread.sleep(1000);
+            System.out.println(String.format("%3d s  %.0f responses/s  RSP p99 %.1f us",
+                                second,
+                                generator.getThroughput(),
+                                generator.getResponseLatency().getValueAtPercentile(99) / 1e3));
+        }
+
+        generator.stop();
+        System.out.print(generator.report());
+
+        client.disconnect();
+        if (simulator != null) {
+            simulator.stop();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,439 @@
+package com.tainstruments.mercury.cii_simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A stand in for the instrument's CII server, run in process or on its
+ * own with main(), so the client can be tested and benchmarked on
+ * loopback without an instrument.
+ *
+ * Speaks the SYNC / length / END framing. LOGN gets an ACPT with the
+ * access level asked for. GET and ACTN get an ACK and then a RSP. The
+ * substatuses common_messages uses answer with data in the real layouts,
+ * and the sets are remembered. Anything else is answered with the data it
+ * came with. ACTN from a view only login gets a NAK.
+ *
+ * STAT streams are pushed to every logged in connection, real time
+ * signals on 0x20002 and any plain payloads you add, each at its own
+ * rate.
+ *
+ * For benchmarks and recovery tests the RSP can be held back by a fixed
+ * latency, and commands can be made to NAK, go unanswered or drop the
+ * connection at random. The randomness is seeded, so a run repeats.
+ */
+public class CiiSimulator {
+
+    public static final int RealTimeSignalsSubstatus = 0x20002;
+    public static final int NakAccessDenied = 0x5;
+
+    private final int requestedPort;
+    private final SimulatedInstrument instrument;
+    private final CopyOnWriteArrayList<SimulatorSession> sessions;
+    private final AtomicInteger sessionNumber;
+    private final AtomicLong commandCount;
+    private final AtomicLong statusFrameCount;
+    private final Object streamLock;
+
+    private volatile StatusStream[] streams;
+    private volatile long responseLatency;
+    private volatile double nakProbability;
+    private volatile int nakStatusCode;
+    private volatile double dropProbability;
+    private volatile double disconnectProbability;
+    private Random random;
+
+    private ServerSocket serverSocket;
+    private ScheduledThreadPoolExecutor responseScheduler;
+    private Thread statusThread;
+    private volatile boolean running;
+
+
+    /**
+     * @param port Port to listen on, 0 picks a free one, see getPort().
+     */
+    public CiiSimulator(int port) {
+
+        requestedPort = port;
+        instrument = new SimulatedInstrument();
+        sessions = new CopyOnWriteArrayList<>();
+        sessionNumber = new AtomicInteger();
+        commandCount = new AtomicLong();
+        statusFrameCount = new AtomicLong();
+        streamLock = new Object();
+
+        streams = new StatusStream[0];
+        nakStatusCode = 1;
+        random = new Random(1);
+    }
+
+
+    /**
+     * Starts listening, on loopback only.
+     */
+    public synchronized void start() throws IOException {
+
+        if (running) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(requestedPort, 200, InetAddress.getLoopbackAddress());
+
+        responseScheduler = new ScheduledThreadPoolExecutor(1);
+        responseScheduler.setThreadFactory(new java.util.concurrent.ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return newDaemon(task, "Cii-Sim-Response-Thread");
+            }
+        });
+
+        running = true;
+
+        newDaemon(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "Cii-Sim-Accept-Thread").start();
+
+        statusThread = newDaemon(new Runnable() {
+            @Override
+            public void run() {
+                statusLoop();
+            }
+        }, "Cii-Sim-Status-Thread");
+        statusThread.start();
+    }
+
+
+    /**
+     * Stops listening and closes every connection.
+     */
+    public synchronized void stop() {
+
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+        }
+
+        dropConnections();
+        responseScheduler.shutdownNow();
+        LockSupport.unpark(statusThread);
+    }
+
+
+    /**
+     * Closes every client connection, the way a network glitch would.
+     * The simulator keeps listening.
+     */
+    public void dropConnections() {
+        for (SimulatorSession session : sessions) {
+            session.close();
+        }
+    }
+
+
+    public int getPort() {
+        return (serverSocket == null) ? requestedPort : serverSocket.getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    public long getStatusFrameCount() {
+        return statusFrameCount.get();
+    }
+
+
+    /**
+     * Pushes signalCount floats on 0x20002, ratePerSecond times a second.
+     * 0 for either stops them.
+     */
+    public void setRealTimeSignals(int signalCount, int ratePerSecond) {
+
+        removeStatusStream(RealTimeSignalsSubstatus);
+
+        if ((signalCount > 0) && (ratePerSecond > 0)) {
+            addStream(StatusStream.realTimeSignals(RealTimeSignalsSubstatus, signalCount, ratePerSecond));
+        }
+    }
+
+    /**
+     * Pushes STAT frames on substatus with payloadLength bytes of data,
+     * the first four a running count, ratePerSecond times a second.
+     */
+    public void addStatusStream(int substatus, int payloadLength, int ratePerSecond) {
+        addStream(StatusStream.counter(substatus, payloadLength, ratePerSecond));
+    }
+
+    public void removeStatusStream(int substatus) {
+        synchronized (streamLock) {
+            StatusStream[] current = streams;
+            StatusStream[] updated = new StatusStream[current.length];
+            int count = 0;
+            for (StatusStream stream : current) {
+                if (stream.getSubstatus() != substatus) {
+                    updated[count++] = stream;
+                }
+            }
+            streams = Arrays.copyOf(updated, count);
+        }
+    }
+
+
+    /**
+     * Holds every RSP back this long after its ACK. Answers still go out
+     * in order.
+     */
+    public void setResponseLatency(long latencyInMs) {
+        responseLatency = latencyInMs;
+    }
+
+    /**
+     * Chance, 0 to 1, that a command gets a NAK with the given status
+     * instead of an ACK and RSP.
+     */
+    public void setNakProbability(double probability, int statusCode) {
+        nakProbability = probability;
+        nakStatusCode = statusCode;
+    }
+
+    /**
+     * Chance that a command gets no answer at all, so the client times it
+     * out.
+     */
+    public void setDropProbability(double probability) {
+        dropProbability = probability;
+    }
+
+    /**
+     * Chance that a command makes the simulator drop the connection
+     * instead of answering.
+     */
+    public void setDisconnectProbability(double probability) {
+        disconnectProbability = probability;
+    }
+
+    public synchronized void setRandomSeed(long seed) {
+        random = new Random(seed);
+    }
+
+
+
+    /**
+     *  Session thread.
+     *  @return false to drop the connection.
+     */
+    boolean commandReceived(final SimulatorSession session,
+                            boolean isAction,
+                            final int sequenceNumber,
+                            final int subcommand,
+                            byte[] data,
+                            boolean mayAct) {
+
+        commandCount.incrementAndGet();
+
+        if (roll(disconnectProbability)) {
+            return false;
+        }
+
+        if (roll(dropProbability)) {
+            return true;
+        }
+
+        if (isAction && !mayAct) {
+            session.sendNak(sequenceNumber, NakAccessDenied);
+            return true;
+        }
+
+        if (roll(nakProbability)) {
+            session.sendNak(sequenceNumber, nakStatusCode);
+            return true;
+        }
+
+        session.sendAck(sequenceNumber);
+
+        final byte[] reply = isAction ? instrument.action(subcommand, data)
+                                      : instrument.get(subcommand, data);
+
+        long latency = responseLatency;
+
+        if (latency <= 0) {
+            session.sendResponse(sequenceNumber, subcommand, 0, reply);
+        }
+        else {
+            responseScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    session.sendResponse(sequenceNumber, subcommand, 0, reply);
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+        }
+
+        return true;
+    }
+
+
+    void sessionClosed(SimulatorSession session) {
+        sessions.remove(session);
+    }
+
+
+    private boolean roll(double probability) {
+
+        if (probability <= 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+
+    private void addStream(StatusStream stream) {
+        synchronized (streamLock) {
+            StatusStream[] current = streams;
+            StatusStream[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = stream;
+            streams = updated;
+        }
+        LockSupport.unpark(statusThread);
+    }
+
+
+    private void acceptLoop() {
+
+        while (running) {
+
+            Socket socket;
+
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                //
+                //  Closed by stop().
+                //
+                break;
+            }
+
+            try {
+                SimulatorSession session = new SimulatorSession(this, socket);
+                sessions.add(session);
+                newDaemon(session, "Cii-Sim-Session-Thread-" + sessionNumber.getAndIncrement()).start();
+            } catch (IOException ex) {
+                System.out.println("CiiSimulator failed starting a session " + ex);
+                try {
+                    socket.close();
+                } catch (IOException closeEx) {
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Sends whatever is due and sleeps until the next stream is. Samples
+     *  it falls more than a few behind on are skipped, not burst out.
+     */
+    private void statusLoop() {
+
+        final int maxBurst = 16;
+
+        while (running) {
+
+            long now = System.nanoTime();
+            long wakeUp = now + TimeUnit.MILLISECONDS.toNanos(100);
+
+            for (StatusStream stream : streams) {
+
+                int sent = 0;
+
+                while (stream.getNextDue() - now <= 0) {
+
+                    if (sent == maxBurst) {
+                        stream.skipTo(now);
+                        break;
+                    }
+
+                    byte[] frame = stream.nextFrame();
+
+                    for (SimulatorSession session : sessions) {
+                        if (session.isLoggedIn()) {
+                            session.sendStatus(frame);
+                            statusFrameCount.incrementAndGet();
+                        }
+                    }
+
+                    sent++;
+                }
+
+                if (stream.getNextDue() - wakeUp < 0) {
+                    wakeUp = stream.getNextDue();
+                }
+            }
+
+            long sleep = wakeUp - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+        }
+    }
+
+
+    private static Thread newDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+
+    /**
+     *  CiiSimulator [port [signalCount [signalsPerSecond [latencyInMs]]]]
+     */
+    public static void main(String argv[]) throws Exception {
+
+        int port = (argv.length > 0) ? Integer.parseInt(argv[0]) : 8080;
+        int signalCount = (argv.length > 1) ? Integer.parseInt(argv[1]) : 16;
+        int signalRate = (argv.length > 2) ? Integer.parseInt(argv[2]) : 50;
+        long latency = (argv.length > 3) ? Long.parseLong(argv[3]) : 0;
+
+        CiiSimulator simulator = new CiiSimulator(port);
+        simulator.setRealTimeSignals(signalCount, signalRate);
+        simulator.setResponseLatency(latency);
+        simulator.start();
+
+        System.out.println("CiiSimulator listening on " + simulator.getPort() +
+                            ", " + signalCount + " signals at " + signalRate + "/s" +
+                            ", " + latency + " ms response latency");
+
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println("sessions " + simulator.getSessionCount() +
+                                " commands " + simulator.getCommandCount() +
+                                " status frames " + simulator.getStatusFrameCount());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.tainstruments.mercury.cii_simulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ *  The instrument state behind a CiiSimulator, shared by all of its
+ *  connections. Knows the GETs and sets that common_messages uses, with
+ *  the same payload layouts. Anything else is answered with its own
+ *  data, so benchmarks can use any subcommand and payload size.
+ *
+ *  Package visibility
+ */
+class SimulatedInstrument {
+
+    static final int GetSoftwareVersion = 0x0;
+    static final int GetSerialNumber = 0x2;
+    static final int GetInstrumentName = 0x3;
+    static final int GetInstrumentLocation = 0x4;
+    static final int GetNetworkSettings = 0x5;
+    static final int GetProcedureStatus = 0x9;
+
+    static final int SetSerialNumber = 0x10002;
+    static final int SetInstrumentName = 0x10003;
+    static final int SetInstrumentLocation = 0x10004;
+    static final int SetNetworkSettings = 0x10005;
+
+    private final Charset utf8 = Charset.forName("UTF-8");
+    private final Charset utf16 = Charset.forName("UTF-16LE");
+
+    private byte[] serialNumber;
+    private byte[] instrumentName;
+    private byte[] instrumentLocation;
+    private byte[] networkSettings;
+    private final int[] softwareVersion;
+
+
+    SimulatedInstrument() {
+
+        serialNumber = "SIM-0001".getBytes(utf8);
+        instrumentName = "Simulator".getBytes(utf16);
+        instrumentLocation = "Loopback".getBytes(utf16);
+        softwareVersion = new int[] { 1, 0, 0, 1 };
+
+        //
+        //  DHCP off, 127.0.0.1 / 255.0.0.0, no gateway, a made up MAC.
+        //
+        networkSettings = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0)
+                .put(new byte[] { 127, 0, 0, 1 })
+                .put(new byte[] { (byte)255, 0, 0, 0 })
+                .put(new byte[] { 0, 0, 0, 0 })
+                .put(new byte[] { 0x02, 0x00, 0x5E, 0x00, 0x00, 0x01 })
+                .array();
+    }
+
+
+    /**
+     *  @return The RSP data for a GET.
+     */
+    synchronized byte[] get(int subcommand, byte[] data) {
+
+        switch (subcommand)
+        {
+            case GetSoftwareVersion:
+                ByteBuffer bb = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                for (int part : softwareVersion) {
+                    bb.putInt(part);
+                }
+                return bb.array();
+
+            case GetSerialNumber:
+                return serialNumber;
+
+            case GetInstrumentName:
+                return instrumentName;
+
+            case GetInstrumentLocation:
+                return instrumentLocation;
+
+            case GetNetworkSettings:
+                return networkSettings;
+
+            case GetProcedureStatus:
+                //
+                //  Idle: state, status, index, then the two bit fields.
+                //
+                return new byte[28];
+
+            default:
+                return data;
+        }
+    }
+
+
+    /**
+     *  @return The RSP data for an ACTN, the sets store what they're given.
+     */
+    synchronized byte[] action(int subcommand, byte[] data) {
+
+        switch (subcommand)
+        {
+            case SetSerialNumber:
+                serialNumber = data;
+                return new byte[0];
+
+            case SetInstrumentName:
+                instrumentName = data;
+                return new byte[0];
+
+            case SetInstrumentLocation:
+                instrumentLocation = data;
+                return new byte[0];
+
+            case SetNetworkSettings:
+                //
+                //  DHCP flag, then the addresses unless it's DHCP. The
+                //  MAC isn't settable.
+                //
+                byte[] updated = Arrays.copyOf(networkSettings, networkSettings.length);
+                System.arraycopy(data, 0, updated, 0, Math.min(data.length, 16));
+                networkSettings = updated;
+                return new byte[0];
+
+            default:
+                return data;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.tainstruments.mercury.cii_simulator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+
+/**
+ *  One client connection to a CiiSimulator. Its thread reads the client's
+ *  frames and answers them, status frames are pushed in from the
+ *  simulator's status thread. Writes are one whole frame at a time under
+ *  a lock, so the two never interleave.
+ *
+ *  Package visibility
+ */
+class SimulatorSession implements Runnable {
+
+    static final int MtLogin = 0x4E474F4C;           /* "LOGN" */
+    static final int MtAccept = 0x54504341;          /* "ACPT" */
+    static final int MtGetCommand = 0x20544547;      /* "GET " */
+    static final int MtActionCommand = 0x4E544341;   /* "ACTN" */
+    static final int MtAck = 0x204B4341;             /* "ACK " */
+    static final int MtNak = 0x204B414E;             /* "NAK " */
+    static final int MtResponse = 0x20505352;        /* "RSP " */
+    static final int MtStatus = 0x54415453;          /* "STAT" */
+
+    static final int Sync = 0x434E5953;             /* "SYNC" */
+    static final int End = 0x20444E45;              /* "END " */
+    static final int HeaderLength = 8;
+    static final int TrailerLength = 4;
+
+    private final int AccessLevel_ViewOnly = 1;
+    private final int maxPayload = 10 * 1024 * 1024;
+
+    private final CiiSimulator simulator;
+    private final Socket socket;
+    private final OutputStream outputStream;
+    private final Object writeLock;
+    private volatile boolean loggedIn;
+    private volatile boolean closed;
+    private int accessLevel;
+
+
+    SimulatorSession(CiiSimulator simulator, Socket socket) throws IOException {
+        this.simulator = simulator;
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        outputStream = socket.getOutputStream();
+        writeLock = new Object();
+    }
+
+
+    boolean isLoggedIn() {
+        return loggedIn && !closed;
+    }
+
+
+    void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+        }
+    }
+
+
+    @Override
+    public void run() {
+
+        try {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            byte[] header = new byte[HeaderLength];
+
+            while (!closed) {
+
+                inputStream.readFully(header);
+
+                ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int sync = hb.getInt();
+                int length = hb.getInt();
+
+                if ((sync != Sync) || (length < 4) || (length > maxPayload)) {
+                    System.out.println("CiiSimulator bad frame header, closing");
+                    break;
+                }
+
+                byte[] payload = new byte[length + TrailerLength];
+                inputStream.readFully(payload);
+
+                if (ByteBuffer.wrap(payload, length, TrailerLength).order(ByteOrder.LITTLE_ENDIAN).getInt() != End) {
+                    System.out.println("CiiSimulator bad frame trailer, closing");
+                    break;
+                }
+
+                if (!frameReceived(payload, length)) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            //
+            //  Client went away, or we were closed.
+            //
+        } finally {
+            close();
+            simulator.sessionClosed(this);
+        }
+    }
+
+
+    /**
+     *  @return false to drop the connection.
+     */
+    private boolean frameReceived(byte[] payload, int length) {
+
+        ByteBuffer bb = ByteBuffer.wrap(payload, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+
+        int type = bb.getInt();
+
+        switch (type)
+        {
+            case MtLogin:
+                accessLevel = bb.getInt();
+                loggedIn = true;
+                send(frame(MtAccept, accessLevel));
+                return true;
+
+            case MtGetCommand:
+            case MtActionCommand:
+                if (!loggedIn || (length < 12)) {
+                    return false;
+                }
+                int sequenceNumber = bb.getInt();
+                int subcommand = bb.getInt();
+                byte[] data = Arrays.copyOfRange(payload, 12, length);
+                return simulator.commandReceived(this, type == MtActionCommand,
+                                                    sequenceNumber, subcommand, data,
+                                                    accessLevel > AccessLevel_ViewOnly);
+
+            default:
+                System.out.println("CiiSimulator unknown message type " + Integer.toHexString(type));
+                return true;
+        }
+    }
+
+
+    void sendAck(int sequenceNumber) {
+        send(frame(MtAck, sequenceNumber));
+    }
+
+    void sendNak(int sequenceNumber, int statusCode) {
+        send(frame(MtNak, sequenceNumber, statusCode));
+    }
+
+    void sendResponse(int sequenceNumber, int subcommand, int statusCode, byte[] data) {
+        byte[] frame = allocateFrame(16 + data.length);
+        ByteBuffer.wrap(frame, HeaderLength, 16).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MtResponse)
+                .putInt(sequenceNumber)
+                .putInt(subcommand)
+                .putInt(statusCode);
+        System.arraycopy(data, 0, frame, HeaderLength + 16, data.length);
+        send(frame);
+    }
+
+    /**
+     *  @param frame A whole STAT frame, the same one goes to every session.
+     */
+    void sendStatus(byte[] frame) {
+        send(frame);
+    }
+
+
+    private void send(byte[] frame) {
+
+        if (closed) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            try {
+                outputStream.write(frame);
+            } catch (IOException ex) {
+                close();
+            }
+        }
+    }
+
+
+    static byte[] allocateFrame(int payloadLength) {
+        byte[] frame = new byte[HeaderLength + payloadLength + TrailerLength];
+        ByteBuffer bb = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(0, Sync);
+        bb.putInt(4, payloadLength);
+        bb.putInt(HeaderLength + payloadLength, End);
+        return frame;
+    }
+
+
+    private static byte[] frame(int... values) {
+        byte[] frame = allocateFrame(4 * values.length);
+        ByteBuffer bb = ByteBuffer.wrap(frame, HeaderLength, 4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int value : values) {
+            bb.putInt(value);
+        }
+        return frame;
+    }
+}
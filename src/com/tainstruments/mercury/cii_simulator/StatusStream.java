@@ -0,0 +1,98 @@
+package com.tainstruments.mercury.cii_simulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ *  A STAT substatus the simulator pushes at a fixed rate. Either real
+ *  time signals, signalCount floats each a slow sine wave of its own, or
+ *  a plain payload of a given size that starts with a running count.
+ *
+ *  Simulator status thread only, apart from the constructor.
+ *
+ *  Package visibility
+ */
+class StatusStream {
+
+    private final int substatus;
+    private final int signalCount;
+    private final int payloadLength;
+    private final long intervalInNs;
+
+    private long nextDue;
+    private long sequence;
+
+
+    private StatusStream(int substatus, int signalCount, int payloadLength, int ratePerSecond) {
+
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Bad status rate " + ratePerSecond);
+        }
+
+        this.substatus = substatus;
+        this.signalCount = signalCount;
+        this.payloadLength = payloadLength;
+        intervalInNs = 1000000000L / ratePerSecond;
+        nextDue = System.nanoTime();
+    }
+
+
+    static StatusStream realTimeSignals(int substatus, int signalCount, int ratePerSecond) {
+        return new StatusStream(substatus, signalCount, 4 * signalCount, ratePerSecond);
+    }
+
+    static StatusStream counter(int substatus, int payloadLength, int ratePerSecond) {
+        return new StatusStream(substatus, 0, Math.max(4, payloadLength), ratePerSecond);
+    }
+
+
+    int getSubstatus() {
+        return substatus;
+    }
+
+    long getNextDue() {
+        return nextDue;
+    }
+
+    long getInterval() {
+        return intervalInNs;
+    }
+
+    /**
+     *  Gives up on samples it's behind on rather than sending a burst to
+     *  catch up.
+     */
+    void skipTo(long now) {
+        nextDue = now + intervalInNs;
+    }
+
+
+    /**
+     *  @return The next whole STAT frame, and moves the schedule on one.
+     */
+    byte[] nextFrame() {
+
+        byte[] frame = SimulatorSession.allocateFrame(8 + payloadLength);
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, SimulatorSession.HeaderLength, 8 + payloadLength)
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(SimulatorSession.MtStatus);
+        bb.putInt(substatus);
+
+        if (signalCount > 0) {
+            double seconds = sequence * (intervalInNs / 1e9);
+            for (int i = 0; i < signalCount; i++) {
+                bb.putFloat((float)((i + 1) * Math.sin(seconds * (i + 1) / 4.0)));
+            }
+        }
+        else {
+            bb.putInt((int)sequence);
+        }
+
+        sequence++;
+        nextDue += intervalInNs;
+
+        return frame;
+    }
+}
@@ -686,6 +686,7 @@ public class MainJframe extends javax.swing.JFrame {
     private CiiClient ciiClient;
     private SerialNumber serialNumber;
     private RealTimeSignals realTimeSignals;
+    private final int RealTimeSignalUpdatesPerSecond = 20;
     private CortexSoftwareVersion cortexSoftwareVersion;
     private ProcedureStatus procedureStatus;
     private InstrumentName instrumentName;
@@ -735,16 +736,23 @@ public class MainJframe extends javax.swing.JFrame {
     }
 
 
+    //
+    //  Subscribed with a conflating subscription, so at most
+    //  RealTimeSignalUpdatesPerSecond of these are ever queued on the EDT.
+    //
     private class RealTimeSignalUI implements Observer, Runnable {
+
+        private volatile float [] latest;
         
         @Override
         public void update(Observable o, Object arg) {
+            latest = (float[])arg;
             SwingUtilities.invokeLater(this);
         }
 
         @Override
         public void run(){
-            float [] signals = realTimeSignals.get();
+            float [] signals = latest;
             if ((signals == null) || (signals.length == 0)) {
                 realTimeTextArea.setText("");
             }
@@ -861,7 +869,7 @@ public class MainJframe extends javax.swing.JFrame {
         serialNumber.addObserver(new SerialNumberUI());
 
         realTimeSignals = new RealTimeSignals(ciiClient);
-        realTimeSignals.addObserver(new RealTimeSignalUI());
+        realTimeSignals.subscribe(new RealTimeSignalUI(), RealTimeSignalUpdatesPerSecond);
 
         cortexSoftwareVersion = new CortexSoftwareVersion(ciiClient);
         cortexSoftwareVersion.addObserver(new CortexVersionUI());
@@ -0,0 +1,84 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * How long to wait between connection attempts. Exponential, capped, and
+ * jittered so a whole plant of clients that lost the network together
+ * doesn't come back at the same instant.
+ *
+ * The delay before retry n (0 based) is
+ * min(maxDelay, initialDelay * multiplier^n), less a random part of up to
+ * jitter times that.
+ */
+public class BackoffPolicy {
+
+    private final long initialDelayInMs;
+    private final long maxDelayInMs;
+    private final double multiplier;
+    private final double jitter;
+
+
+    /**
+     * @param jitter 0 for none, up to 1 for a delay anywhere from 0 to the
+     * full backoff.
+     */
+    public BackoffPolicy(long initialDelayInMs, long maxDelayInMs, double multiplier, double jitter) {
+
+        if ((initialDelayInMs < 0) || (maxDelayInMs < initialDelayInMs) ||
+            (multiplier < 1.0) || (jitter < 0.0) || (jitter > 1.0)) {
+            throw new IllegalArgumentException("Bad backoff policy "
+                    + initialDelayInMs + " " + maxDelayInMs + " " + multiplier + " " + jitter);
+        }
+
+        this.initialDelayInMs = initialDelayInMs;
+        this.maxDelayInMs = maxDelayInMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+
+    /**
+     * The same delay every time, no jitter. What the client did before
+     * there was a policy.
+     */
+    public static BackoffPolicy fixed(long delayInMs) {
+        return new BackoffPolicy(delayInMs, delayInMs, 1.0, 0.0);
+    }
+
+
+    /**
+     * @param attempt Retries made so far, 0 for the first.
+     * @return Delay in ms before the next one.
+     */
+    public long getDelay(int attempt) {
+
+        double backoff = initialDelayInMs * Math.pow(multiplier, Math.max(0, attempt));
+        long capped = (long)Math.min(backoff, (double)maxDelayInMs);
+
+        if ((jitter == 0.0) || (capped == 0)) {
+            return capped;
+        }
+
+        double cut = jitter * ThreadLocalRandom.current().nextDouble();
+        return capped - (long)(capped * cut);
+    }
+
+
+    public long getInitialDelay() {
+        return initialDelayInMs;
+    }
+
+    public long getMaxDelay() {
+        return maxDelayInMs;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+}
@@ -0,0 +1,134 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ *  A non blocking TCP connect with a deadline, done on an event loop.
+ *
+ *  The future completes on the loop thread once the channel is connected
+ *  and no longer registered with the loop's selector, so the caller can
+ *  register it again or put it back in blocking mode. On failure, or if
+ *  the deadline passes first, the channel is closed and the future fails
+ *  with a CiiConnectException.
+ */
+final class ChannelConnector implements CiiEventLoopGroup.Handler {
+
+    private final CiiEventLoopGroup.EventLoop loop;
+    private final SocketChannel channel;
+    private final InetSocketAddress address;
+    private final CompletableFuture<Void> future;
+    private SelectionKey key;
+
+
+    private ChannelConnector(CiiEventLoopGroup.EventLoop loop,
+                                SocketChannel channel,
+                                InetSocketAddress address) {
+        this.loop = loop;
+        this.channel = channel;
+        this.address = address;
+        future = new CompletableFuture<>();
+    }
+
+
+    static CompletableFuture<Void> connect(CiiEventLoopGroup.EventLoop loop,
+                                            SocketChannel channel,
+                                            InetSocketAddress address,
+                                            long timeoutInMs) {
+
+        final ChannelConnector connector = new ChannelConnector(loop, channel, address);
+
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connector.start();
+            }
+        });
+
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connector.fail("Connect to " + connector.address + " timed out");
+            }
+        }, timeoutInMs);
+
+        return connector.future;
+    }
+
+
+    /**
+     *  Loop thread, all of it.
+     */
+    private void start() {
+
+        try {
+            channel.configureBlocking(false);
+
+            if (channel.connect(address)) {
+                future.complete(null);
+                return;
+            }
+
+            key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+        } catch (IOException ex) {
+            fail("Connect to " + address + " failed with " + ex);
+        }
+    }
+
+
+    @Override
+    public void connectable(SelectionKey readyKey) {
+
+        try {
+            if (!channel.finishConnect()) {
+                return;
+            }
+        } catch (IOException ex) {
+            fail("Connect to " + address + " failed with " + ex);
+            return;
+        }
+
+        readyKey.cancel();
+
+        //
+        //  The key only really goes at the next select, hand over after it.
+        //
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(null);
+            }
+        });
+    }
+
+    @Override
+    public void readable(SelectionKey readyKey) {
+    }
+
+    @Override
+    public void writable(SelectionKey readyKey) {
+    }
+
+
+    private void fail(String reason) {
+
+        if (future.isDone() || channel.isConnected()) {
+            return;
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+
+        future.completeExceptionally(new CiiConnectException(reason));
+    }
+}
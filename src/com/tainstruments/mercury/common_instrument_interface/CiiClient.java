@@ -3,11 +3,20 @@ package com.tainstruments.mercury.common_instrument_interface;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
@@ -17,35 +26,94 @@ public class CiiClient {
      *  Public API -------------------------------------------------------
      */
     public boolean isConnected() {
-        return connectionState == ConnectionState_Connected;
+        return connectionState.get() == ConnectionState_Connected;
     }
 
     public int getGrantedAccess() {
         return ciiAccessLevel;
     }
 
+    /**
+     * @return ms from the last unexpected drop being noticed until the
+     * connection was back and the connect handlers had sent their
+     * refreshes, -1 if it has never had to recover.
+     */
+    public long getLastTimeToRecover() {
+        return lastTimeToRecover;
+    }
+
+    /**
+     * @return Times a dropped connection has been got back.
+     */
+    public int getRecoveryCount() {
+        return recoveryCount;
+    }
+
+    /**
+     * The counters and round trip latencies this client reports to, a
+     * CiiClientMetrics unless the configuration supplied its own.
+     */
+    public CiiMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Commands sent and not yet answered, a snapshot.
+     */
+    public int getCommandsInFlight() {
+        return messagesInFlight.getInFlightCount();
+    }
+
+    /**
+     * @return The window on outstanding commands, with its queue depth and
+     * wait counts, or null if there isn't one.
+     */
+    public CommandWindow getCommandWindow() {
+        return commandWindow;
+    }
+
+    /**
+     * Records every frame payload received and sent from now on into the
+     * journal, tagged WireReplayer.TagReceived or TagSent and stamped with
+     * System.nanoTime(). Replay it with a WireReplayer. Replaces any
+     * capture already running.
+     */
+    public void startCapture(FrameJournal journal) {
+        wireCapture = journal;
+    }
+
+    /**
+     * Stops capturing. The journal stays open, close it yourself.
+     */
+    public void stopCapture() {
+        wireCapture = null;
+    }
+
+    /**
+     * Adds a handler for a STAT substatus. Any number of handlers can share
+     * a substatus, each one gets every message, in registration order.
+     */
     public void registerStatusHandler(int statusMessage, ReceiveStatusHandler handler) {
-        synchronized(statusCallbacksLock){
-            statusCallbacks.put(statusMessage, handler);
-        }
+        statusCallbacks.add(statusMessage, handler);
     }
 
+    /**
+     * Removes every handler for the substatus.
+     */
     public void unregisterStatusHandler(int statusMessage) {
-        synchronized(statusCallbacksLock){
-            statusCallbacks.remove(statusMessage);
-        }
+        statusCallbacks.removeAll(statusMessage);
+    }
+
+    public void unregisterStatusHandler(int statusMessage, ReceiveStatusHandler handler) {
+        statusCallbacks.remove(statusMessage, handler);
     }
 
     public void registerUnhandledStatusHandler(ReceiveStatusHandler handler) {
-        synchronized(statusCallbacksLock){
-            unhandledStatusCallback = handler;
-        }
+        unhandledStatusCallback = handler;
     }
 
     public void unregisterUnhandledStatusHandler() {
-        synchronized(statusCallbacksLock){
-            unhandledStatusCallback = null;
-        }
+        unhandledStatusCallback = null;
     }
 
     public void registerConnectHandler(ConnectHandler handler){
@@ -68,55 +136,97 @@ public class CiiClient {
 
     public boolean connect(int requestedAccess) {
         
-        if (connectionState != ConnectionState_NotConnected) {
+        if (!connectionState.compareAndSet(ConnectionState_NotConnected, ConnectionState_Connecting)) {
             return false;
         }
 
         boolean success = backEndManager.connect();
 
-        if (success) {
+        if (!success) {
+            connectionState.set(ConnectionState_NotConnected);
+        }
+        else {
 
-            connectionState = ConnectionState_WaitingForLogin;
+            connectionState.set(ConnectionState_WaitingForLogin);
             
             success = login(requestedAccess);
 
             if (success) {
 
-                connectionState = ConnectionState_Connected;
+                connectionState.set(ConnectionState_Connected);
 
-                synchronized(connectCallbackLock){
-
-                    ListIterator<ConnectHandler>iterator;
-                    iterator = connectCallbacks.listIterator();
-
-                    while(iterator.hasNext()){
-                        ConnectHandler callback = iterator.next();
-                        callback.connected();
-                    }
-                }
+                publishMetrics();
 
+                fireConnected();
             }
             else
             {
                 backEndManager.disconnect();
-                connectionState = ConnectionState_NotConnected;
+                connectionState.set(ConnectionState_NotConnected);
             }
         }
 
         return success;
     }
 
+    /**
+     * Connects and logs in without tying up the caller, or any thread, while
+     * it waits. The TCP connect and the wait for the login accept share
+     * timeoutInMs. On the accept the connect handlers run, then the future
+     * completes with the granted access level, both on the thread that read
+     * the accept. Keep dependent stages short. Fails with a
+     * CiiConnectException.
+     *
+     * Whatever the connect handlers send is held until they have all run
+     * and then goes out in one write, so their refreshes are answered
+     * within one round trip. Don't wait on a reply from inside one.
+     */
+    public CompletableFuture<Integer> connectAsync(final int requestedAccess, long timeoutInMs) {
+
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        if (!connectionState.compareAndSet(ConnectionState_NotConnected, ConnectionState_Connecting)) {
+            result.completeExceptionally(new CiiConnectException("Already connected or connecting"));
+            return result;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+
+        backEndManager.connectAsync(timeoutInMs).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable failure) {
+                if (failure != null) {
+                    connectionState.set(ConnectionState_NotConnected);
+                    Throwable cause = (failure instanceof CompletionException) ? failure.getCause() : failure;
+                    if (cause instanceof CiiConnectException) {
+                        result.completeExceptionally(cause);
+                    }
+                    else {
+                        result.completeExceptionally(new CiiConnectException("Connect failed with " + cause));
+                    }
+                    return;
+                }
+                startLogin(requestedAccess, result, deadline);
+            }
+        });
+
+        return result;
+    }
+
     public void disconnect() {
 
-        if (connectionState == ConnectionState_Connected) {
+        //
+        //  Stops any recovery under way.
+        //
+        recoveryEpoch.incrementAndGet();
 
-            connectionState = ConnectionState_DisconnectInProgress;
+        if (connectionState.compareAndSet(ConnectionState_Connected, ConnectionState_DisconnectInProgress)) {
 
             messagesInFlight.clear();
 
             backEndManager.disconnect();
 
-            connectionState = ConnectionState_NotConnected;
+            connectionState.set(ConnectionState_NotConnected);
 
             synchronized(disconnectCallbackLock){
 
@@ -131,11 +241,35 @@ public class CiiClient {
         }
     }
 
+    /**
+     * Disconnects, stops the threads this client runs for itself, its
+     * dispatch workers, and unregisters its metrics from JMX. Call when
+     * done with the client, it can't be used after.
+     */
+    public void close() {
+
+        disconnect();
+
+        if (frameDispatcher != null) {
+            frameDispatcher.shutdown();
+        }
+
+        if (clientMetrics != null) {
+            clientMetrics.unregister();
+        }
+    }
+
     public boolean sendAction(   int subcommand, byte[] data, CommandCompletion completion){
-        if ((ciiAccessLevel == AccessLevel_Engineering) ||
-            (ciiAccessLevel == AccessLevel_Master) ||
-            (ciiAccessLevel == AccessLevel_LocalUI)) {
-            return sendMessage(MessageTypeAction, subcommand, data, completion);
+        return sendAction(subcommand, data, completion, commandTimeout);
+    }
+
+    /**
+     * @param timeoutInMs Drop the command and call completion.receiveTimeout()
+     * if it isn't answered in this long, 0 waits forever.
+     */
+    public boolean sendAction(   int subcommand, byte[] data, CommandCompletion completion, long timeoutInMs){
+        if (hasActionAccess()) {
+            return sendMessage(MessageTypeAction, subcommand, data, completion, timeoutInMs);
         }
         else {
             return false;
@@ -143,20 +277,84 @@ public class CiiClient {
     }
 
     public boolean sendGet(  int subcommand, byte[] data, CommandCompletion completion){
-        return sendMessage(MessageTypeGet, subcommand, data, completion);
+        return sendGet(subcommand, data, completion, commandTimeout);
     }
 
-    public void deleteCommandInProgress(int sequenceNumber){
-        messagesInFlight.remove(sequenceNumber);
+    /**
+     * @param timeoutInMs Drop the command and call completion.receiveTimeout()
+     * if it isn't answered in this long, 0 waits forever.
+     */
+    public boolean sendGet(  int subcommand, byte[] data, CommandCompletion completion, long timeoutInMs){
+        return sendMessage(MessageTypeGet, subcommand, data, completion, timeoutInMs);
+    }
+
+    /**
+     * Pipelined GET. Any number of these can be outstanding at once, or
+     * with a command window those past it queue until a slot frees.
+     * The future completes with the RSP or NAK, or exceptionally with a
+     * CiiCommandException if the command could not be sent, a
+     * CiiTimeoutException if it went unanswered, or a
+     * CiiConnectionLostException as soon as the connection goes.
+     */
+    public CompletableFuture<CiiResponse> sendGetAsync(int subcommand, byte[] data) {
+        return sendGetAsync(subcommand, data, completionExecutor);
+    }
+
+    public CompletableFuture<CiiResponse> sendGetAsync(int subcommand, byte[] data, Executor executor) {
+        return sendMessageAsync(MessageTypeGet, subcommand, data, executor);
+    }
+
+    /**
+     * Pipelined ACTN, same rules as sendGetAsync().
+     */
+    public CompletableFuture<CiiResponse> sendActionAsync(int subcommand, byte[] data) {
+        return sendActionAsync(subcommand, data, completionExecutor);
+    }
+
+    public CompletableFuture<CiiResponse> sendActionAsync(int subcommand, byte[] data, Executor executor) {
+        if (!hasActionAccess()) {
+            CompletableFuture<CiiResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                    new CiiCommandException("Access level " + ciiAccessLevel + " can't send actions"));
+            return future;
+        }
+        return sendMessageAsync(MessageTypeAction, subcommand, data, executor);
+    }
+
+    /**
+     * @return The receive buffer pool, with its hit / miss counts, or null
+     * if frame pooling is off.
+     */
+    public CiiFramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * Drops a command without telling its completion.
+     * @return false if it was already out of flight. Then whoever took it,
+     * the answer, a timeout or the connection going, is calling its
+     * completion.
+     */
+    public boolean deleteCommandInProgress(int sequenceNumber){
+        return messagesInFlight.remove(sequenceNumber);
     }
 
     public CiiClient(String serverAddress) {
+        this(serverAddress, new CiiClientConfiguration());
+    }
+
+    public CiiClient(String serverAddress, CiiClientConfiguration configuration) {
+
+        if (!configuration.getExecutionMode().isAvailable()) {
+            throw new RuntimeException(configuration.getExecutionMode() + " needs Java 21 or later");
+        }
+
         logger = Logger.getInstance();
+        logger.start(configuration);
         ciiAccessLevel = AccessLevel_Invalid;
-        connectionState = ConnectionState_NotConnected;
+        connectionState = new AtomicInteger(ConnectionState_NotConnected);
 
-        statusCallbacksLock = new Object();
-        statusCallbacks = new HashMap<>();
+        statusCallbacks = new StatusDispatchTable();
 
         asyncErrorsLock = new Object();
         asyncErrorCallbacks = new LinkedList<>();
@@ -167,7 +365,38 @@ public class CiiClient {
         disconnectCallbackLock = new Object();
         disconnectCallbacks = new LinkedList<>();
 
-        messagesInFlight = new MessagesInFlight();
+        completionExecutor = configuration.getCompletionExecutor();
+        commandTimeout = configuration.getCommandTimeout();
+        reconnectBackoff = configuration.getReconnectBackoff();
+        connectTimeout = configuration.getConnectTimeout();
+        recoveryEpoch = new AtomicInteger();
+        lastTimeToRecover = -1;
+
+        admissionTimeout = configuration.getAdmissionTimeout();
+        if (configuration.getMaxOutstandingCommands() > 0) {
+            commandWindow = new CommandWindow(
+                    Math.min(configuration.getMaxOutstandingCommands(), configuration.getMaxCommandsInFlight()),
+                    configuration.getMaxQueuedCommands());
+        }
+        else {
+            commandWindow = null;
+        }
+
+        messagesInFlight = new MessagesInFlight(configuration.getMaxCommandsInFlight(), commandWindow);
+
+        commandTracer = configuration.getCommandTracer();
+        commandTracing = configuration.getCommandTracing() || (commandTracer != null);
+
+        if (configuration.getMetrics() != null) {
+            metrics = configuration.getMetrics();
+            clientMetrics = null;
+        }
+        else {
+            clientMetrics = new CiiClientMetrics();
+            metrics = clientMetrics;
+        }
+        jmxName = configuration.getJmxName();
+        metricsPublished = new AtomicBoolean();
 
         //
         //  Prebuild the Communications arrays
@@ -176,16 +405,38 @@ public class CiiClient {
         MessageTypeAction = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(MtActionCommand).array();
         BytesLogin = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(MtLogin).array();
 
-        loginAcceptEvent = new Object();
+        loginAcceptLock = new ReentrantLock();
+        loginAcceptEvent = loginAcceptLock.newCondition();
+        pendingLogin = new AtomicReference<>();
+
+        if (configuration.getEventLoopGroup() != null) {
+            backEndManager = new SelectorTransport(serverAddress, this, configuration);
+        }
+        else {
+            backEndManager = new SocketClientBackEndManager(serverAddress, this, configuration);
+        }
 
-        backEndManager = new SocketClientBackEndManager(serverAddress, this);
+        if (configuration.getFramePoolEnabled()) {
+            framePool = new CiiFramePool(configuration.getFramePoolCapacity());
+        }
+        else {
+            framePool = null;
+        }
+
+        if (configuration.getDispatchThreads() > 0) {
+            frameDispatcher = new FrameDispatcher(this,
+                                                    configuration.getDispatchThreads(),
+                                                    configuration.getDispatchQueueCapacity());
+        }
+        else {
+            frameDispatcher = null;
+        }
 
 
         //
-        //  Start this last.
+        //  Its thread only starts with the first error.
         //
         asyncErrorManager = new AsyncErrorManager();
-        asyncErrorManager.start();
     }
 
 
@@ -195,11 +446,10 @@ public class CiiClient {
      **********************************************************************/
     private final Logger logger;
     private int ciiAccessLevel;
-    private volatile int connectionState;
+    private final AtomicInteger connectionState;
 
-    private final HashMap<Integer, ReceiveStatusHandler>statusCallbacks;
-    private final Object statusCallbacksLock;
-    private ReceiveStatusHandler unhandledStatusCallback;
+    private final StatusDispatchTable statusCallbacks;
+    private volatile ReceiveStatusHandler unhandledStatusCallback;
 
     private final Object asyncErrorsLock;
     private final LinkedList<AsyncErrorHandler>asyncErrorCallbacks;
@@ -216,6 +466,29 @@ public class CiiClient {
     AsyncErrorManager asyncErrorManager;
 
     private final MessagesInFlight messagesInFlight;
+    private final CommandWindow commandWindow;
+    private final long admissionTimeout;
+    private volatile boolean batchOpen;
+    private final CiiMetrics metrics;
+    private final CiiClientMetrics clientMetrics;
+    private final String jmxName;
+    private final AtomicBoolean metricsPublished;
+    private final boolean commandTracing;
+    private final CommandTracer commandTracer;
+    private final Executor completionExecutor;
+    private final long commandTimeout;
+    private final BackoffPolicy reconnectBackoff;
+    private final long connectTimeout;
+
+    /*
+     *  Bumped by disconnect(), a recovery only carries on while it's
+     *  unchanged.
+     */
+    private final AtomicInteger recoveryEpoch;
+    private volatile long disconnectedAt;
+    private volatile long lastTimeToRecover;
+    private volatile int recoveryCount;
+    private volatile FrameJournal wireCapture;
 
     private final byte[] MessageTypeGet;
     private final byte[] MessageTypeAction;
@@ -246,83 +519,248 @@ public class CiiClient {
     private final int ConnectionState_WaitingForLogin = 1;
     private final int ConnectionState_Connected = 2;
     private final int ConnectionState_DisconnectInProgress = 3;
+    private final int ConnectionState_Connecting = 4;
 
     private final int loginTimeout = 10000; // in ms
 
-    private final Object loginAcceptEvent;
+    private final ReentrantLock loginAcceptLock;
+    private final Condition loginAcceptEvent;
     private boolean loginAcceptReceived;
+    private final AtomicReference<CompletableFuture<Integer>> pendingLogin;
 
-    private final SocketClientBackEndManager backEndManager;
+    private final ClientTransport backEndManager;
+    private final FrameDispatcher frameDispatcher;
+    private final CiiFramePool framePool;
 
 
     private boolean sendMessage(byte[] type,
                                 int subcommand,
                                 byte[] data,
-                                CommandCompletion completion) {
+                                CommandCompletion completion,
+                                long timeoutInMs) {
+
+        if (connectionState.get() != ConnectionState_Connected) {
+            System.out.println("Failing SendCommand() - not connected!");
+            return false;
+        }
+
+        if (commandWindow != null) {
+
+            if (mustNotWaitForWindow()) {
+                return queueMessage(type, subcommand, data, completion, timeoutInMs);
+            }
+
+            if (!commandWindow.acquire(admissionTimeout)) {
+                System.out.println("Failing SendCommand() - command window full!");
+                return false;
+            }
+        }
+
+        return sendAdmitted(type, subcommand, data, completion, timeoutInMs);
+    }
+
+
+    /*
+     *  Waiting for a slot here would never end. The answers that free
+     *  slots are read and routed on the receive thread and the dispatch
+     *  workers, and with the connect handlers' batch open the commands
+     *  holding the window haven't even been written yet.
+     */
+    private boolean mustNotWaitForWindow() {
+        return batchOpen ||
+               backEndManager.isReceiveThread() ||
+               ((frameDispatcher != null) && frameDispatcher.isWorkerThread());
+    }
+
+
+    /*
+     *  sendMessage() where it mustn't wait, queued like the async calls
+     *  are. It goes out when a slot frees, after the batch has been
+     *  written. A queued command that never gets sent is a lost
+     *  connection to its completion.
+     */
+    private boolean queueMessage(final byte[] type,
+                                 final int subcommand,
+                                 final byte[] data,
+                                 final CommandCompletion completion,
+                                 final long timeoutInMs) {
+
+        CommandWindow.QueuedCommand queued = new CommandWindow.QueuedCommand() {
+
+            @Override
+            public void admitted() {
+                if (!sendAdmitted(type, subcommand, data, completion, timeoutInMs)) {
+                    abandoned();
+                }
+            }
+
+            @Override
+            public void abandoned() {
+                if (completion != null) {
+                    completion.receiveConnectionLost();
+                }
+            }
+        };
+
+        switch (commandWindow.acquireOrQueue(queued)) {
+
+            case CommandWindow.Admitted:
+                return sendAdmitted(type, subcommand, data, completion, timeoutInMs);
+
+            case CommandWindow.Queued:
+                return true;
+
+            default:
+                System.out.println("Failing SendCommand() - too many commands waiting!");
+                return false;
+        }
+    }
+
 
-        if (connectionState != ConnectionState_Connected) {
+    /*
+     *  The rest of sendMessage() once the window, if any, has given us a
+     *  slot. The slot goes back with the in flight one, or here if we
+     *  never get that far.
+     */
+    private boolean sendAdmitted(byte[] type,
+                                 int subcommand,
+                                 byte[] data,
+                                 CommandCompletion completion,
+                                 long timeoutInMs) {
+
+        if (connectionState.get() != ConnectionState_Connected) {
             System.out.println("Failing SendCommand() - not connected!");
+            releaseWindow();
             return false;
         }
 
         int newSequenceNumber = messagesInFlight.getSequenceNumber();
+        if (newSequenceNumber < 0) {
+            System.out.println("Failing SendCommand() - too many commands in flight!");
+            releaseWindow();
+            return false;
+        }
         completion.saveSequenceNumber(newSequenceNumber);
 
-        byte[] sequenceBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(newSequenceNumber).array();
-        byte[] subcommandBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(subcommand).array();
-        byte[] SendBuffer;
+        CommandTrace trace = null;
+        if (commandTracing) {
+            trace = new CommandTrace(commandTracer, newSequenceNumber, subcommand, System.nanoTime());
+            completion.saveTrace(trace);
+        }
 
-        //
-        //  Can't optimize this, we need a single buffer to send.
-        //  We have to do the memcpy.
-        //
-        if (data != null) {
-            SendBuffer = new byte[type.length +
-                                    sequenceBytes.length +
-                                    subcommandBytes.length +
-                                    data.length];
+        byte[] frame = FrameEncoder.encodeCommand(type, newSequenceNumber, subcommand, data);
+        int payloadLength = FrameEncoder.payloadLength(frame);
+
+        logger.Log(Logger.TypeCommand, frame, FrameEncoder.PayloadOffset, payloadLength);
+        capture(WireReplayer.TagSent, frame, FrameEncoder.PayloadOffset, payloadLength);
+
+        messagesInFlight.add(newSequenceNumber, completion, timeoutInMs, trace);
+
+        boolean Success = backEndManager.sendFrame(frame);
+
+        if (Success) {
+            metrics.commandSent(frame.length);
+            if (trace != null) {
+                trace.written(System.nanoTime());
+            }
         }
         else {
-            SendBuffer = new byte[type.length +
-                                    sequenceBytes.length +
-                                    subcommandBytes.length];
+            boolean removed = messagesInFlight.remove(newSequenceNumber);
+
+            //
+            //  Nobody answers this one, finish the trace here so the
+            //  tracer still sees it. Unless a timeout or the connection
+            //  going took the command first, then that finished it.
+            //
+            if (trace != null) {
+                long now = System.nanoTime();
+                if (removed) {
+                    trace.answered(CommandTrace.OutcomeSendFailed, now);
+                    trace.completed(now);
+                }
+                trace.written(now);
+            }
         }
 
-        int destIndex = 0;
+        return Success;
+    }
 
-        for (int i = 0; i<type.length; i++)
-            SendBuffer[destIndex++] = type[i];
 
-        for (int i = 0; i<sequenceBytes.length; i++)
-            SendBuffer[destIndex++] = sequenceBytes[i];
 
-        for (int i = 0; i<subcommandBytes.length; i++)
-            SendBuffer[destIndex++] = subcommandBytes[i];
 
-        if (data != null) {
-            for (int i = 0; i<data.length; i++){
-                SendBuffer[destIndex++] = data[i];
+    private boolean hasActionAccess() {
+        return  (ciiAccessLevel == AccessLevel_Engineering) ||
+                (ciiAccessLevel == AccessLevel_Master) ||
+                (ciiAccessLevel == AccessLevel_LocalUI);
+    }
+
+
+    private CompletableFuture<CiiResponse> sendMessageAsync(final byte[] type,
+                                                            final int subcommand,
+                                                            final byte[] data,
+                                                            Executor executor) {
+
+        final FutureCommandCompletion completion = new FutureCommandCompletion(subcommand, executor);
+
+        if (commandWindow == null) {
+            if (!sendMessage(type, subcommand, data, completion, commandTimeout)) {
+                completion.fail(new CiiCommandException("Failed sending subcommand " + subcommand));
             }
+            return completion.getFuture();
         }
 
-        logger.Log("COMMAND", SendBuffer, SendBuffer.length);
+        if (connectionState.get() != ConnectionState_Connected) {
+            completion.fail(new CiiCommandException("Failed sending subcommand " + subcommand));
+            return completion.getFuture();
+        }
 
-        messagesInFlight.add(newSequenceNumber, completion);
+        //
+        //  Window full, queue it. It goes out on whichever thread frees
+        //  the next slot, usually the reader.
+        //
+        CommandWindow.QueuedCommand queued = new CommandWindow.QueuedCommand() {
 
-        boolean Success = backEndManager.sendMessage(SendBuffer);
+            @Override
+            public void admitted() {
+                if (!sendAdmitted(type, subcommand, data, completion, commandTimeout)) {
+                    completion.fail(new CiiCommandException("Failed sending subcommand " + subcommand));
+                }
+            }
 
-        if (!Success) {
-            messagesInFlight.remove(newSequenceNumber);
+            @Override
+            public void abandoned() {
+                completion.receiveConnectionLost();
+            }
+        };
+
+        switch (commandWindow.acquireOrQueue(queued)) {
+
+            case CommandWindow.Admitted:
+                queued.admitted();
+                break;
+
+            case CommandWindow.Queued:
+                break;
+
+            default:
+                completion.fail(new CiiCommandException("Failed sending subcommand " + subcommand
+                                                        + " - too many commands waiting"));
+                break;
         }
 
-        return Success;
+        return completion.getFuture();
     }
 
 
+    private void releaseWindow() {
+        if (commandWindow != null) {
+            commandWindow.release();
+        }
+    }
 
 
-    private boolean login(int requestedAccess) {
-        
+    private byte[] buildLoginBuffer(int requestedAccess) {
+
         byte[] LoginBuffer;
         byte[] MyAddress;
         byte[] Access;
@@ -363,7 +801,131 @@ public class CiiClient {
             LoginBuffer[loginBufferIdx++] = MachineName[i];
         }
 
-        logger.Log("LOGIN", LoginBuffer, LoginBuffer.length);
+        logger.Log(Logger.TypeLogin, LoginBuffer, LoginBuffer.length);
+        capture(WireReplayer.TagSent, LoginBuffer, 0, LoginBuffer.length);
+
+        return LoginBuffer;
+    }
+
+
+    /**
+     *  Second half of connectAsync(), on the loop thread that finished the
+     *  TCP connect. Sends the LOGN, the ACPT or the deadline finishes it.
+     */
+    private void startLogin(int requestedAccess, final CompletableFuture<Integer> result, long deadline) {
+
+        connectionState.set(ConnectionState_WaitingForLogin);
+        pendingLogin.set(result);
+
+        byte[] LoginBuffer = buildLoginBuffer(requestedAccess);
+
+        if (!backEndManager.sendMessage(LoginBuffer)) {
+            asyncErrorManager.sendAsyncError("Failed Login!");
+            failLogin(result, "Failed Login!", true);
+            return;
+        }
+
+        final long remaining = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+
+        CiiEventLoopGroup.connectLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                failLogin(result, "Login Accept failed! " + remaining + " ms", true);
+            }
+        }, remaining);
+    }
+
+
+    /**
+     *  ACPT for a connectAsync(), on the reader thread.
+     */
+    private void completeLogin(CompletableFuture<Integer> result) {
+
+        connectionState.set(ConnectionState_Connected);
+
+        publishMetrics();
+
+        //
+        //  The handlers' refreshes all go out together. Any past the
+        //  window queue, and follow as the first answers come in.
+        //
+        backEndManager.beginBatch();
+        batchOpen = true;
+        try {
+            fireConnected();
+        } finally {
+            batchOpen = false;
+            backEndManager.endBatch();
+        }
+
+        result.complete(ciiAccessLevel);
+    }
+
+
+    /**
+     *  Does nothing if the ACPT, or another failure, got there first.
+     */
+    private void failLogin(CompletableFuture<Integer> result, String reason, boolean closeTransport) {
+
+        if (!pendingLogin.compareAndSet(result, null)) {
+            return;
+        }
+
+        if (closeTransport) {
+            backEndManager.disconnect();
+        }
+
+        connectionState.set(ConnectionState_NotConnected);
+
+        result.completeExceptionally(new CiiConnectException(reason));
+    }
+
+
+    /*
+     *  On the first connect rather than in the constructor, attach and
+     *  register hand this client to the JMX server's threads, it has to be
+     *  fully built by then. Connected, so a failure reaches the async
+     *  error handlers.
+     */
+    private void publishMetrics() {
+
+        if ((clientMetrics == null) || !metricsPublished.compareAndSet(false, true)) {
+            return;
+        }
+
+        clientMetrics.attach(this);
+
+        if ((jmxName != null) && !clientMetrics.register(jmxName)) {
+            asyncErrorManager.sendAsyncError("Metrics JMX registration as " + jmxName + " failed");
+        }
+    }
+
+
+    private void fireConnected() {
+
+        synchronized(connectCallbackLock){
+
+            ListIterator<ConnectHandler>iterator;
+            iterator = connectCallbacks.listIterator();
+
+            while(iterator.hasNext()){
+                ConnectHandler callback = iterator.next();
+                callback.connected();
+            }
+        }
+    }
+
+
+    private boolean login(int requestedAccess) {
+
+        byte[] LoginBuffer = buildLoginBuffer(requestedAccess);
+
+        loginAcceptLock.lock();
+        try {
+            loginAcceptReceived = false;
+        } finally {
+            loginAcceptLock.unlock();
+        }
 
         boolean Success = backEndManager.sendMessage(LoginBuffer);
 
@@ -371,9 +933,16 @@ public class CiiClient {
             asyncErrorManager.sendAsyncError("Failed Login!");
         }
         else {
-            synchronized(loginAcceptEvent){
+            loginAcceptLock.lock();
+            try {
                 try {
-                    loginAcceptEvent.wait(loginTimeout);
+                    //
+                    //  The ACPT can beat us here, only wait if it hasn't.
+                    //
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(loginTimeout);
+                    while (!loginAcceptReceived && (remaining > 0)) {
+                        remaining = loginAcceptEvent.awaitNanos(remaining);
+                    }
                     if (loginAcceptReceived){
                         Success = true;
                     }
@@ -382,11 +951,13 @@ public class CiiClient {
                         Success = false;
                     }
                 } catch (InterruptedException ex) {
-                    String err = "loginAcceptEvent.wait failed with " + ex;
+                    String err = "loginAcceptEvent.await failed with " + ex;
                     asyncErrorManager.sendAsyncError(err);
                     System.out.println(err);
                     Success = false;
                 }
+            } finally {
+                loginAcceptLock.unlock();
             }
         }
         return Success;
@@ -400,10 +971,18 @@ public class CiiClient {
 
         messagesInFlight.clear();
 
-        if (connectionState != ConnectionState_Connected) {
+        CompletableFuture<Integer> pending = pendingLogin.get();
+        if (pending != null) {
+            //
+            //  The transport is already down, and we may be its reader.
+            //
+            failLogin(pending, "Connection lost during login", false);
+        }
+
+        if (!connectionState.compareAndSet(ConnectionState_Connected, ConnectionState_DisconnectInProgress)) {
             //
             //  If we haven't established a good connection, DON'T try
-            //  to recover!!!
+            //  to recover!!! Nor if a disconnect() got there first.
             //
             return;
         }
@@ -419,25 +998,69 @@ public class CiiClient {
             }
         }
 
-        connectionState = ConnectionState_NotConnected;
+        connectionState.set(ConnectionState_NotConnected);
 
-        boolean Success;
+        disconnectedAt = System.nanoTime();
 
-        do
-        {
-            System.out.println("CiiClient.AsyncUnexpectedDisconnectHandler waiting ");
+        scheduleReconnect(recoveryEpoch.get(), 0);
 
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                System.out.println("Failed sleeping! " + ex);
-            }
+        System.out.println("---CiiClient.BackendManagerDisconnectHandler()");
+    }
 
-            Success = connect(ciiAccessLevel);
 
-        } while (!Success);
+    /**
+     *  Recovery runs on the shared connect loop and nothing sleeps, so the
+     *  reader, or event loop, that noticed the drop is free straight away.
+     *  Each attempt is a connectAsync(), a failed one schedules the next
+     *  after the backoff delay.
+     */
+    private void scheduleReconnect(final int epoch, final int attempt) {
 
-        System.out.println("---CiiClient.BackendManagerDisconnectHandler()");
+        long delay = reconnectBackoff.getDelay(attempt);
+
+        System.out.println("CiiClient.AsyncUnexpectedDisconnectHandler waiting " + delay + " ms");
+
+        CiiEventLoopGroup.connectLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+
+                if ((epoch != recoveryEpoch.get()) || isConnected()) {
+                    return;
+                }
+
+                connectAsync(ciiAccessLevel, connectTimeout).whenComplete(new BiConsumer<Integer, Throwable>() {
+                    @Override
+                    public void accept(Integer access, Throwable failure) {
+
+                        if (epoch != recoveryEpoch.get()) {
+                            //
+                            //  disconnect() was called while we connected.
+                            //
+                            if (failure == null) {
+                                CiiEventLoopGroup.connectLoop().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        disconnect();
+                                    }
+                                });
+                            }
+                            return;
+                        }
+
+                        if (failure != null) {
+                            scheduleReconnect(epoch, attempt + 1);
+                            return;
+                        }
+
+                        lastTimeToRecover = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - disconnectedAt);
+                        recoveryCount++;
+                        metrics.reconnected(lastTimeToRecover);
+
+                        System.out.println("CiiClient recovered in " + lastTimeToRecover + " ms");
+                    }
+                });
+            }
+        }, delay);
     }
 
 
@@ -456,15 +1079,23 @@ public class CiiClient {
         }
 
         private final BlockingQueue<String>asyncErrors;
+        private boolean started;
 
         public void sendAsyncError(String errorDescription) {
-            logger.Log(errorDescription, null, 0);
+            logger.Log(errorDescription);
+            metrics.asyncError();
 
             //
             //  If we aren't connected, filter out superfluous errors.
             //
-            if ((connectionState == ConnectionState_Connected) ||
-                (connectionState == ConnectionState_WaitingForLogin)) {
+            if ((connectionState.get() == ConnectionState_Connected) ||
+                (connectionState.get() == ConnectionState_WaitingForLogin)) {
+                synchronized(this){
+                    if (!started){
+                        started = true;
+                        start();
+                    }
+                }
                 try {
                     asyncErrors.put(errorDescription);
                 } catch (InterruptedException ex) {
@@ -505,16 +1136,155 @@ public class CiiClient {
     }
 
 
+    /**
+     *  Package access for the benchmarks, which route answers to commands
+     *  they put in flight themselves.
+     */
+    MessagesInFlight getMessagesInFlight() {
+        return messagesInFlight;
+    }
+
+
+    /**
+     *  Every frame the transport reads comes through here, on the reader
+     *  thread. Either routes it right away or hands it to the dispatch
+     *  workers.
+     */
+    void frameReceived(byte[] buffer, int offset, int dataLength)
+    {
+        boolean dispatch = false;
+        int key = 0;
+
+        capture(WireReplayer.TagReceived, buffer, offset, dataLength);
+
+        if ((frameDispatcher != null) && (dataLength >= 8)) {
+
+            ByteBuffer bb = ByteBuffer.wrap(buffer, offset, dataLength).order(ByteOrder.LITTLE_ENDIAN);
+
+            int type = bb.getInt();
+
+            switch (type)
+            {
+                //
+                //  The substatus for STAT, the sequence number for the
+                //  rest. Either way it's the next int, and it keeps every
+                //  stream in order on its own worker.
+                //
+                case MtStatus:
+                case MtAck:
+                case MtNak:
+                case MtResponse:
+                    dispatch = true;
+                    key = bb.getInt();
+                    break;
+
+                //
+                //  ACPT wakes up login(), don't queue that behind anything.
+                //
+                default:
+                    break;
+            }
+        }
+
+        if (framePool == null) {
+            if (dispatch) {
+                frameDispatcher.dispatch(key, buffer, offset, dataLength);
+            }
+            else {
+                routeReceivedMessage(buffer, offset, dataLength);
+            }
+            return;
+        }
+
+        //
+        //  Pooled, the frame gets its own buffer that lives as long as
+        //  somebody holds a reference to it.
+        //
+        CiiFrame frame = framePool.acquire(buffer, offset, dataLength);
+
+        if (dispatch) {
+            frameDispatcher.dispatch(key, frame);
+        }
+        else {
+            routeFrame(frame);
+        }
+    }
+
+
+    private void capture(int tag, byte[] buffer, int offset, int dataLength)
+    {
+        FrameJournal journal = wireCapture;
+
+        if (journal != null) {
+            journal.append(tag, System.nanoTime(), buffer, offset, dataLength);
+        }
+    }
+
+
+    /**
+     *  Routes a pooled frame and drops the reference we were handed.
+     */
+    void routeFrame(CiiFrame frame)
+    {
+        try {
+            route(frame.getBuffer(), 0, frame.getLength(), frame, false);
+        } finally {
+            frame.release();
+        }
+    }
+
+
     public void routeReceivedMessage(byte[] buffer, int dataLength)
+    {
+        routeReceivedMessage(buffer, 0, dataLength);
+    }
+
+
+    /**
+     *  Same as above, for a message that starts part way into the buffer.
+     *  The bulk reader hands us frames in place this way.
+     */
+    public void routeReceivedMessage(byte[] buffer, int offset, int dataLength)
+    {
+        route(buffer, offset, dataLength, null, false);
+    }
+
+
+    /**
+     *  For WireReplayer, into a client that isn't connected. STATs go to
+     *  the handlers anyway, there's no login for them to be early for.
+     *  Nothing else is routed, it would reach the in flight commands or a
+     *  login under way.
+     */
+    void routeReplayed(byte[] buffer, int offset, int dataLength)
+    {
+        if ((dataLength < 4) ||
+            (ByteBuffer.wrap(buffer, offset, dataLength).order(ByteOrder.LITTLE_ENDIAN).getInt() != MtStatus)) {
+            return;
+        }
+
+        route(buffer, offset, dataLength, null, true);
+    }
+
+
+    /**
+     *  @param frame The pooled frame behind buffer, or null.
+     *  @param replayed From a WireReplayer, not the socket.
+     */
+    private void route(byte[] buffer, int offset, int dataLength, CiiFrame frame, boolean replayed)
     {
         int sequenceNumber;
         int statusCode;
         int subcommand;
         MessageTracker messageTracker;
+        boolean ackReceived;
         int substatus;
         CommandCompletion completion;
+        long sentAt;
+        long answeredAt;
+        CommandTrace trace;
 
-        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, dataLength).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, dataLength).order(ByteOrder.LITTLE_ENDIAN);
 
         int type = bb.getInt();
 
@@ -522,13 +1292,22 @@ public class CiiClient {
         {
             case MtAccept:
 
-                logger.Log("ACCEPT", buffer, dataLength);
+                logger.Log(Logger.TypeAccept, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameAccept, dataLength);
                 
                 ciiAccessLevel = bb.getInt();
 
-                synchronized(loginAcceptEvent){
+                loginAcceptLock.lock();
+                try {
                     loginAcceptReceived = true;
-                    loginAcceptEvent.notify();
+                    loginAcceptEvent.signal();
+                } finally {
+                    loginAcceptLock.unlock();
+                }
+
+                CompletableFuture<Integer> pending = pendingLogin.getAndSet(null);
+                if (pending != null) {
+                    completeLogin(pending);
                 }
 
                 break;
@@ -536,7 +1315,8 @@ public class CiiClient {
 
             case MtAck:
                 
-                logger.Log("ACK", buffer, dataLength);
+                logger.Log(Logger.TypeAck, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameAck, dataLength);
                 sequenceNumber = bb.getInt();
 
                 messageTracker = messagesInFlight.get(sequenceNumber);
@@ -546,20 +1326,32 @@ public class CiiClient {
                     break;
                 }
 
-                if (messageTracker.getAckReceived()) {
+                //
+                //  Read this before recording the ACK, the slot is only
+                //  guaranteed to still be ours if that CAS succeeds.
+                //
+                completion = messageTracker.getCommandCompletion();
+                trace = messageTracker.getTrace();
+
+                if (!messageTracker.setAckReceived(sequenceNumber)) {
                     //
                     //  Error!  Double ACK!
                     //
-                    messagesInFlight.remove(sequenceNumber);
                     asyncErrorManager.sendAsyncError("Protocol Failure - Double ACK");
+
+                    messageTracker = messagesInFlight.claim(sequenceNumber);
+                    if (messageTracker != null) {
+                        completion = messageTracker.getCommandCompletion();
+                        trace = messageTracker.getTrace();
+                        messageTracker.release();
+                        protocolError(completion, trace, "Protocol Failure - Double ACK");
+                    }
                     break;
                 }
-                else {
-                    messageTracker.setAckReceived();
-                }
-
 
-                completion = messageTracker.getCommandCompletion();
+                if (trace != null) {
+                    trace.acked(System.nanoTime());
+                }
 
                 if (completion != null) {
                     completion.receiveAck();
@@ -573,27 +1365,39 @@ public class CiiClient {
 
             case MtNak:
                 
-                logger.Log("NAK", buffer, dataLength);
+                logger.Log(Logger.TypeNak, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameNak, dataLength);
                 sequenceNumber = bb.getInt();
                 statusCode = bb.getInt();
 
-                messageTracker = messagesInFlight.get(sequenceNumber);
+                messageTracker = messagesInFlight.claim(sequenceNumber);
                 if (messageTracker == null) {
                     asyncErrorManager.sendAsyncError("Protocol Failure - Unexpected NAK");
                     break;
                 }
 
-                messagesInFlight.remove(sequenceNumber);
+                completion = messageTracker.getCommandCompletion();
+                ackReceived = messageTracker.wasAckedWhenClaimed();
+                sentAt = messageTracker.getSentAt();
+                trace = messageTracker.getTrace();
+                messageTracker.release();
 
-                if (messageTracker.getAckReceived()) {
+                if (ackReceived) {
                     //
                     //  Error!  ACK / NAK!
                     //
                     asyncErrorManager.sendAsyncError("Protocol Failure - ACK - NAK");
+                    protocolError(completion, trace, "Protocol Failure - ACK - NAK");
                     break;
                 }
 
-                completion = messageTracker.getCommandCompletion();
+                answeredAt = System.nanoTime();
+                metrics.nakReceived(statusCode);
+                metrics.commandAnswered(answeredAt - sentAt);
+
+                if (trace != null) {
+                    trace.answered(CommandTrace.OutcomeNak, answeredAt);
+                }
 
                 if (completion != null) {
                     completion.receiveNak(statusCode);
@@ -603,75 +1407,113 @@ public class CiiClient {
                             + sequenceNumber);
                 }
 
+                if (trace != null) {
+                    trace.completed(System.nanoTime());
+                }
+
                 break;
 
 
             case MtResponse:
                 
-                logger.Log("RSP", buffer, dataLength);
+                logger.Log(Logger.TypeResponse, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameResponse, dataLength);
                 sequenceNumber = bb.getInt();
                 subcommand = bb.getInt();
                 statusCode = bb.getInt();
 
-                messageTracker = messagesInFlight.get(sequenceNumber);
+                messageTracker = messagesInFlight.claim(sequenceNumber);
                 if (messageTracker == null) {
                     asyncErrorManager.sendAsyncError("Protocol Failure - Unexpected RSP");
                     break;
                 }
 
-                messagesInFlight.remove(sequenceNumber);
+                completion = messageTracker.getCommandCompletion();
+                ackReceived = messageTracker.wasAckedWhenClaimed();
+                sentAt = messageTracker.getSentAt();
+                trace = messageTracker.getTrace();
+                messageTracker.release();
 
-                if (!messageTracker.getAckReceived()) {
+                if (!ackReceived) {
                     //
                     //  Error!  No ACK!
                     //
                     asyncErrorManager.sendAsyncError("Protocol Failure - Missing ACK");
+                    protocolError(completion, trace, "Protocol Failure - Missing ACK");
                     break;
                 }
+
+                answeredAt = System.nanoTime();
+                metrics.commandAnswered(answeredAt - sentAt);
+
+                if (trace != null) {
+                    trace.answered(CommandTrace.OutcomeResponse, answeredAt);
+                }
                 
-                completion = messageTracker.getCommandCompletion();
+                if ((frame != null) && (completion instanceof CommandFrameCompletion)) {
 
-                if (completion != null) {
+                    frame.setPayloadOffset(16);
+                    ((CommandFrameCompletion)completion).receiveResponse(
+                                                        subcommand,
+                                                        statusCode,
+                                                        frame);
+                }
+                else if (completion != null) {
 
                    completion.receiveResponse(   subcommand,
                                                         statusCode,
                                                         buffer,
-                                                        16,
+                                                        offset + 16,
                                                         dataLength - 16);
                 }
                 else {
                     System.out.println("Discarding RSP for Sequence # " + sequenceNumber);
                 }
 
+                if (trace != null) {
+                    trace.completed(System.nanoTime());
+                }
+
                 break;
 
 
             case MtStatus:
 
-                logger.Log("STAT", buffer, dataLength);
+                logger.Log(Logger.TypeStatus, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameStatus, dataLength);
 
                 substatus = bb.getInt();
 
-                if (connectionState != ConnectionState_Connected) {
+                if (!replayed && (connectionState.get() != ConnectionState_Connected)) {
                     System.out.println("Throwing away early status message");
                     break;
                 }
 
-                synchronized(statusCallbacksLock) {
-
-                    if (dataLength < 8){
-                        break;
-                    }
+                if (dataLength < 8){
+                    break;
+                }
 
-                    ReceiveStatusHandler handler = statusCallbacks.get(substatus);
+                ReceiveStatusHandler[] handlers = statusCallbacks.get(substatus);
 
-                    if (handler != null) {
-                        handler.receiveStatus(
-                                substatus, buffer, 8, dataLength - 8);
+                if (handlers != null) {
+                    if (frame != null) {
+                        frame.setPayloadOffset(8);
+                    }
+                    for (ReceiveStatusHandler handler : handlers) {
+                        if ((frame != null) && (handler instanceof ReceiveStatusFrameHandler)) {
+                            ((ReceiveStatusFrameHandler)handler).receiveStatus(substatus, frame);
+                        }
+                        else {
+                            handler.receiveStatus(
+                                    substatus, buffer, offset + 8, dataLength - 8);
+                        }
                     }
-                    else if (unhandledStatusCallback != null) {
-                        unhandledStatusCallback.receiveStatus(
-                                substatus, buffer, 8, dataLength - 8);
+                }
+                else {
+                    ReceiveStatusHandler unhandled = unhandledStatusCallback;
+                    if (unhandled != null) {
+                        unhandled.receiveStatus(
+                                substatus, buffer, offset + 8, dataLength - 8);
                     }
                 }
                 break;
@@ -681,13 +1523,39 @@ public class CiiClient {
             //  This is an asymetric protocol between client and server.
             //
             default:
-                logger.Log("UNKNOWN", buffer, dataLength);
+                logger.Log(Logger.TypeUnknown, buffer, offset, dataLength);
+                metrics.frameReceived(CiiMetrics.FrameUnknown, dataLength);
                 asyncErrorManager.sendAsyncError("Unknown MessageType! " + type);
                 break;
         }
     }
 
 
+    /**
+     *  The command broke the protocol and is out of flight, let its
+     *  completion know rather than leave it waiting forever, and finish
+     *  its trace.
+     */
+    private void protocolError(CommandCompletion completion, CommandTrace trace, String reason)
+    {
+        if (trace != null) {
+            trace.answered(CommandTrace.OutcomeProtocolError, System.nanoTime());
+        }
+
+        if (completion != null) {
+            try {
+                completion.receiveProtocolError(reason);
+            } catch (RuntimeException ex) {
+                System.out.println("CiiClient completion threw " + ex);
+            }
+        }
+
+        if (trace != null) {
+            trace.completed(System.nanoTime());
+        }
+    }
+
+
 
 
 }
@@ -0,0 +1,391 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tunables for a CiiClient. Set these up before handing the object to the
+ * CiiClient constructor, changes made afterwards are not picked up.
+ */
+public class CiiClientConfiguration {
+
+    private ReaderMode readerMode;
+    private int port;
+    private boolean tcpNoDelay;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private Executor completionExecutor;
+    private long commandTimeout;
+    private int maxCommandsInFlight;
+    private int maxOutstandingCommands;
+    private long admissionTimeout;
+    private int maxQueuedCommands;
+    private int dispatchThreads;
+    private int dispatchQueueCapacity;
+    private boolean framePoolEnabled;
+    private int framePoolCapacity;
+    private CiiEventLoopGroup eventLoopGroup;
+    private ExecutionMode executionMode;
+    private BackoffPolicy reconnectBackoff;
+    private long connectTimeout;
+    private String logDirectory;
+    private int logCapacity;
+    private LogDropPolicy logDropPolicy;
+    private CiiMetrics metrics;
+    private String jmxName;
+    private boolean commandTracing;
+    private CommandTracer commandTracer;
+
+
+    public CiiClientConfiguration() {
+        readerMode = ReaderMode.FrameAtATime;
+        port = 8080;
+        tcpNoDelay = true;
+        sendBufferSize = 0;
+        receiveBufferSize = 0;
+        completionExecutor = null;
+        commandTimeout = 0;
+        maxCommandsInFlight = 1024;
+        maxOutstandingCommands = 0;
+        admissionTimeout = 0;
+        maxQueuedCommands = 1024;
+        dispatchThreads = 0;
+        dispatchQueueCapacity = 1024;
+        framePoolEnabled = false;
+        framePoolCapacity = 256;
+        eventLoopGroup = null;
+        executionMode = ExecutionMode.PlatformThreads;
+        reconnectBackoff = new BackoffPolicy(1000, 30000, 2.0, 0.5);
+        connectTimeout = 10000;
+        logDirectory = null;
+        logCapacity = 8192;
+        logDropPolicy = LogDropPolicy.DropNewest;
+        metrics = null;
+        jmxName = null;
+        commandTracing = false;
+        commandTracer = null;
+    }
+
+
+    public ReaderMode getReaderMode() {
+        return readerMode;
+    }
+
+    public void setReaderMode(ReaderMode readerMode) {
+        this.readerMode = readerMode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     *  Every frame goes out in a single write, so Nagle only adds latency.
+     *  Defaults to true.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     *  SO_SNDBUF in bytes, 0 leaves the OS default alone.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     *  SO_RCVBUF in bytes, 0 leaves the OS default alone.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public Executor getCompletionExecutor() {
+        return completionExecutor;
+    }
+
+    /**
+     *  Where the futures from the CiiClient async calls are completed.
+     *  The default, null, completes them on the reader thread, so keep
+     *  any dependent stages short or supply an executor here.
+     */
+    public void setCompletionExecutor(Executor completionExecutor) {
+        this.completionExecutor = completionExecutor;
+    }
+
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     *  Deadline in ms for commands sent without an explicit timeout,
+     *  including the async calls. 0, the default, waits forever.
+     */
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    public int getMaxCommandsInFlight() {
+        return maxCommandsInFlight;
+    }
+
+    /**
+     *  Size of the in-flight table, rounded up to a power of two. Sends
+     *  fail while this many commands are outstanding. Defaults to 1024.
+     */
+    public void setMaxCommandsInFlight(int maxCommandsInFlight) {
+        this.maxCommandsInFlight = maxCommandsInFlight;
+    }
+
+    public int getMaxOutstandingCommands() {
+        return maxOutstandingCommands;
+    }
+
+    /**
+     *  Window on how many commands are outstanding at once, see
+     *  CommandWindow. Sends past it wait rather than fail, sendGet() and
+     *  sendAction() for up to the admission timeout, the async calls in a
+     *  queue. No more than maxCommandsInFlight. 0, the default, is no
+     *  window.
+     */
+    public void setMaxOutstandingCommands(int maxOutstandingCommands) {
+        this.maxOutstandingCommands = maxOutstandingCommands;
+    }
+
+    public long getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /**
+     *  How long sendGet() and sendAction() wait for the window before
+     *  failing, in ms. 0, the default, fails straight away.
+     *
+     *  From a connect handler, or a completion or status handler on the
+     *  reader thread or a dispatch worker, they don't wait. Those threads
+     *  free the slots, so the command queues like an async one.
+     */
+    public void setAdmissionTimeout(long admissionTimeout) {
+        this.admissionTimeout = admissionTimeout;
+    }
+
+    public int getMaxQueuedCommands() {
+        return maxQueuedCommands;
+    }
+
+    /**
+     *  Most async commands that can queue for the window, more fail with
+     *  a CiiCommandException. Defaults to 1024.
+     */
+    public void setMaxQueuedCommands(int maxQueuedCommands) {
+        this.maxQueuedCommands = maxQueuedCommands;
+    }
+
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    /**
+     *  Number of worker threads that run the status handlers and command
+     *  completions instead of the reader thread. Frames are spread across
+     *  them by substatus (STAT) or sequence number (ACK / NAK / RSP), so
+     *  each stream stays in order. 0, the default, runs everything on the
+     *  reader thread like before.
+     */
+    public void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    /**
+     *  Frames each dispatch worker can have queued before the reader
+     *  waits on it. Defaults to 1024.
+     */
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public boolean getFramePoolEnabled() {
+        return framePoolEnabled;
+    }
+
+    /**
+     *  Give every received message its own pooled, reference counted
+     *  buffer instead of routing it out of the shared read buffer. The
+     *  frame handler interfaces can then hold on to a message without
+     *  copying it, and the dispatch workers take frames by reference.
+     *  Off by default.
+     */
+    public void setFramePoolEnabled(boolean framePoolEnabled) {
+        this.framePoolEnabled = framePoolEnabled;
+    }
+
+    public int getFramePoolCapacity() {
+        return framePoolCapacity;
+    }
+
+    /**
+     *  Free buffers the pool keeps per size class. Defaults to 256.
+     */
+    public void setFramePoolCapacity(int framePoolCapacity) {
+        this.framePoolCapacity = framePoolCapacity;
+    }
+
+    public CiiEventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     *  Read on a shared selector thread from this group instead of a
+     *  reader thread of our own. Share one group between all the clients
+     *  of a process. readerMode is ignored when this is set. The default,
+     *  null, keeps the blocking reader.
+     */
+    public void setEventLoopGroup(CiiEventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     *  VirtualThreads runs the blocking reader on a virtual thread, needs
+     *  Java 21, check with isAvailable(). The default is PlatformThreads.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public BackoffPolicy getReconnectBackoff() {
+        return reconnectBackoff;
+    }
+
+    /**
+     *  Delays between attempts to get back a connection that dropped.
+     *  Defaults to 1 s doubling up to 30 s, with up to half of each taken
+     *  off at random. BackoffPolicy.fixed(1000) is the old behaviour. Each
+     *  attempt gives up after the connect timeout.
+     */
+    public void setReconnectBackoff(BackoffPolicy reconnectBackoff) {
+        this.reconnectBackoff = reconnectBackoff;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     *  How long connect() waits for the TCP connect, in ms, before giving
+     *  up on the address. Defaults to 10000. Reconnects after a drop use
+     *  it too, connectAsync() takes its own.
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     *  Where the binary wire log goes, one file per process, render it with
+     *  LogRenderer. The default, null, logs nothing unless /tmp/CIILOG
+     *  exists. The log is shared, the first client made with it on sets
+     *  the directory, capacity and drop policy for all of them.
+     */
+    public void setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public int getLogCapacity() {
+        return logCapacity;
+    }
+
+    /**
+     *  Records the log can hold before the writer catches up, rounded up
+     *  to a power of two. Each takes about half a KB. Defaults to 8192.
+     */
+    public void setLogCapacity(int logCapacity) {
+        this.logCapacity = logCapacity;
+    }
+
+    public LogDropPolicy getLogDropPolicy() {
+        return logDropPolicy;
+    }
+
+    public void setLogDropPolicy(LogDropPolicy logDropPolicy) {
+        this.logDropPolicy = logDropPolicy;
+    }
+
+    public CiiMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     *  Where the client reports frames, commands, NAKs and round trips.
+     *  The default, null, gives each client a CiiClientMetrics of its own.
+     *  Don't share one between clients.
+     */
+    public void setMetrics(CiiMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     *  Registers the client's CiiClientMetrics over JMX under this name,
+     *  see CiiClientMetrics.register(), once it first connects, until
+     *  CiiClient.close(). The default, null, doesn't. Has no effect with
+     *  metrics of your own.
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    public boolean getCommandTracing() {
+        return commandTracing;
+    }
+
+    /**
+     *  Stamps every command's encode, write, ACK, answer and completion
+     *  and hands the completion a CommandTrace through saveTrace(). Costs
+     *  a small object and a few nanoTime() calls a command. Defaults to
+     *  false, setting a tracer turns it on.
+     */
+    public void setCommandTracing(boolean commandTracing) {
+        this.commandTracing = commandTracing;
+    }
+
+    public CommandTracer getCommandTracer() {
+        return commandTracer;
+    }
+
+    /**
+     *  Gets every command's CommandTrace once it's complete. The default,
+     *  null, doesn't.
+     */
+    public void setCommandTracer(CommandTracer commandTracer) {
+        this.commandTracer = commandTracer;
+    }
+}
@@ -0,0 +1,317 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * The metrics a CiiClient keeps unless told otherwise. Counters are
+ * LongAdders, striped so the reader thread and senders don't fight over
+ * a cache line, cheap enough to leave on. Read them here, from
+ * CiiClient.getMetrics(), or over JMX once registered.
+ */
+public class CiiClientMetrics implements CiiMetrics, CiiClientMetricsMXBean {
+
+    private static final String[] FrameTypeNames = { "ACPT", "ACK", "NAK", "RSP", "STAT", "Unknown" };
+    private static final CiiMsgStatus[] Statuses = CiiMsgStatus.values();
+
+    private final LongAdder[] framesReceived;
+    private final LongAdder[] bytesReceived;
+    private final LongAdder commandsSent;
+    private final LongAdder bytesSent;
+    private final LongAdder[] naksByStatus;
+    private final LongAdder asyncErrors;
+    private final LongAdder reconnects;
+    private final LatencyHistogram roundTrips;
+
+    private volatile long lastTimeToRecover;
+    private volatile CiiClient ciiClient;
+    private ObjectName objectName;
+
+
+    public CiiClientMetrics() {
+
+        framesReceived = newAdders(FrameTypeCount);
+        bytesReceived = newAdders(FrameTypeCount);
+        commandsSent = new LongAdder();
+        bytesSent = new LongAdder();
+
+        //
+        //  One per CiiMsgStatus, and one for anything else.
+        //
+        naksByStatus = newAdders(Statuses.length + 1);
+
+        asyncErrors = new LongAdder();
+        reconnects = new LongAdder();
+        roundTrips = new LatencyHistogram();
+        lastTimeToRecover = -1;
+    }
+
+
+    /**
+     * Registers with the platform MBean server as
+     * com.tainstruments.mercury:type=CiiClient,name=name.
+     * @return false if it couldn't be, the name's taken say.
+     */
+    public synchronized boolean register(String name) {
+
+        unregister();
+
+        try {
+            ObjectName candidate = new ObjectName("com.tainstruments.mercury:type=CiiClient,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+            objectName = candidate;
+            return true;
+        } catch (JMException ex) {
+            System.out.println("CiiClientMetrics register " + name + " failed " + ex);
+            return false;
+        }
+    }
+
+
+    public synchronized void unregister() {
+
+        if (objectName == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException ex) {
+            System.out.println("CiiClientMetrics unregister failed " + ex);
+        }
+
+        objectName = null;
+    }
+
+
+    /**
+     *  The client the in flight count and window come from.
+     */
+    void attach(CiiClient ciiClient) {
+        this.ciiClient = ciiClient;
+    }
+
+
+    /*
+     *  CiiMetrics
+     */
+    @Override
+    public void frameReceived(int frameType, int payloadLength) {
+        framesReceived[frameType].increment();
+        bytesReceived[frameType].add(payloadLength);
+    }
+
+    @Override
+    public void commandSent(int frameLength) {
+        commandsSent.increment();
+        bytesSent.add(frameLength);
+    }
+
+    @Override
+    public void nakReceived(int statusCode) {
+        naksByStatus[statusIndex(statusCode)].increment();
+    }
+
+    @Override
+    public void commandAnswered(long roundTripInNs) {
+        roundTrips.record(roundTripInNs);
+    }
+
+    @Override
+    public void asyncError() {
+        asyncErrors.increment();
+    }
+
+    @Override
+    public void reconnected(long timeToRecoverInMs) {
+        reconnects.increment();
+        lastTimeToRecover = timeToRecoverInMs;
+    }
+
+
+    /*
+     *  CiiClientMetricsMXBean
+     */
+    @Override
+    public Map<String, Long> getFramesReceived() {
+        return byFrameType(framesReceived);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceived() {
+        return byFrameType(bytesReceived);
+    }
+
+    /**
+     * @param frameType One of the CiiMetrics.FrameXxx constants.
+     */
+    public long getFramesReceived(int frameType) {
+        return framesReceived[frameType].sum();
+    }
+
+    public long getBytesReceived(int frameType) {
+        return bytesReceived[frameType].sum();
+    }
+
+    @Override
+    public long getCommandsSent() {
+        return commandsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public int getCommandsInFlight() {
+        CiiClient client = ciiClient;
+        return (client == null) ? 0 : client.getCommandsInFlight();
+    }
+
+    @Override
+    public int getCommandsWaiting() {
+        CommandWindow window = commandWindow();
+        return (window == null) ? 0 : window.getQueueDepth() + window.getBlockedSenders();
+    }
+
+    @Override
+    public int getCommandQueueDepth() {
+        CommandWindow window = commandWindow();
+        return (window == null) ? 0 : window.getQueueDepth();
+    }
+
+    @Override
+    public int getMaxCommandQueueDepth() {
+        CommandWindow window = commandWindow();
+        return (window == null) ? 0 : window.getMaxQueueDepth();
+    }
+
+    @Override
+    public long getAdmissionRejects() {
+        CommandWindow window = commandWindow();
+        return (window == null) ? 0 : window.getRejectedCount();
+    }
+
+    @Override
+    public Map<String, Long> getNaksByStatus() {
+        Map<String, Long> naks = new LinkedHashMap<>();
+        for (int i = 0; i < Statuses.length; i++) {
+            naks.put(Statuses[i].name(), naksByStatus[i].sum());
+        }
+        naks.put("Other", naksByStatus[Statuses.length].sum());
+        return naks;
+    }
+
+    public long getNakCount(CiiMsgStatus status) {
+        return naksByStatus[status.ordinal()].sum();
+    }
+
+    @Override
+    public long getAsyncErrors() {
+        return asyncErrors.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getLastTimeToRecover() {
+        return lastTimeToRecover;
+    }
+
+    /**
+     * Send to RSP or NAK, ns.
+     */
+    public LatencyHistogram getRoundTrips() {
+        return roundTrips;
+    }
+
+    @Override
+    public long getRoundTripCount() {
+        return roundTrips.getTotalCount();
+    }
+
+    @Override
+    public double getRoundTripMean() {
+        return roundTrips.getMean() / 1000;
+    }
+
+    @Override
+    public long getRoundTripP50() {
+        return roundTrips.getValueAtPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getRoundTripP99() {
+        return roundTrips.getValueAtPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getRoundTripP999() {
+        return roundTrips.getValueAtPercentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getRoundTripMax() {
+        return roundTrips.getMaxValue() / 1000;
+    }
+
+    @Override
+    public void resetRoundTrips() {
+        roundTrips.reset();
+    }
+
+
+    private CommandWindow commandWindow() {
+        CiiClient client = ciiClient;
+        return (client == null) ? null : client.getCommandWindow();
+    }
+
+
+    private static int statusIndex(int statusCode) {
+
+        //
+        //  Everything from MsUserSpecific up is the one bucket.
+        //
+        if (statusCode >= CiiMsgStatus.MsUserSpecific.getValue()) {
+            return CiiMsgStatus.MsUserSpecific.ordinal();
+        }
+
+        for (CiiMsgStatus status : Statuses) {
+            if (status.getValue() == statusCode) {
+                return status.ordinal();
+            }
+        }
+
+        return Statuses.length;
+    }
+
+
+    private static Map<String, Long> byFrameType(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < FrameTypeCount; i++) {
+            counts.put(FrameTypeNames[i], adders[i].sum());
+        }
+        return counts;
+    }
+
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
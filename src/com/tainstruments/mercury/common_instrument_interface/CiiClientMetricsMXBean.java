@@ -0,0 +1,59 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.Map;
+
+
+/**
+ * What CiiClientMetrics shows over JMX. The maps are keyed by message
+ * type, ACPT ACK NAK RSP STAT and Unknown, or for the NAKs by
+ * CiiMsgStatus name. Round trips are send to RSP or NAK, in us.
+ */
+public interface CiiClientMetricsMXBean {
+
+    Map<String, Long> getFramesReceived();
+
+    Map<String, Long> getBytesReceived();
+
+    long getCommandsSent();
+
+    long getBytesSent();
+
+    int getCommandsInFlight();
+
+    /**
+     * The command window, all 0 without one. Waiting is the async queue
+     * plus blocked senders.
+     */
+    int getCommandsWaiting();
+
+    int getCommandQueueDepth();
+
+    int getMaxCommandQueueDepth();
+
+    long getAdmissionRejects();
+
+    Map<String, Long> getNaksByStatus();
+
+    long getAsyncErrors();
+
+    long getReconnects();
+
+    long getLastTimeToRecover();
+
+    long getRoundTripCount();
+
+    double getRoundTripMean();
+
+    long getRoundTripP50();
+
+    long getRoundTripP99();
+
+    long getRoundTripP999();
+
+    long getRoundTripMax();
+
+    /**
+     * Zeroes the round trip histogram, the counters keep going.
+     */
+    void resetRoundTrips();
+}
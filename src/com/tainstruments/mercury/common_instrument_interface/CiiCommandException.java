@@ -0,0 +1,12 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ * An async command that never got an answer from the instrument.
+ */
+public class CiiCommandException extends Exception {
+
+    public CiiCommandException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * A connectAsync() that didn't get as far as a login accept, because the
+ * instrument couldn't be reached, refused the login, or took too long.
+ */
+public class CiiConnectException extends Exception {
+
+    public CiiConnectException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ * The connection went, or was closed, while the command was waiting on
+ * its answer.
+ */
+public class CiiConnectionLostException extends CiiCommandException {
+
+    public CiiConnectionLostException(String message){
+        super(message);
+    }
+}
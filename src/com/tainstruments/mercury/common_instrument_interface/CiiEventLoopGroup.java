@@ -0,0 +1,305 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A few NIO selector threads shared by many CiiClients.
+ *
+ * Give the same group to every client's CiiClientConfiguration and they
+ * all read on these threads instead of one reader thread each, with a
+ * receive buffer that only grows as big as the frames really are. Clients
+ * are handed out to the threads round robin.
+ *
+ * Handlers run on the event loop thread, same as they do on the reader
+ * thread without a group. A slow one holds up every client on that loop,
+ * so use dispatch threads or a completion executor if yours are slow.
+ */
+public class CiiEventLoopGroup {
+
+    private static EventLoop connectLoop;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop;
+
+
+    /**
+     * @param threads Number of event loop threads to start.
+     */
+    public CiiEventLoopGroup(int threads) {
+
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Bad event loop thread count " + threads);
+        }
+
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("Cii-EventLoop-Thread-" + i);
+        }
+
+        nextLoop = new AtomicInteger();
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * @return Connections currently registered across all the loops.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.getConnectionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the threads. Disconnect the clients first.
+     */
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+
+    EventLoop next() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+
+    /**
+     *  One loop shared by the whole process for connects and deadlines
+     *  that don't belong to a group, e.g. connectAsync() on the blocking
+     *  transport. Started the first time it's asked for.
+     */
+    static synchronized EventLoop connectLoop() {
+        if (connectLoop == null) {
+            connectLoop = new EventLoop("Cii-Connect-Thread");
+            connectLoop.start();
+        }
+        return connectLoop;
+    }
+
+
+    /**
+     *  What a channel registered with a loop gets called with. Always on
+     *  the loop thread.
+     */
+    interface Handler {
+
+        void readable(SelectionKey key);
+
+        void writable(SelectionKey key);
+
+        void connectable(SelectionKey key);
+    }
+
+
+    /**
+     *  One selector, one thread. Anything that has to touch the selector
+     *  from outside goes through execute(), a register from another thread
+     *  isn't seen until the loop next wakes up.
+     */
+    static class EventLoop implements Runnable, Executor {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks;
+        private volatile boolean closed;
+
+        /*
+         *  Loop thread only.
+         */
+        private final PriorityQueue<TimedTask> timedTasks;
+        private long timedTaskCount;
+
+
+        EventLoop(String name) {
+
+            try {
+                selector = Selector.open();
+            } catch (IOException ex) {
+                throw new RuntimeException("Selector.open failed " + ex);
+            }
+
+            tasks = new ConcurrentLinkedQueue<>();
+            timedTasks = new PriorityQueue<>();
+
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+        }
+
+
+        void start() {
+            thread.start();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        int getConnectionCount() {
+            return selector.keys().size();
+        }
+
+        /**
+         *  Runs the task on the loop thread, soon.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         *  Runs the task on the loop thread in delayInMs. Runs it no matter
+         *  what, so the task checks whether it's still wanted.
+         */
+        void schedule(final Runnable task, long delayInMs) {
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timedTasks.add(new TimedTask(deadline, timedTaskCount++, task));
+                }
+            });
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+
+
+        @Override
+        public void run() {
+
+            while (!closed) {
+
+                try {
+                    //
+                    //  Tasks queued from this thread don't wake the
+                    //  selector, so don't block while there are any.
+                    //
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    }
+                    else if (timedTasks.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        long wait = timedTasks.peek().deadline - System.nanoTime();
+                        if (wait > 0) {
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        }
+                        else {
+                            selector.selectNow();
+                        }
+                    }
+                } catch (IOException ex) {
+                    System.out.println(thread.getName() + " select failed " + ex);
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runTask(task);
+                }
+
+                long now = System.nanoTime();
+                while (!timedTasks.isEmpty() && (timedTasks.peek().deadline - now <= 0)) {
+                    runTask(timedTasks.poll().task);
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext()) {
+
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    Handler handler = (Handler)key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            handler.connectable(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            handler.readable(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.writable(key);
+                        }
+                    } catch (RuntimeException ex) {
+                        //
+                        //  Never let one connection take the loop down.
+                        //
+                        System.out.println(thread.getName() + " handler threw " + ex);
+                    }
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
+
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                System.out.println(thread.getName() + " task threw " + ex);
+            }
+        }
+    }
+
+
+    private static class TimedTask implements Comparable<TimedTask> {
+
+        final long deadline;
+        final long order;
+        final Runnable task;
+
+        TimedTask(long deadline, long order, Runnable task) {
+            this.deadline = deadline;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(TimedTask other) {
+            long difference = deadline - other.deadline;
+            if (difference != 0) {
+                return (difference < 0) ? -1 : 1;
+            }
+            return (order < other.order) ? -1 : ((order == other.order) ? 0 : 1);
+        }
+    }
+}
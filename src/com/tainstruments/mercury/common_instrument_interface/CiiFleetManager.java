@@ -0,0 +1,356 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Owns the CiiClients for a fleet of instruments and gets them all
+ * connected.
+ *
+ * At most maxParallelConnects connects are in progress at once, the rest
+ * queue. An instrument that doesn't answer is tried again after a delay
+ * from the backoff policy, so a dead one never holds up the others and a
+ * plant full of them doesn't retry in lockstep. Once a client is
+ * connected it looks after its own reconnects, with the backoff from its
+ * own configuration.
+ *
+ * getTimeToAllConnected() reports how long the fleet last took to go from
+ * connectAll(), or from losing any instrument, to every one connected.
+ */
+public class CiiFleetManager {
+
+    private final int maxParallelConnects;
+    private final BackoffPolicy backoff;
+    private final ExecutorService connectExecutor;
+    private final ScheduledExecutorService retryScheduler;
+
+    private final ReentrantLock fleetLock;
+    private final Condition allConnectedEvent;
+    private final List<Member> members;
+    private int connectedCount;
+    private long degradedSince;
+    private long timeToAllConnected;
+    private int requestedAccess;
+    private boolean started;
+    private boolean closed;
+
+
+    /**
+     * @param maxParallelConnects Connects allowed in progress at once.
+     * @param backoff Delays between attempts on an instrument that didn't
+     * connect.
+     */
+    public CiiFleetManager(int maxParallelConnects, BackoffPolicy backoff) {
+
+        if (maxParallelConnects <= 0) {
+            throw new IllegalArgumentException("Bad parallel connect count " + maxParallelConnects);
+        }
+
+        this.maxParallelConnects = maxParallelConnects;
+        this.backoff = backoff;
+
+        connectExecutor = new ThreadPoolExecutor(maxParallelConnects, maxParallelConnects,
+                                                    0, TimeUnit.MILLISECONDS,
+                                                    new LinkedBlockingQueue<Runnable>(),
+                                                    new FleetThreadFactory("Cii-Fleet-Connect-Thread-"));
+
+        retryScheduler = new ScheduledThreadPoolExecutor(1,
+                                                    new FleetThreadFactory("Cii-Fleet-Retry-Thread-"));
+
+        fleetLock = new ReentrantLock();
+        allConnectedEvent = fleetLock.newCondition();
+        members = new ArrayList<>();
+        timeToAllConnected = -1;
+    }
+
+
+    /**
+     * Makes a client for an instrument and adds it to the fleet.
+     */
+    public CiiClient addInstrument(String serverAddress, CiiClientConfiguration configuration) {
+        CiiClient client = new CiiClient(serverAddress, configuration);
+        add(client);
+        return client;
+    }
+
+    /**
+     * Adds a client that isn't connected yet. After connectAll() it starts
+     * connecting straight away.
+     */
+    public void add(CiiClient client) {
+
+        Member member = new Member(client);
+
+        client.registerConnectHandler(member);
+        client.registerDisconnectHandler(member);
+
+        boolean connectNow;
+
+        fleetLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("CiiFleetManager is closed");
+            }
+            if (connectedCount == members.size()) {
+                degradedSince = System.nanoTime();
+            }
+            members.add(member);
+            connectNow = started;
+        } finally {
+            fleetLock.unlock();
+        }
+
+        if (connectNow) {
+            submit(member);
+        }
+    }
+
+
+    /**
+     * Starts connecting every instrument, returns right away.
+     */
+    public void connectAll(int requestedAccess) {
+
+        List<Member> toConnect;
+
+        fleetLock.lock();
+        try {
+            if (closed || started) {
+                return;
+            }
+            this.requestedAccess = requestedAccess;
+            started = true;
+            degradedSince = System.nanoTime();
+            toConnect = new ArrayList<>(members);
+        } finally {
+            fleetLock.unlock();
+        }
+
+        for (Member member : toConnect) {
+            submit(member);
+        }
+    }
+
+
+    /**
+     * Waits for every instrument to be connected.
+     * @return false if they weren't all connected in time.
+     */
+    public boolean awaitAllConnected(long timeoutInMs) {
+
+        fleetLock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+            while ((connectedCount < members.size()) && (remaining > 0)) {
+                remaining = allConnectedEvent.awaitNanos(remaining);
+            }
+            return connectedCount == members.size();
+        } catch (InterruptedException ex) {
+            System.out.println("CiiFleetManager.awaitAllConnected interrupted " + ex);
+            return false;
+        } finally {
+            fleetLock.unlock();
+        }
+    }
+
+
+    /**
+     * @return ms the fleet took, the last time it went from missing an
+     * instrument to having them all connected, -1 if it never has.
+     */
+    public long getTimeToAllConnected() {
+        fleetLock.lock();
+        try {
+            return timeToAllConnected;
+        } finally {
+            fleetLock.unlock();
+        }
+    }
+
+    public int getConnectedCount() {
+        fleetLock.lock();
+        try {
+            return connectedCount;
+        } finally {
+            fleetLock.unlock();
+        }
+    }
+
+    public int getInstrumentCount() {
+        fleetLock.lock();
+        try {
+            return members.size();
+        } finally {
+            fleetLock.unlock();
+        }
+    }
+
+    public List<CiiClient> getClients() {
+        fleetLock.lock();
+        try {
+            List<CiiClient> clients = new ArrayList<>(members.size());
+            for (Member member : members) {
+                clients.add(member.client);
+            }
+            return clients;
+        } finally {
+            fleetLock.unlock();
+        }
+    }
+
+    public int getMaxParallelConnects() {
+        return maxParallelConnects;
+    }
+
+
+    /**
+     * Stops any retries and disconnects every instrument.
+     */
+    public void close() {
+
+        List<Member> toDisconnect;
+
+        fleetLock.lock();
+        try {
+            closed = true;
+            toDisconnect = new ArrayList<>(members);
+        } finally {
+            fleetLock.unlock();
+        }
+
+        retryScheduler.shutdownNow();
+        connectExecutor.shutdownNow();
+
+        for (Member member : toDisconnect) {
+            member.client.disconnect();
+        }
+    }
+
+
+
+    private void submit(final Member member) {
+        try {
+            connectExecutor.execute(member);
+        } catch (RejectedExecutionException ex) {
+            //
+            //  Closed under us.
+            //
+        }
+    }
+
+
+    private void scheduleRetry(final Member member, long delayInMs) {
+        try {
+            retryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(member);
+                }
+            }, delayInMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+        }
+    }
+
+
+    /**
+     *  One instrument. Runs its own connect attempts on the connect pool and
+     *  tells the fleet when it comes and goes.
+     */
+    private class Member implements Runnable, ConnectHandler, DisconnectHandler {
+
+        private final CiiClient client;
+        private int attempts;
+
+        Member(CiiClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+
+            int access;
+
+            fleetLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                access = requestedAccess;
+            } finally {
+                fleetLock.unlock();
+            }
+
+            if (client.isConnected()) {
+                return;
+            }
+
+            if (client.connect(access)) {
+                attempts = 0;
+            }
+            else {
+                scheduleRetry(this, backoff.getDelay(attempts++));
+            }
+        }
+
+        @Override
+        public void connected() {
+
+            fleetLock.lock();
+            try {
+                connectedCount++;
+                if (connectedCount == members.size()) {
+                    timeToAllConnected = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - degradedSince);
+                    allConnectedEvent.signalAll();
+                }
+            } finally {
+                fleetLock.unlock();
+            }
+        }
+
+        @Override
+        public void disconnected() {
+
+            fleetLock.lock();
+            try {
+                if (connectedCount == members.size()) {
+                    degradedSince = System.nanoTime();
+                }
+                connectedCount--;
+            } finally {
+                fleetLock.unlock();
+            }
+        }
+    }
+
+
+    private static class FleetThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count;
+
+        FleetThreadFactory(String prefix) {
+            this.prefix = prefix;
+            count = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            return thread;
+        }
+    }
+}
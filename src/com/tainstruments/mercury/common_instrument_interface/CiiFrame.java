@@ -0,0 +1,114 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+/**
+ * One received message, held in a reference counted buffer.
+ *
+ * The client owns one reference while it routes the message. A handler
+ * that wants the data after its callback returns, on this thread or any
+ * other, calls retain() and later release(). Nothing is copied, and the
+ * bytes can't change underneath it until the last release(), after which
+ * the buffer goes back to its pool.
+ */
+public final class CiiFrame {
+
+    private static final AtomicIntegerFieldUpdater<CiiFrame> RefCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(CiiFrame.class, "refCount");
+
+    private final CiiFramePool pool;
+    private final int sizeClass;
+    private final byte[] buffer;
+    private int length;
+    private int payloadOffset;
+    private volatile int refCount;
+
+
+    CiiFrame(CiiFramePool pool, int sizeClass, int capacity) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        buffer = new byte[capacity];
+    }
+
+
+    /**
+     * @return A read only, little endian view of the payload, the part
+     * after the message header. Each call returns a fresh view with its
+     * own position.
+     */
+    public ByteBuffer getData() {
+        return ByteBuffer.wrap(buffer, payloadOffset, length - payloadOffset)
+                .slice()
+                .asReadOnlyBuffer()
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getDataLength() {
+        return length - payloadOffset;
+    }
+
+    /**
+     * Keep the frame alive past the callback. Pair every call with a
+     * release().
+     */
+    public CiiFrame retain() {
+        while (true) {
+            int current = refCount;
+            if (current <= 0) {
+                throw new IllegalStateException("CiiFrame already released");
+            }
+            if (RefCountUpdater.compareAndSet(this, current, current + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int current = RefCountUpdater.decrementAndGet(this);
+        if (current == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        }
+        else if (current < 0) {
+            throw new IllegalStateException("CiiFrame released too many times");
+        }
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+
+
+    /*
+     *  Package access for the client and the pool.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    void setPayloadOffset(int payloadOffset) {
+        this.payloadOffset = payloadOffset;
+    }
+
+    /**
+     *  Copies a message in and hands the caller the first reference.
+     */
+    void fill(byte[] source, int offset, int dataLength) {
+        System.arraycopy(source, offset, buffer, 0, dataLength);
+        length = dataLength;
+        payloadOffset = 0;
+        refCount = 1;
+    }
+}
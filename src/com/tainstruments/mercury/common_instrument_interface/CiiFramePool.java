@@ -0,0 +1,148 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Recycles the buffers behind CiiFrame. Buffers come in power of two size
+ * classes from 256 bytes to 256 KB, anything bigger is allocated for the
+ * one message and left to the GC.
+ */
+public class CiiFramePool {
+
+    private static final int SmallestClassShift = 8;
+    private static final int SizeClasses = 11;
+
+    private final CiiFrame[][] freeFrames;
+    private final int[] freeCounts;
+    private final Object[] locks;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong outstanding;
+
+
+    /**
+     * @param maxFramesPerClass How many free buffers of each size to keep.
+     */
+    public CiiFramePool(int maxFramesPerClass) {
+
+        freeFrames = new CiiFrame[SizeClasses][maxFramesPerClass];
+        freeCounts = new int[SizeClasses];
+        locks = new Object[SizeClasses];
+        for (int i = 0; i < SizeClasses; i++) {
+            locks[i] = new Object();
+        }
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        outstanding = new AtomicLong();
+    }
+
+
+    /**
+     * @return Frames handed out from a free buffer.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return Frames that needed a new buffer.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return Frames handed out and not yet fully released.
+     */
+    public long getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    public int getFreeCount() {
+        int count = 0;
+        for (int i = 0; i < SizeClasses; i++) {
+            synchronized (locks[i]) {
+                count += freeCounts[i];
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     *  A frame holding a copy of the message, with one reference.
+     */
+    CiiFrame acquire(byte[] source, int offset, int dataLength) {
+
+        int sizeClass = sizeClassFor(dataLength);
+        CiiFrame frame = null;
+
+        if (sizeClass >= 0) {
+            synchronized (locks[sizeClass]) {
+                if (freeCounts[sizeClass] > 0) {
+                    freeCounts[sizeClass]--;
+                    frame = freeFrames[sizeClass][freeCounts[sizeClass]];
+                    freeFrames[sizeClass][freeCounts[sizeClass]] = null;
+                }
+            }
+        }
+
+        if (frame != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+            if (sizeClass >= 0) {
+                frame = new CiiFrame(this, sizeClass, 1 << (sizeClass + SmallestClassShift));
+            }
+            else {
+                frame = new CiiFrame(this, -1, dataLength);
+            }
+        }
+
+        outstanding.incrementAndGet();
+        frame.fill(source, offset, dataLength);
+        return frame;
+    }
+
+
+    /**
+     *  A frame that doesn't belong to any pool, for when pooling is off.
+     */
+    static CiiFrame copyOf(byte[] source, int offset, int dataLength) {
+        CiiFrame frame = new CiiFrame(null, -1, dataLength);
+        frame.fill(source, offset, dataLength);
+        return frame;
+    }
+
+
+    void recycle(CiiFrame frame) {
+
+        outstanding.decrementAndGet();
+
+        int sizeClass = frame.getSizeClass();
+        if (sizeClass < 0) {
+            return;
+        }
+
+        synchronized (locks[sizeClass]) {
+            if (freeCounts[sizeClass] < freeFrames[sizeClass].length) {
+                freeFrames[sizeClass][freeCounts[sizeClass]] = frame;
+                freeCounts[sizeClass]++;
+            }
+        }
+    }
+
+
+    private static int sizeClassFor(int dataLength) {
+        for (int i = 0; i < SizeClasses; i++) {
+            if (dataLength <= (1 << (i + SmallestClassShift))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
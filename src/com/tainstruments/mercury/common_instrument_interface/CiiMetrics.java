@@ -0,0 +1,43 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ * Where a CiiClient reports what it's doing. CiiClientMetrics, the
+ * default, counts it all and can show it over JMX. Hand your own to
+ * CiiClientConfiguration.setMetrics() to feed something else.
+ *
+ * These are called on the reader thread, or the dispatch workers, for
+ * every frame. Keep them cheap and never block in one.
+ */
+public interface CiiMetrics {
+
+    int FrameAccept = 0;
+    int FrameAck = 1;
+    int FrameNak = 2;
+    int FrameResponse = 3;
+    int FrameStatus = 4;
+    int FrameUnknown = 5;
+    int FrameTypeCount = 6;
+
+    /**
+     * @param frameType One of the FrameXxx constants.
+     * @param payloadLength Bytes between the frame's length and END.
+     */
+    void frameReceived(int frameType, int payloadLength);
+
+    /**
+     * @param frameLength The whole frame, header and trailer included.
+     */
+    void commandSent(int frameLength);
+
+    void nakReceived(int statusCode);
+
+    /**
+     * A RSP or NAK came in, this long after the command was sent.
+     */
+    void commandAnswered(long roundTripInNs);
+
+    void asyncError();
+
+    void reconnected(long timeToRecoverInMs);
+}
@@ -0,0 +1,98 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.Arrays;
+
+
+/**
+ * Immutable result of a command sent with one of the CiiClient async calls.
+ * Holds either the RSP or the NAK the instrument sent back.
+ */
+public final class CiiResponse {
+
+    private final int sequenceNumber;
+    private final boolean nak;
+    private final int subcommand;
+    private final int statusCode;
+    private final byte[] data;
+    private final CommandTrace trace;
+
+
+    CiiResponse(int sequenceNumber,
+                boolean nak,
+                int subcommand,
+                int statusCode,
+                byte[] data,
+                CommandTrace trace) {
+        this.sequenceNumber = sequenceNumber;
+        this.nak = nak;
+        this.subcommand = subcommand;
+        this.statusCode = statusCode;
+        this.data = data;
+        this.trace = trace;
+    }
+
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return true if the instrument NAKed the command instead of responding.
+     */
+    public boolean isNak() {
+        return nak;
+    }
+
+    /**
+     * @return true for an RSP with a MsSuccess status.
+     */
+    public boolean isSuccess() {
+        return !nak && (statusCode == CiiMsgStatus.MsSuccess.getValue());
+    }
+
+    public int getSubcommand() {
+        return subcommand;
+    }
+
+    /**
+     * @return The RSP status code, or the NAK error code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return A copy of the RSP payload, empty for a NAK.
+     */
+    public byte[] getData() {
+        return Arrays.copyOf(data, data.length);
+    }
+
+    public int getDataLength() {
+        return data.length;
+    }
+
+    /**
+     * @return The command's stamps, null unless the client traces
+     * commands. In up to the answer, the rest lands once the future's
+     * callbacks have run.
+     */
+    public CommandTrace getTrace() {
+        return trace;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder s = new StringBuilder();
+        s.append(nak ? "NAK" : "RSP");
+        s.append(" seq=");
+        s.append(sequenceNumber);
+        s.append(" subcommand=");
+        s.append(subcommand);
+        s.append(" status=");
+        s.append(statusCode);
+        s.append(" length=");
+        s.append(data.length);
+        return s.toString();
+    }
+}
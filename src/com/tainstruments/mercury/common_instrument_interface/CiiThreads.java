@@ -0,0 +1,72 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.lang.reflect.Method;
+
+
+/**
+ *  Makes the client's threads, platform or virtual.
+ *
+ *  We still build for Java 8, so Thread.ofVirtual() is looked up by
+ *  reflection, once, and only used when it's there.
+ */
+final class CiiThreads {
+
+    private static final Method OfVirtualMethod;
+    private static final Method NameMethod;
+    private static final Method UnstartedMethod;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            //
+            //  Older than Java 21, or preview features off.
+            //
+            ofVirtual = null;
+        }
+
+        OfVirtualMethod = ofVirtual;
+        NameMethod = name;
+        UnstartedMethod = unstarted;
+    }
+
+
+    private CiiThreads() {
+    }
+
+
+    static boolean virtualThreadsAvailable() {
+        return OfVirtualMethod != null;
+    }
+
+
+    /**
+     *  An unstarted thread. Virtual threads are always daemons and ignore
+     *  the priority.
+     */
+    static Thread newThread(ExecutionMode mode, Runnable task, String name, int priority) {
+
+        if (mode == ExecutionMode.VirtualThreads) {
+            try {
+                Object builder = OfVirtualMethod.invoke(null);
+                NameMethod.invoke(builder, name);
+                return (Thread)UnstartedMethod.invoke(builder, task);
+            } catch (ReflectiveOperationException ex) {
+                throw new RuntimeException("Can't create virtual thread " + ex);
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+}
@@ -0,0 +1,12 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ * The command's deadline passed before the instrument answered it.
+ */
+public class CiiTimeoutException extends CiiCommandException {
+
+    public CiiTimeoutException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,56 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ *  What CiiClient needs from a connection to the instrument. Every
+ *  received frame goes to CiiClient.frameReceived(), an unexpected drop to
+ *  CiiClient.handleUnexpectedDisconnect().
+ *
+ *  Package visibility, CiiClient picks the implementation from its
+ *  configuration.
+ */
+interface ClientTransport {
+
+    /**
+     *  Blocking connect, gives up after the configured connect timeout.
+     */
+    boolean connect();
+
+    /**
+     *  Starts a connect that gives up after timeoutInMs. Completes, on an
+     *  event loop thread, once frames can be sent and are being read, or
+     *  fails with a CiiConnectException.
+     */
+    CompletableFuture<Void> connectAsync(long timeoutInMs);
+
+    void disconnect();
+
+    byte[] getLocalAddress();
+
+    /**
+     *  Wraps the payload in a frame and sends it.
+     */
+    boolean sendMessage(byte[] buffer);
+
+    /**
+     *  Sends a frame built by FrameEncoder.
+     */
+    boolean sendFrame(byte[] frame);
+
+    /**
+     *  Holds every frame sent from here on, from any thread, until
+     *  endBatch() writes them all out together, in order, in one write.
+     *  Nothing may wait for a reply to a held frame before endBatch().
+     */
+    void beginBatch();
+
+    void endBatch();
+
+    /**
+     *  True on the thread that reads frames and hands them to
+     *  frameReceived(), which mustn't wait for anything an answer frees.
+     */
+    boolean isReceiveThread();
+}
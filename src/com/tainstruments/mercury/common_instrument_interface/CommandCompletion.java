@@ -17,4 +17,38 @@ public interface CommandCompletion {
      *  allow you to save the sequence number for this command.
      */
     void saveSequenceNumber(int sequenceNumber);
+
+    /*
+     *  Called right after saveSequenceNumber() when the client traces
+     *  commands. The trace fills in as the command goes, the stamps up to
+     *  the answer are in before receiveResponse() / receiveNak().
+     */
+    default void saveTrace(CommandTrace trace) {
+    }
+
+    /*
+     *  Called from the timer thread if the command was sent with a timeout
+     *  and neither a RSP nor a NAK showed up in time. The command is no
+     *  longer in flight, a late answer will be reported as unexpected.
+     */
+    default void receiveTimeout() {
+    }
+
+    /*
+     *  Called when the connection drops, or disconnect() is called, while
+     *  the command is still in flight. It never will be answered. Called
+     *  on the thread that noticed, don't block in here.
+     */
+    default void receiveConnectionLost() {
+    }
+
+    /*
+     *  Called when the server broke the protocol for this command, a
+     *  double ACK, an ACK then a NAK, or a RSP with no ACK. The command is
+     *  no longer in flight. By default it's reported as a NAK with
+     *  MsMalformedMessage.
+     */
+    default void receiveProtocolError(String reason) {
+        receiveNak(CiiMsgStatus.MsMalformedMessage.getValue());
+    }
 }
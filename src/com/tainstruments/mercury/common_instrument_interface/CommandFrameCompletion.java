@@ -0,0 +1,28 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * A CommandCompletion that takes the RSP payload as a CiiFrame, so it can
+ * keep the data past the callback with retain() / release() instead of
+ * copying it.
+ */
+public interface CommandFrameCompletion extends CommandCompletion {
+
+    void receiveResponse(int subcommand, int statusCode, CiiFrame frame);
+
+    /*
+     *  Only used if the client isn't pooling frames, wraps a copy.
+     */
+    @Override
+    default void receiveResponse(   int subcommand,
+                                    int statusCode,
+                                    byte[] data,
+                                    int startingOffset,
+                                    int dataLength) {
+        CiiFrame frame = CiiFramePool.copyOf(data, startingOffset, dataLength);
+        try {
+            receiveResponse(subcommand, statusCode, frame);
+        } finally {
+            frame.release();
+        }
+    }
+}
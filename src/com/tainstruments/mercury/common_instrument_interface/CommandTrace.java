@@ -0,0 +1,214 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+/**
+ * System.nanoTime() stamps for one command's trip, made when the client
+ * traces commands, see CiiClientConfiguration.setCommandTracing().
+ *
+ *      encoded -> written -> ACK -> RSP / NAK -> completion returned
+ *
+ * Split that way it shows where the time goes: our own queueing before
+ * the write, the network and the instrument's ACK, the instrument's work
+ * between ACK and RSP, or the completion callback. The same idea as
+ * MessageTracker's Sent / Acked states, with the times kept.
+ *
+ * The completion gets its trace from saveTrace() and can read it as the
+ * command goes, the stamps up to the answer are in by the time its
+ * callback runs. The CommandTracer gets it once everything is in. A
+ * stamp not reached is 0.
+ */
+public final class CommandTrace {
+
+    public static final int OutcomePending = 0;
+    public static final int OutcomeResponse = 1;
+    public static final int OutcomeNak = 2;
+    public static final int OutcomeTimeout = 3;
+    public static final int OutcomeConnectionLost = 4;
+    public static final int OutcomeSendFailed = 5;
+    public static final int OutcomeProtocolError = 6;
+
+    private static final AtomicIntegerFieldUpdater<CommandTrace> PendingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(CommandTrace.class, "pending");
+
+    private final CommandTracer tracer;
+    private final int sequenceNumber;
+    private final int subcommand;
+    private final long encodedAt;
+
+    private volatile long writtenAt;
+    private volatile long ackAt;
+    private volatile long answeredAt;
+    private volatile long completedAt;
+    private volatile int outcome;
+
+    //
+    //  The sender's write returning and the completion returning, they
+    //  can finish in either order. The last one hands us to the tracer.
+    //
+    private volatile int pending;
+
+
+    CommandTrace(CommandTracer tracer, int sequenceNumber, int subcommand, long encodedAt) {
+        this.tracer = tracer;
+        this.sequenceNumber = sequenceNumber;
+        this.subcommand = subcommand;
+        this.encodedAt = encodedAt;
+        pending = 2;
+    }
+
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getSubcommand() {
+        return subcommand;
+    }
+
+    /**
+     * @return One of the OutcomeXxx constants.
+     */
+    public int getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return When the client started building the frame.
+     */
+    public long getEncodedAt() {
+        return encodedAt;
+    }
+
+    /**
+     * @return When the write to the socket returned. On a fast link that
+     * can be after the ACK was read. For a command sent from a connect
+     * handler it's when the frame was held for the handlers' batch, the
+     * write comes once they have all run.
+     */
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    public long getAckAt() {
+        return ackAt;
+    }
+
+    /**
+     * @return When the RSP or NAK was read, the command timed out or lost
+     * its connection, its write failed, or an answer broke the protocol.
+     */
+    public long getAnsweredAt() {
+        return answeredAt;
+    }
+
+    /**
+     * @return When the completion's callback returned.
+     */
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+
+    /**
+     * @return ns from encoding to the write returning, -1 if not known.
+     */
+    public long getQueueTime() {
+        return between(encodedAt, writtenAt);
+    }
+
+    /**
+     * @return ns from the write returning to the ACK, the network and the
+     * instrument taking the command in.
+     */
+    public long getAckTime() {
+        return between(writtenAt, ackAt);
+    }
+
+    /**
+     * @return ns from the ACK to the RSP or NAK, the instrument doing the
+     * work.
+     */
+    public long getInstrumentTime() {
+        return between(ackAt, answeredAt);
+    }
+
+    /**
+     * @return ns spent in the completion's callback.
+     */
+    public long getCallbackTime() {
+        return between(answeredAt, completedAt);
+    }
+
+    /**
+     * @return ns from encoding to the callback returning.
+     */
+    public long getTotalTime() {
+        return between(encodedAt, completedAt);
+    }
+
+
+    void written(long at) {
+        writtenAt = at;
+        finish();
+    }
+
+    void acked(long at) {
+        ackAt = at;
+    }
+
+    void answered(int outcome, long at) {
+        this.outcome = outcome;
+        answeredAt = at;
+    }
+
+    void completed(long at) {
+        completedAt = at;
+        finish();
+    }
+
+
+    private void finish() {
+
+        if (PendingUpdater.decrementAndGet(this) != 0) {
+            return;
+        }
+
+        if (tracer != null) {
+            try {
+                tracer.commandTraced(this);
+            } catch (RuntimeException ex) {
+                System.out.println("CommandTracer threw " + ex);
+            }
+        }
+    }
+
+
+    private static long between(long from, long to) {
+        return ((from == 0) || (to == 0)) ? -1 : to - from;
+    }
+
+
+    @Override
+    public String toString(){
+        StringBuilder s = new StringBuilder();
+        s.append("seq=");
+        s.append(sequenceNumber);
+        s.append(" subcommand=");
+        s.append(subcommand);
+        s.append(" outcome=");
+        s.append(outcome);
+        s.append(" queue=");
+        s.append(getQueueTime());
+        s.append(" ack=");
+        s.append(getAckTime());
+        s.append(" instrument=");
+        s.append(getInstrumentTime());
+        s.append(" callback=");
+        s.append(getCallbackTime());
+        s.append(" total=");
+        s.append(getTotalTime());
+        return s.toString();
+    }
+}
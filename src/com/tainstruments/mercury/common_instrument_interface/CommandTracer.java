@@ -0,0 +1,13 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ * Gets every traced command once all of its stamps are in, see
+ * CiiClientConfiguration.setCommandTracer(). Called on the reader, timer
+ * or sending thread, whichever finished with the command last. Keep it
+ * short, copy what you need and hand it off.
+ */
+public interface CommandTracer {
+
+    void commandTraced(CommandTrace trace);
+}
@@ -0,0 +1,307 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Caps how many commands a CiiClient has outstanding at once, so senders
+ * can pipeline as deep as the instrument copes with and no deeper. See
+ * CiiClientConfiguration.setMaxOutstandingCommands().
+ *
+ * A command holds a slot from before it's sent until its RSP, NAK,
+ * timeout or lost connection. With the window full, sendGet() and
+ * sendAction() wait up to the admission timeout for a slot. The async
+ * calls don't wait, they queue, and each goes out when a slot comes free,
+ * on the thread that freed it, first come first served. So do sendGet()
+ * and sendAction() from a connect handler, or on a thread that routes
+ * answers, where waiting would never end.
+ *
+ * The getters are for monitoring, each a snapshot.
+ */
+public class CommandWindow {
+
+    /*
+     *  Something queued by an async call.
+     */
+    interface QueuedCommand {
+
+        /**
+         *  It has a slot, send it.
+         */
+        void admitted();
+
+        /**
+         *  It never will have, the connection went.
+         */
+        void abandoned();
+    }
+
+
+    static final int Admitted = 0;
+    static final int Queued = 1;
+    static final int Rejected = 2;
+
+    private final int size;
+    private final int maxQueued;
+    private final ReentrantLock lock;
+    private final Condition slotFreed;
+    private final ArrayDeque<QueuedCommand> queue;
+
+    private int outstanding;
+    private int blocked;
+    private boolean draining;
+    private int maxQueueDepth;
+    private long waitedCount;
+    private long rejectedCount;
+
+
+    /**
+     *  @param maxQueued Most async commands that can wait, more are
+     *  rejected.
+     */
+    CommandWindow(int size, int maxQueued) {
+        this.size = size;
+        this.maxQueued = maxQueued;
+        lock = new ReentrantLock();
+        slotFreed = lock.newCondition();
+        queue = new ArrayDeque<>();
+    }
+
+
+    /**
+     *  Blocking admission.
+     *  @param timeoutInMs 0 doesn't wait at all.
+     *  @return false if no slot came free in time.
+     */
+    boolean acquire(long timeoutInMs) {
+
+        lock.lock();
+        try {
+            //
+            //  Queued commands were here first.
+            //
+            if ((outstanding < size) && queue.isEmpty()) {
+                outstanding++;
+                return true;
+            }
+
+            if (timeoutInMs <= 0) {
+                rejectedCount++;
+                return false;
+            }
+
+            waitedCount++;
+            blocked++;
+
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+
+                while ((outstanding >= size) || !queue.isEmpty()) {
+                    if (remaining <= 0) {
+                        rejectedCount++;
+                        return false;
+                    }
+                    remaining = slotFreed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                rejectedCount++;
+                return false;
+            } finally {
+                blocked--;
+            }
+
+            outstanding++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Async admission, never blocks.
+     *  @return Admitted, the caller has a slot and sends now. Queued,
+     *  command.admitted() or abandoned() will be called later. Rejected,
+     *  the queue's full.
+     */
+    int acquireOrQueue(QueuedCommand command) {
+
+        lock.lock();
+        try {
+            if ((outstanding < size) && queue.isEmpty()) {
+                outstanding++;
+                return Admitted;
+            }
+
+            if (queue.size() >= maxQueued) {
+                rejectedCount++;
+                return Rejected;
+            }
+
+            queue.addLast(command);
+            waitedCount++;
+            if (queue.size() > maxQueueDepth) {
+                maxQueueDepth = queue.size();
+            }
+            return Queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  A command gave its slot back. Hands it on to the queue, if there is
+     *  one, and sends from here. A send that fails straight away releases
+     *  again, which just frees the slot, the loop below picks up the next
+     *  rather than recursing.
+     */
+    void release() {
+
+        lock.lock();
+        try {
+            outstanding--;
+
+            if (draining || queue.isEmpty()) {
+                slotFreed.signal();
+                return;
+            }
+
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+
+        while (true) {
+
+            QueuedCommand next;
+
+            lock.lock();
+            try {
+                if (queue.isEmpty() || (outstanding >= size)) {
+                    draining = false;
+                    slotFreed.signal();
+                    return;
+                }
+                next = queue.pollFirst();
+                outstanding++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                next.admitted();
+            } catch (RuntimeException ex) {
+                System.out.println("CommandWindow queued send threw " + ex);
+            }
+        }
+    }
+
+
+    /**
+     *  The connection went, nothing queued is going to get sent.
+     */
+    void abandonQueued() {
+
+        while (true) {
+
+            QueuedCommand next;
+
+            lock.lock();
+            try {
+                next = queue.pollFirst();
+                if (next == null) {
+                    slotFreed.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            next.abandoned();
+        }
+    }
+
+
+    /**
+     * @return Most commands outstanding at once.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getOutstanding() {
+        lock.lock();
+        try {
+            return outstanding;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Async commands waiting for a slot.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Threads blocked in sendGet() / sendAction() waiting for a
+     * slot.
+     */
+    public int getBlockedSenders() {
+        lock.lock();
+        try {
+            return blocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The deepest the async queue has been.
+     */
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Commands that had to wait, blocked or queued.
+     */
+    public long getWaitedCount() {
+        lock.lock();
+        try {
+            return waitedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Commands turned away, the wait timed out or the queue was
+     * full.
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package com.tainstruments.mercury.common_instrument_interface;
 
+/**
+ * Called once the login has been accepted, and again every time a dropped
+ * connection has been got back. After connectAsync() or a recovery it runs
+ * on the thread that read the accept, and what it sends only goes out once
+ * every handler has run, so send requests but don't wait on their replies.
+ */
 public interface ConnectHandler {
 
     void connected();
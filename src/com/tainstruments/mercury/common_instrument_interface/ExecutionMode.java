@@ -0,0 +1,26 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * What kind of threads a CiiClient starts for its blocking work.
+ */
+public enum ExecutionMode
+{
+    /**  Ordinary platform threads, the default. */
+    PlatformThreads,
+
+    /**
+     *  Virtual threads, Java 21 or later. The blocking reader then costs
+     *  next to nothing while it waits, and none
+     *  of the client's own waits pin a carrier thread, so callers can make
+     *  tens of thousands of synchronous calls from virtual threads too.
+     */
+    VirtualThreads;
+
+
+    /**
+     * @return false for VirtualThreads on a JVM older than Java 21.
+     */
+    public boolean isAvailable() {
+        return (this == PlatformThreads) || CiiThreads.virtualThreadsAvailable();
+    }
+}
@@ -0,0 +1,170 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+
+/**
+ *  Parses SYNC / length / payload / END frames in place out of a single
+ *  receive buffer. Whatever is left over after the last complete frame is
+ *  carried over to the next fill. The buffer can start small and grow to
+ *  fit the biggest frame actually seen.
+ *
+ *  Package visibility, only used by the transports.
+ */
+class FrameDecoder {
+
+    static final int HeaderLength = 8;
+    static final int TrailerLength = 4;
+
+    private final CiiClient ciiClient;
+    private final int maxFrameLength;
+    private byte[] buffer;
+    private int readIndex;
+    private int writeIndex;
+    private String name;
+
+
+    public FrameDecoder(CiiClient client, int maxFrameLength) {
+        this(client, maxFrameLength, maxFrameLength);
+    }
+
+    /**
+     *  @param initialFrameLength Biggest frame the buffer holds until a
+     *  bigger one shows up.
+     */
+    public FrameDecoder(CiiClient client, int maxFrameLength, int initialFrameLength) {
+        ciiClient = client;
+        this.maxFrameLength = maxFrameLength;
+        buffer = new byte[HeaderLength + Math.min(initialFrameLength, maxFrameLength) + TrailerLength];
+        name = "FrameDecoder";
+    }
+
+
+    /**
+     *  Used to prefix the async errors we send.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getWriteIndex() {
+        return writeIndex;
+    }
+
+    public int getWritableBytes() {
+        return buffer.length - writeIndex;
+    }
+
+    public void bytesWritten(int count) {
+        writeIndex += count;
+    }
+
+    public void reset() {
+        readIndex = 0;
+        writeIndex = 0;
+    }
+
+
+    /**
+     *  Route every complete frame sitting in the buffer.
+     *  @return false if the stream is corrupt, the async error is already sent.
+     */
+    public boolean decodeFrames() {
+
+        while (writeIndex - readIndex >= HeaderLength) {
+
+            if ((buffer[readIndex + 0] != (byte)'S') ||
+                (buffer[readIndex + 1] != (byte)'Y') ||
+                (buffer[readIndex + 2] != (byte)'N') ||
+                (buffer[readIndex + 3] != (byte)'C')) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        name + " - Bad SYNC "
+                                + buffer[readIndex + 0]
+                                + buffer[readIndex + 1]
+                                + buffer[readIndex + 2]
+                                + buffer[readIndex + 3]);
+                return false;
+            }
+
+            int length = getLength(readIndex + 4);
+
+            if ((length < 4) || (length > maxFrameLength)) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        name + " - Bad Length " + length);
+                return false;
+            }
+
+            int frameLength = HeaderLength + length + TrailerLength;
+
+            if (writeIndex - readIndex < frameLength) {
+                break;
+            }
+
+            int endIndex = readIndex + HeaderLength + length;
+
+            if ((buffer[endIndex + 0] != (byte)'E') ||
+                (buffer[endIndex + 1] != (byte)'N') ||
+                (buffer[endIndex + 2] != (byte)'D') ||
+                (buffer[endIndex + 3] != (byte)' ')) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        name + " - Bad END "
+                                + buffer[endIndex + 0]
+                                + buffer[endIndex + 1]
+                                + buffer[endIndex + 2]
+                                + buffer[endIndex + 3]);
+                return false;
+            }
+
+            ciiClient.frameReceived(buffer, readIndex + HeaderLength, length);
+
+            readIndex += frameLength;
+        }
+
+        compact();
+
+        return true;
+    }
+
+
+    /**
+     *  Keep the partial frame where it is unless the rest of it would
+     *  not fit, in which case slide it down to the front of the buffer,
+     *  or into a bigger one. The caller re-fetches getBuffer() after this.
+     */
+    private void compact() {
+
+        if (readIndex == writeIndex) {
+            readIndex = 0;
+            writeIndex = 0;
+            return;
+        }
+
+        int needed = HeaderLength;
+        if (writeIndex - readIndex >= HeaderLength) {
+            needed = HeaderLength + getLength(readIndex + 4) + TrailerLength;
+        }
+
+        if (readIndex + needed > buffer.length) {
+            int remaining = writeIndex - readIndex;
+            byte[] target = buffer;
+            if (needed > buffer.length) {
+                target = new byte[Math.max(needed, Math.min(buffer.length * 2,
+                        HeaderLength + maxFrameLength + TrailerLength))];
+            }
+            System.arraycopy(buffer, readIndex, target, 0, remaining);
+            buffer = target;
+            readIndex = 0;
+            writeIndex = remaining;
+        }
+    }
+
+
+    private int getLength(int index) {
+        return  (buffer[index] & 0xFF) |
+                ((buffer[index + 1] & 0xFF) << 8) |
+                ((buffer[index + 2] & 0xFF) << 16) |
+                ((buffer[index + 3] & 0xFF) << 24);
+    }
+}
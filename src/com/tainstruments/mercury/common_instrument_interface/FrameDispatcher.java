@@ -0,0 +1,186 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ *  Optional stage between the reader thread and the handlers. The reader
+ *  copies each frame onto one of a fixed set of worker threads and goes
+ *  straight back to the socket.
+ *
+ *  Frames are partitioned by a key the CiiClient picks, the substatus for
+ *  STAT and the sequence number for ACK / NAK / RSP. Everything with the
+ *  same key lands on the same worker, in order, while unrelated streams
+ *  run in parallel. Each worker has its own bounded queue, so if one falls
+ *  behind the reader waits on it rather than buffering without limit.
+ *
+ *  Package visibility
+ */
+class FrameDispatcher {
+
+    private final CiiClient ciiClient;
+    private final Worker[] workers;
+    private volatile boolean stopped;
+
+
+    public FrameDispatcher(CiiClient client, int threadCount, int queueCapacity) {
+
+        ciiClient = client;
+        workers = new Worker[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i, queueCapacity);
+            workers[i].start();
+        }
+    }
+
+
+    /**
+     *  Reader thread only, the queues have a single producer.
+     */
+    public void dispatch(int key, byte[] buffer, int offset, int dataLength) {
+
+        Worker worker = workerFor(key);
+        int spins = 0;
+
+        while (!worker.queue.offer(buffer, offset, dataLength)) {
+            spins = waitForRoom(worker, spins);
+        }
+
+        worker.wake();
+    }
+
+
+    /**
+     *  Pooled frames go across by reference, the worker releases them.
+     */
+    public void dispatch(int key, CiiFrame frame) {
+
+        Worker worker = workerFor(key);
+        int spins = 0;
+
+        while (!worker.queue.offer(frame)) {
+            spins = waitForRoom(worker, spins);
+        }
+
+        worker.wake();
+    }
+
+
+    private Worker workerFor(int key) {
+        int h = key * 0x9E3779B9;
+        return workers[((h ^ (h >>> 16)) & 0x7FFFFFFF) % workers.length];
+    }
+
+
+    /**
+     *  Full, the worker is behind. Back off and let it catch up.
+     */
+    private int waitForRoom(Worker worker, int spins) {
+
+        worker.wake();
+
+        if (spins < 100) {
+            Thread.yield();
+            return spins + 1;
+        }
+
+        LockSupport.parkNanos(50000);
+        return spins;
+    }
+
+
+    /**
+     *  Each worker routes whatever is already queued, then exits. Call
+     *  once the reader has stopped, nothing may be dispatched after.
+     */
+    public void shutdown() {
+
+        stopped = true;
+
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+
+    /**
+     *  True on one of our workers, they route the answers that free
+     *  window slots.
+     */
+    public boolean isWorkerThread() {
+        Thread current = Thread.currentThread();
+        for (Worker worker : workers) {
+            if (worker == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public int getQueuedFrameCount() {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.queue.size();
+        }
+        return count;
+    }
+
+
+    private class Worker extends Thread {
+
+        private final SpscFrameQueue queue;
+        private volatile boolean parked;
+
+        public Worker(int index, int queueCapacity) {
+            queue = new SpscFrameQueue(queueCapacity);
+            this.setDaemon(true);
+            this.setPriority(Thread.NORM_PRIORITY + 1);
+            this.setName("Cii-Dispatch-Thread-" + index);
+        }
+
+        public void wake() {
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+
+                byte[] buffer = queue.peekBuffer();
+
+                if (buffer == null) {
+                    if (stopped) {
+                        return;
+                    }
+                    parked = true;
+                    if (queue.isEmpty() && !stopped) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+
+                CiiFrame frame = queue.peekFrame();
+
+                try {
+                    if (frame != null) {
+                        ciiClient.routeFrame(frame);
+                    }
+                    else {
+                        ciiClient.routeReceivedMessage(buffer, 0, queue.peekLength());
+                    }
+                } catch (RuntimeException ex) {
+                    ciiClient.asyncErrorManager.sendAsyncError(
+                            getName() + " handler threw " + ex);
+                }
+
+                queue.pop();
+            }
+        }
+    }
+}
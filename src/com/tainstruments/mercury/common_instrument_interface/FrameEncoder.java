@@ -0,0 +1,89 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ *  Builds complete SYNC / length / payload / END frames so the transport
+ *  can put each one on the wire with a single write.
+ *
+ *  Package visibility, only used by CiiClient and the transports.
+ */
+final class FrameEncoder {
+
+    static final int PayloadOffset = FrameDecoder.HeaderLength;
+
+
+    private FrameEncoder() {
+    }
+
+
+    /**
+     *  Returns a frame with the SYNC, length and END already filled in.
+     *  The caller copies its payload in starting at PayloadOffset.
+     */
+    static byte[] allocateFrame(int payloadLength) {
+
+        byte[] frame = new byte[FrameDecoder.HeaderLength
+                                + payloadLength
+                                + FrameDecoder.TrailerLength];
+
+        frame[0] = (byte)'S';
+        frame[1] = (byte)'Y';
+        frame[2] = (byte)'N';
+        frame[3] = (byte)'C';
+
+        frame[4] = (byte)payloadLength;
+        frame[5] = (byte)(payloadLength >>> 8);
+        frame[6] = (byte)(payloadLength >>> 16);
+        frame[7] = (byte)(payloadLength >>> 24);
+
+        int endIndex = PayloadOffset + payloadLength;
+        frame[endIndex + 0] = (byte)'E';
+        frame[endIndex + 1] = (byte)'N';
+        frame[endIndex + 2] = (byte)'D';
+        frame[endIndex + 3] = (byte)' ';
+
+        return frame;
+    }
+
+
+    /**
+     *  Builds a whole GET or ACTN frame, header and trailer included, so
+     *  it goes out on the wire with one write.
+     *  @param type The four message type bytes.
+     *  @param data May be null.
+     */
+    static byte[] encodeCommand(byte[] type, int sequenceNumber, int subcommand, byte[] data) {
+
+        int payloadLength = 12;
+        if (data != null) {
+            payloadLength += data.length;
+        }
+
+        byte[] frame = allocateFrame(payloadLength);
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, PayloadOffset, payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put(type);
+        bb.putInt(sequenceNumber);
+        bb.putInt(subcommand);
+        if (data != null) {
+            bb.put(data);
+        }
+
+        return frame;
+    }
+
+
+    static byte[] wrapPayload(byte[] payload) {
+        byte[] frame = allocateFrame(payload.length);
+        System.arraycopy(payload, 0, frame, PayloadOffset, payload.length);
+        return frame;
+    }
+
+
+    static int payloadLength(byte[] frame) {
+        return frame.length - FrameDecoder.HeaderLength - FrameDecoder.TrailerLength;
+    }
+}
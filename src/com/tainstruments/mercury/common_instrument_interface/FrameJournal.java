@@ -0,0 +1,356 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append only, memory mapped journal of raw frames.
+ *
+ * The journal is a directory of fixed size segment files named
+ * prefix-00000000.cij, prefix-00000001.cij and so on. Each segment starts
+ * with a header, then records packed one after another:
+ *
+ *      int     payload length + 1
+ *      int     tag, whatever the writer wants, e.g. a substatus
+ *      long    System.nanoTime() when the frame was received
+ *      int     CRC32 of tag, timestamp and payload
+ *      byte[]  payload
+ *
+ * The length goes in last, so a record only exists once it is complete.
+ * It's stored one up, so 0 is never written and an empty payload is
+ * still a record.
+ * The pages belong to the OS, so everything appended survives the JVM
+ * dying. After a crash the reopened journal walks the last segment,
+ * stops at the first record that was never written, is out of bounds or
+ * fails its CRC, and carries on appending from the last good one.
+ *
+ * Appends are synchronized, several sources can share one journal.
+ */
+public class FrameJournal {
+
+    static final int Magic = 0x4A494943;             /* "CIIJ" */
+    static final int Version = 2;
+    static final int SegmentHeaderLength = 64;
+    static final int RecordHeaderLength = 20;
+    static final String Suffix = ".cij";
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final CRC32 crc;
+    private final byte[] crcScratch;
+
+    private MappedByteBuffer segment;
+    private long segmentIndex;
+    private int writePosition;
+    private long recordCount;
+    private long droppedCount;
+    private boolean closed;
+
+
+    /**
+     * Opens, recovering if need be, or creates a journal.
+     * @param segmentSize Bytes per segment file, records can't be bigger.
+     */
+    public FrameJournal(File directory, String prefix, int segmentSize) throws IOException {
+
+        if (segmentSize < SegmentHeaderLength + RecordHeaderLength + 1) {
+            throw new IllegalArgumentException("Segment size too small " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        crc = new CRC32();
+        crcScratch = new byte[12];
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+
+        File[] existing = listSegments(directory, prefix);
+
+        if (existing.length == 0) {
+            openSegment(0);
+        }
+        else {
+            recover(existing[existing.length - 1]);
+        }
+    }
+
+
+    /**
+     * Appends one record. Rolls over to a new segment when this one is full.
+     * @return false if the record can never fit in a segment, or the
+     * journal is closed or broken. Those are counted as dropped.
+     */
+    public synchronized boolean append(int tag, long timestamp, byte[] buffer, int offset, int dataLength) {
+
+        int recordLength = RecordHeaderLength + dataLength;
+
+        if (closed || (dataLength < 0) || (recordLength > segmentSize - SegmentHeaderLength)) {
+            droppedCount++;
+            return false;
+        }
+
+        if (writePosition + recordLength > segmentSize) {
+            try {
+                openSegment(segmentIndex + 1);
+            } catch (IOException ex) {
+                System.out.println("FrameJournal rollover failed " + ex);
+                closed = true;
+                droppedCount++;
+                return false;
+            }
+        }
+
+        int position = writePosition;
+
+        segment.position(position + RecordHeaderLength);
+        segment.put(buffer, offset, dataLength);
+
+        segment.putInt(position + 4, tag);
+        segment.putLong(position + 8, timestamp);
+        segment.putInt(position + 16, checksum(tag, timestamp, buffer, offset, dataLength));
+
+        //
+        //  Commit.
+        //
+        segment.putInt(position, dataLength + 1);
+
+        writePosition = position + recordLength;
+        recordCount++;
+        return true;
+    }
+
+
+    /**
+     * Pushes the current segment to disk. Only needed to survive the whole
+     * machine going down, a JVM crash is covered without it. Segments
+     * already rolled over from are left to the OS to write back.
+     */
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        closed = true;
+        segment = null;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+
+    private int checksum(int tag, long timestamp, byte[] buffer, int offset, int dataLength) {
+        return checksum(crc, crcScratch, tag, timestamp, buffer, offset, dataLength);
+    }
+
+
+    /**
+     *  Shared with the reader. scratch is 12 bytes.
+     */
+    static int checksum(CRC32 crc, byte[] crcScratch, int tag, long timestamp,
+                        byte[] buffer, int offset, int dataLength) {
+        crcScratch[0] = (byte)tag;
+        crcScratch[1] = (byte)(tag >>> 8);
+        crcScratch[2] = (byte)(tag >>> 16);
+        crcScratch[3] = (byte)(tag >>> 24);
+        for (int i = 0; i < 8; i++) {
+            crcScratch[4 + i] = (byte)(timestamp >>> (8 * i));
+        }
+        crc.reset();
+        crc.update(crcScratch, 0, 12);
+        crc.update(buffer, offset, dataLength);
+        return (int)crc.getValue();
+    }
+
+
+    static File[] listSegments(File directory, final String prefix) {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for (File f : files) {
+            if (isSegmentName(f.getName(), prefix)) {
+                files[count++] = f;
+            }
+        }
+
+        File[] segments = Arrays.copyOf(files, count);
+
+        //
+        //  Zero padded, so name order is segment order.
+        //
+        Arrays.sort(segments);
+        return segments;
+    }
+
+
+    static String segmentName(String prefix, long index) {
+        return String.format("%s-%08d%s", prefix, index, Suffix);
+    }
+
+
+    private static boolean isSegmentName(String name, String prefix) {
+        if (!name.startsWith(prefix + "-") || !name.endsWith(Suffix)) {
+            return false;
+        }
+        String digits = name.substring(prefix.length() + 1, name.length() - Suffix.length());
+        if (digits.length() != 8) {
+            return false;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+     *  Called from append, on the reader thread, so the full segment isn't
+     *  forced here, a synchronous msync there would stall the reader. The
+     *  OS writes it back on its own, a JVM crash loses none of it.
+     */
+    private void openSegment(long index) throws IOException {
+
+        File file = new File(directory, segmentName(prefix, index));
+        segment = map(file);
+        segmentIndex = index;
+
+        segment.putInt(4, Version);
+        segment.putInt(8, SegmentHeaderLength);
+        segment.putInt(12, segmentSize);
+        segment.putLong(16, index);
+        segment.putLong(24, System.currentTimeMillis());
+        segment.putLong(32, System.nanoTime());
+        segment.putInt(0, Magic);
+
+        writePosition = SegmentHeaderLength;
+    }
+
+
+    /**
+     *  Reopen the last segment after the last record that checks out, and
+     *  zero whatever is past it so a torn record can't be misread later.
+     */
+    private void recover(File last) throws IOException {
+
+        String name = last.getName();
+        long index = Long.parseLong(name.substring(prefix.length() + 1, name.length() - Suffix.length()));
+
+        if (last.length() != segmentSize) {
+            //
+            //  Made with another segment size, or never got its header.
+            //  Leave it alone and start the next one.
+            //
+            openSegment(index + 1);
+            return;
+        }
+
+        segment = map(last);
+        segmentIndex = index;
+
+        if (segment.getInt(0) != Magic) {
+            openSegment(index);
+            return;
+        }
+
+        if (segment.getInt(4) != Version) {
+            //
+            //  Another record layout, leave it for a reader that knows it.
+            //
+            segment = null;
+            openSegment(index + 1);
+            return;
+        }
+
+        int position = SegmentHeaderLength;
+        byte[] scratch = new byte[256];
+
+        while (position + RecordHeaderLength <= segmentSize) {
+
+            int dataLength = segment.getInt(position) - 1;
+
+            if ((dataLength < 0) || (position + RecordHeaderLength + dataLength > segmentSize)) {
+                break;
+            }
+
+            if (scratch.length < dataLength) {
+                scratch = new byte[dataLength];
+            }
+
+            int tag = segment.getInt(position + 4);
+            long timestamp = segment.getLong(position + 8);
+            int expected = segment.getInt(position + 16);
+
+            segment.position(position + RecordHeaderLength);
+            segment.get(scratch, 0, dataLength);
+
+            if (checksum(tag, timestamp, scratch, 0, dataLength) != expected) {
+                break;
+            }
+
+            position += RecordHeaderLength + dataLength;
+            recordCount++;
+        }
+
+        for (int i = position; i < segmentSize; i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte)0);
+            }
+        }
+
+        writePosition = position;
+    }
+
+
+    private MappedByteBuffer map(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return mapped;
+        } finally {
+            //
+            //  The mapping stays valid after the file is closed.
+            //
+            raf.close();
+        }
+    }
+}
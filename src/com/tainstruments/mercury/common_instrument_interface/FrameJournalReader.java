@@ -0,0 +1,194 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * Walks the records of a FrameJournal, oldest first, across all of its
+ * segments. A segment ends at its first record that was never written or
+ * fails its CRC, the same rule the journal uses to recover.
+ *
+ * The current record is held in reused storage, copy anything you need
+ * before calling next() again.
+ */
+public class FrameJournalReader {
+
+    private final File[] segments;
+    private final CRC32 crc;
+    private final byte[] crcScratch;
+
+    private int segmentNumber;
+    private MappedByteBuffer segment;
+    private int readPosition;
+    private int segmentSize;
+    private long segmentWallClock;
+    private long segmentNanoTime;
+
+    private int tag;
+    private long timestamp;
+    private byte[] data;
+    private int dataLength;
+    private long corruptCount;
+
+
+    public FrameJournalReader(File directory, String prefix) {
+        segments = FrameJournal.listSegments(directory, prefix);
+        crc = new CRC32();
+        crcScratch = new byte[12];
+        data = new byte[256];
+        segmentNumber = -1;
+    }
+
+
+    /**
+     * Moves to the next record.
+     * @return false when there are no more.
+     */
+    public boolean next() throws IOException {
+
+        while (true) {
+
+            if (segment == null) {
+                if (!openNextSegment()) {
+                    return false;
+                }
+            }
+
+            if (readRecord()) {
+                return true;
+            }
+
+            segment = null;
+        }
+    }
+
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * @return The System.nanoTime() the writer stamped on the record.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The record timestamp as ms since the epoch, worked out from
+     * the wall clock the writer noted when it opened the segment.
+     */
+    public long getWallClockTime() {
+        return segmentWallClock + (timestamp - segmentNanoTime) / 1000000;
+    }
+
+    /**
+     * @return Storage holding the payload, valid up to getDataLength().
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return Segments whose tail was cut short by a bad record rather than
+     * by running out of space. Normally only the last one, after a crash.
+     */
+    public long getCorruptCount() {
+        return corruptCount;
+    }
+
+
+    private boolean openNextSegment() throws IOException {
+
+        while (++segmentNumber < segments.length) {
+
+            RandomAccessFile raf = new RandomAccessFile(segments[segmentNumber], "r");
+            try {
+                long length = raf.length();
+                if ((length < FrameJournal.SegmentHeaderLength) || (length > Integer.MAX_VALUE)) {
+                    continue;
+                }
+
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+                if ((mapped.getInt(0) != FrameJournal.Magic) ||
+                    (mapped.getInt(4) != FrameJournal.Version)) {
+                    continue;
+                }
+
+                segment = mapped;
+                segmentSize = (int)length;
+                readPosition = mapped.getInt(8);
+                segmentWallClock = mapped.getLong(24);
+                segmentNanoTime = mapped.getLong(32);
+                return true;
+            } finally {
+                raf.close();
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean readRecord() {
+
+        int position = readPosition;
+
+        if (position + FrameJournal.RecordHeaderLength > segmentSize) {
+            return false;
+        }
+
+        int lengthWord = segment.getInt(position);
+
+        if (lengthWord == 0) {
+            return false;
+        }
+
+        int length = lengthWord - 1;
+
+        if ((length < 0) || (position + FrameJournal.RecordHeaderLength + length > segmentSize)) {
+            corruptCount++;
+            return false;
+        }
+
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+
+        int recordTag = segment.getInt(position + 4);
+        long recordTimestamp = segment.getLong(position + 8);
+        int expected = segment.getInt(position + 16);
+
+        segment.position(position + FrameJournal.RecordHeaderLength);
+        segment.get(data, 0, length);
+
+        if (checksum(recordTag, recordTimestamp, length) != expected) {
+            corruptCount++;
+            return false;
+        }
+
+        tag = recordTag;
+        timestamp = recordTimestamp;
+        dataLength = length;
+        readPosition = position + FrameJournal.RecordHeaderLength + length;
+        return true;
+    }
+
+
+    private int checksum(int recordTag, long recordTimestamp, int length) {
+        return FrameJournal.checksum(crc, crcScratch, recordTag, recordTimestamp, data, 0, length);
+    }
+}
@@ -0,0 +1,115 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+
+/**
+ *  Adapts the CommandCompletion callbacks onto a CompletableFuture.
+ *  One of these per async command, so any number can be outstanding.
+ *
+ *  Package visibility
+ */
+class FutureCommandCompletion implements CommandCompletion {
+
+    private final CompletableFuture<CiiResponse> future;
+    private final Executor executor;
+    private final int subcommand;
+    private volatile int sequenceNumber;
+    private volatile CommandTrace trace;
+
+
+    /**
+     *  @param executor Runs the future's completion, null completes it
+     *  right on the reader thread.
+     */
+    public FutureCommandCompletion(int subcommand, Executor executor) {
+        this.subcommand = subcommand;
+        this.executor = executor;
+        future = new CompletableFuture<>();
+    }
+
+
+    public CompletableFuture<CiiResponse> getFuture() {
+        return future;
+    }
+
+
+    @Override
+    public void receiveAck() {
+    }
+
+    @Override
+    public void receiveNak(int errorCode) {
+        complete(new CiiResponse(sequenceNumber, true, subcommand, errorCode, new byte[0], trace));
+    }
+
+    @Override
+    public void receiveResponse(    int subcommand,
+                                    int statusCode,
+                                    byte[] data,
+                                    int startingOffset,
+                                    int dataLength){
+        //
+        //  The reader reuses its buffer, so take our own copy here.
+        //
+        byte[] localData = Arrays.copyOfRange(data, startingOffset, startingOffset + dataLength);
+        complete(new CiiResponse(sequenceNumber, false, subcommand, statusCode, localData, trace));
+    }
+
+    @Override
+    public void saveSequenceNumber(int sequenceNumber){
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public void saveTrace(CommandTrace trace) {
+        this.trace = trace;
+    }
+
+    @Override
+    public void receiveTimeout() {
+        fail(new CiiTimeoutException("Timed out waiting on sequence # " + sequenceNumber));
+    }
+
+    @Override
+    public void receiveConnectionLost() {
+        fail(new CiiConnectionLostException("Connection lost waiting on sequence # " + sequenceNumber));
+    }
+
+    @Override
+    public void receiveProtocolError(String reason) {
+        fail(new CiiCommandException(reason + " on sequence # " + sequenceNumber));
+    }
+
+
+    void fail(final Throwable cause) {
+        if (executor == null) {
+            future.completeExceptionally(cause);
+        }
+        else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.completeExceptionally(cause);
+                }
+            });
+        }
+    }
+
+
+    private void complete(final CiiResponse response) {
+        if (executor == null) {
+            future.complete(response);
+        }
+        else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(response);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency histogram, in ns, with a fixed relative error instead of fixed
+ * width buckets, so 2 us and 2 s are both recorded to within 0.2%.
+ * Values under 1024 ns are counted exactly. Above that each power of two
+ * is split into 512 buckets.
+ *
+ * record() is lock free and allocation free, any number of threads can
+ * record into one histogram while another reads it. A read while records
+ * are landing is a little out of date, never torn.
+ */
+public class LatencyHistogram {
+
+    private final int SubBucketBits = 10;
+    private final int SubBucketCount = 1 << SubBucketBits;
+    private final int SubBucketHalfCount = SubBucketCount / 2;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong totalValue;
+    private final AtomicLong maxValue;
+
+
+    public LatencyHistogram() {
+        //
+        //  Exact below SubBucketCount, then half a sub bucket range for
+        //  every bit above that, up to Long.MAX_VALUE.
+        //
+        counts = new AtomicLongArray(SubBucketCount + (63 - SubBucketBits) * SubBucketHalfCount);
+        totalCount = new AtomicLong();
+        totalValue = new AtomicLong();
+        maxValue = new AtomicLong();
+    }
+
+
+    /**
+     * @param valueInNs Negative values count as 0.
+     */
+    public void record(long valueInNs) {
+
+        long value = Math.max(0, valueInNs);
+
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+
+        long max = maxValue.get();
+        while ((value > max) && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+
+    /**
+     * Adds every count in other to this one.
+     */
+    public void add(LatencyHistogram other) {
+
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+
+        totalCount.addAndGet(other.totalCount.get());
+        totalValue.addAndGet(other.totalValue.get());
+
+        long otherMax = other.maxValue.get();
+        long max = maxValue.get();
+        while ((otherMax > max) && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return (count == 0) ? 0 : (double)totalValue.get() / count;
+    }
+
+
+    /**
+     * @param percentile 0 to 100, 99.9 for the 99.9th.
+     * @return The value at or under which that share of the recorded
+     * values fall, to within the histogram's precision. 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long wanted = (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+        if (wanted < 1) {
+            wanted = 1;
+        }
+
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValueAt(i), maxValue.get());
+            }
+        }
+
+        return maxValue.get();
+    }
+
+
+    /**
+     * One line summary, in us.
+     */
+    public String summary() {
+        return String.format("p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f us  (%d)",
+                                getValueAtPercentile(50) / 1e3,
+                                getValueAtPercentile(99) / 1e3,
+                                getValueAtPercentile(99.9) / 1e3,
+                                getMaxValue() / 1e3,
+                                getTotalCount());
+    }
+
+
+    private int indexOf(long value) {
+
+        if (value < SubBucketCount) {
+            return (int)value;
+        }
+
+        //
+        //  Keep the top SubBucketBits bits, the top one of which is always
+        //  set, so each shift owns SubBucketHalfCount buckets.
+        //
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SubBucketBits + 1;
+        int top = (int)(value >>> shift);
+
+        return SubBucketCount + (shift - 1) * SubBucketHalfCount + (top - SubBucketHalfCount);
+    }
+
+
+    private long highestValueAt(int index) {
+
+        if (index < SubBucketCount) {
+            return index;
+        }
+
+        int shift = (index - SubBucketCount) / SubBucketHalfCount + 1;
+        long top = (index - SubBucketCount) % SubBucketHalfCount + SubBucketHalfCount;
+
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,19 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * What the wire log does with a record when its ring is full.
+ */
+public enum LogDropPolicy
+{
+    /**
+     *  Throw the new record away and count it, the default. Logging never
+     *  holds up the reader or a sender. The log notes how many went.
+     */
+    DropNewest,
+
+    /**
+     *  Wait for the log writer to make room. Nothing is lost, but a slow
+     *  disk slows the client down.
+     */
+    Block
+}
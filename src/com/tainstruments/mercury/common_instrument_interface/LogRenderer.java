@@ -0,0 +1,184 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+/**
+ * Turns a binary wire log back into text, one line per record:
+ *
+ *      wall clock time, ms since the log started, type, length, data
+ *
+ * Text records are printed as text, everything else as hex. A record cut
+ * short by the end of the file, e.g. the process died mid write, ends the
+ * output.
+ *
+ *      java com.tainstruments.mercury.common_instrument_interface.LogRenderer file.cilog ...
+ */
+public class LogRenderer {
+
+    private static final String[] TypeNames = {
+        "TEXT", "COMMAND", "LOGIN", "ACCEPT", "ACK", "NAK", "RSP", "STAT", "UNKNOWN", "DROPPED"
+    };
+
+    private final int readBufferSize = 256 * 1024;
+    private final SimpleDateFormat dateFormat;
+    private final Charset textCharset;
+
+
+    public LogRenderer() {
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        textCharset = Charset.forName("UTF-8");
+    }
+
+
+    /**
+     * @return Records rendered.
+     */
+    public long render(File logFile, PrintStream out) throws IOException {
+
+        FileInputStream stream = new FileInputStream(logFile);
+
+        try {
+            FileChannel channel = stream.getChannel();
+
+            ByteBuffer buffer = ByteBuffer.allocate(readBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+
+            if (!fill(channel, buffer, Logger.HeaderLength)) {
+                throw new IOException(logFile + " is too short for a log");
+            }
+
+            if ((buffer.getInt() != Logger.Magic) || (buffer.getInt() != Logger.Version)) {
+                throw new IOException(logFile + " is not a CII log");
+            }
+
+            long startWallTime = buffer.getLong();
+            long startNanoTime = buffer.getLong();
+            long records = 0;
+
+            while (fill(channel, buffer, Logger.RecordHeaderLength)) {
+
+                int start = buffer.position();
+
+                long timestamp = buffer.getLong();
+                int type = buffer.getInt();
+                int length = buffer.getInt();
+                int frameLength = buffer.getInt();
+
+                if ((length < 0) || (length > buffer.capacity() - Logger.RecordHeaderLength)) {
+                    out.println("Bad record length " + length + ", stopping");
+                    break;
+                }
+
+                //
+                //  Back to the start of the record, a refill may move it.
+                //
+                buffer.position(start);
+                if (!fill(channel, buffer, Logger.RecordHeaderLength + length)) {
+                    break;
+                }
+                buffer.position(buffer.position() + Logger.RecordHeaderLength);
+
+                byte[] data = new byte[length];
+                buffer.get(data);
+
+                long sinceStart = timestamp - startNanoTime;
+
+                StringBuilder line = new StringBuilder();
+                line.append(dateFormat.format(new Date(startWallTime + (sinceStart / 1000000))));
+                line.append(String.format(" %12.3f ", sinceStart / 1e6));
+                line.append(typeName(type));
+                line.append(' ');
+                line.append(frameLength);
+                line.append(' ');
+
+                if (type == Logger.TypeText) {
+                    line.append(new String(data, textCharset));
+                }
+                else if (type == Logger.TypeDropped) {
+                    line.append(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getLong());
+                    line.append(" records dropped");
+                }
+                else {
+                    appendHex(line, data);
+                    if (frameLength > length) {
+                        line.append(" ...");
+                    }
+                }
+
+                out.println(line);
+                records++;
+            }
+
+            return records;
+        } finally {
+            stream.close();
+        }
+    }
+
+
+    /**
+     *  Makes sure at least count bytes are readable from the buffer's
+     *  position, reading more if it has to.
+     *  @return false at the end of the file.
+     */
+    private boolean fill(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+
+        while (buffer.remaining() < count) {
+
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+
+            if (read == -1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static String typeName(int type) {
+        if ((type >= 0) && (type < TypeNames.length)) {
+            return TypeNames[type];
+        }
+        return "TYPE_" + type;
+    }
+
+
+    private static void appendHex(StringBuilder line, byte[] data) {
+        for (byte b : data) {
+            line.append(Character.forDigit((b >> 4) & 0xF, 16));
+            line.append(Character.forDigit(b & 0xF, 16));
+        }
+    }
+
+
+    public static void main(String argv[]){
+
+        if (argv.length == 0) {
+            System.out.println("Usage: LogRenderer file.cilog ...");
+            return;
+        }
+
+        LogRenderer renderer = new LogRenderer();
+
+        for (String name : argv) {
+            try {
+                renderer.render(new File(name), System.out);
+            } catch (IOException ex) {
+                System.out.println("LogRenderer failed on " + name + " " + ex);
+            }
+        }
+    }
+}
@@ -1,234 +1,384 @@
 package com.tainstruments.mercury.common_instrument_interface;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
+ *  Binary log of everything that goes over the wire, one per process.
+ *
+ *  Log() copies the bytes into a preallocated slot of a bounded ring and
+ *  returns, no allocation and no lock. The "Cii-Logger-Thread" drains the
+ *  ring into a buffer and writes it through a FileChannel a batch at a
+ *  time. When the ring is full the drop policy says whether the caller
+ *  waits or the record is dropped and counted.
+ *
+ *  The file is a header, then records, all little endian:
+ *
+ *      header  int magic "CIIL", int version, long wall clock ms,
+ *              long System.nanoTime() at the same moment
+ *      record  long nanoTime, int type, int length, int frameLength,
+ *              length bytes
+ *
+ *  frameLength is the size of what was logged, only the first
+ *  MaxRecordData bytes of it are kept. LogRenderer turns a file back into
+ *  text.
+ *
+ *  Off unless a CiiClientConfiguration names a log directory, or
+ *  /tmp/CIILOG exists when the first client is made.
+ *
  *  Package visibility
  */
 class Logger implements Runnable {
 
-    private boolean loggingEnabled;
-    private final Object logLock;
-    private final Queue<LogMessage> messageQueue;
-    private final Object messageAvailable;
-    private final String touchLogFileName = "/tmp/CIILOG";;
-    private final String logPath = "/tmp";
+    static final int Magic = 0x4C494943;                /* "CIIL" */
+    static final int Version = 1;
+    static final int HeaderLength = 24;
+    static final int RecordHeaderLength = 20;
+    static final int MaxRecordData = 512;
+
+    static final int TypeText = 0;
+    static final int TypeCommand = 1;
+    static final int TypeLogin = 2;
+    static final int TypeAccept = 3;
+    static final int TypeAck = 4;
+    static final int TypeNak = 5;
+    static final int TypeResponse = 6;
+    static final int TypeStatus = 7;
+    static final int TypeUnknown = 8;
+    /**  Written by the logger itself, the data is the long count dropped. */
+    static final int TypeDropped = 9;
+
+    private final String touchLogFileName = "/tmp/CIILOG";
+    private final String touchLogPath = "/tmp";
+    private final int writeBufferSize = 256 * 1024;
+    private final long idleParkNanos = 10000000L;
+    private final Charset textCharset = Charset.forName("UTF-8");
 
     static private Logger instance;
 
+    private volatile boolean loggingEnabled;
+    private LogDropPolicy dropPolicy;
+
+    /*
+     *  The ring. A slot is free for the producer claiming position p when
+     *  its sequence is p, and ready for the writer at p when it's p + 1.
+     */
+    private int slotMask;
+    private AtomicLongArray sequences;
+    private long[] timestamps;
+    private int[] types;
+    private int[] lengths;
+    private int[] frameLengths;
+    private byte[][] data;
+    private AtomicLong tail;
+
+    private final AtomicLong droppedCount;
+    private final AtomicLong writtenCount;
+
+    /*
+     *  Writer thread only.
+     */
+    private long head;
+    private long droppedReported;
+    private FileChannel channel;
+    private ByteBuffer writeBuffer;
+    private File logFile;
+
 
     /**
      *  Private ctor, we are a singleton.
      */
     private Logger() {
-        messageAvailable = new Object();
-        logLock = new Object();
-        messageQueue = new LinkedList<>();
-        File f = new File(touchLogFileName);
-        if (f.exists()){
-            loggingEnabled = true;
-        }
-        else{
-            loggingEnabled = true;
-        }
+        droppedCount = new AtomicLong();
+        writtenCount = new AtomicLong();
     }
 
-    
-    static public Logger getInstance() {
+
+    static public synchronized Logger getInstance() {
 
         if (instance == null) {
-            
             instance = new Logger();
-            Thread thread = new Thread(instance, "Cii-Logger-Thread");
-            thread.setDaemon(true);
-            thread.setPriority(Thread.NORM_PRIORITY + 1);
-            thread.start();
         }
-        
+
         return instance;
     }
 
-    
-    private class LogMessage {
 
-        private final Date timestamp;
-        private byte[] data;
-        private String message;
+    /**
+     *  Turns logging on the first time it's asked to, later configurations
+     *  share whatever the first one set up.
+     */
+    synchronized void start(CiiClientConfiguration configuration) {
 
-        
-        @Override
-        public String toString(){
+        if (loggingEnabled) {
+            return;
+        }
 
-            StringBuilder s = new StringBuilder(timestamp.toString() + " ");
-            if (message != null){
-                s.append(message);
-                s.append(" ");
-            }
-            if (data != null){
-                s.append(Arrays.toString(data));
-            }
+        String directory = configuration.getLogDirectory();
+
+        if ((directory == null) && new File(touchLogFileName).exists()) {
+            directory = touchLogPath;
+        }
+
+        if (directory == null) {
+            return;
+        }
+
+        if (!openLogFile(directory)) {
+            return;
+        }
+
+        int size = 1;
+        while (size < configuration.getLogCapacity()) {
+            size <<= 1;
+        }
+
+        slotMask = size - 1;
+        sequences = new AtomicLongArray(size);
+        timestamps = new long[size];
+        types = new int[size];
+        lengths = new int[size];
+        frameLengths = new int[size];
+        data = new byte[size][MaxRecordData];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        tail = new AtomicLong();
+        dropPolicy = configuration.getLogDropPolicy();
 
-            return s.toString();
+        Thread thread = new Thread(this, "Cii-Logger-Thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY + 1);
+        thread.start();
+
+        loggingEnabled = true;
+    }
+
+
+    boolean isEnabled() {
+        return loggingEnabled;
+    }
+
+    /**
+     *  @return Records thrown away because the ring was full.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    File getLogFile() {
+        return logFile;
+    }
+
+
+    public void Log(int type, byte [] buffer, int dataLength){
+        Log(type, buffer, 0, dataLength);
+    }
+
+
+    public void Log(String message){
+
+        if (!loggingEnabled){
+            return;
         }
 
-        
-        public LogMessage(String message, byte[] buffer, int dataLength){
-            timestamp = new Date();
-            if (message != null){
-                this.message = message;
+        byte[] text = message.getBytes(textCharset);
+        Log(TypeText, text, 0, text.length);
+    }
+
+
+    public void Log(int type, byte [] buffer, int offset, int dataLength){
+
+        if (!loggingEnabled){
+            return;
+        }
+
+        long timestamp = System.nanoTime();
+        long position;
+
+        while (true) {
+
+            position = tail.get();
+            long available = sequences.get((int)position & slotMask) - position;
+
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
             }
-            if (buffer != null){
-                data = Arrays.copyOf(buffer, dataLength);
+            else if (available < 0) {
+                //
+                //  Full.
+                //
+                if (dropPolicy == LogDropPolicy.DropNewest) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(50000);
             }
         }
 
+        int slot = (int)position & slotMask;
+        int length = (buffer == null) ? 0 : Math.min(dataLength, MaxRecordData);
+
+        timestamps[slot] = timestamp;
+        types[slot] = type;
+        lengths[slot] = length;
+        frameLengths[slot] = (buffer == null) ? 0 : dataLength;
+        if (length > 0) {
+            System.arraycopy(buffer, offset, data[slot], 0, length);
+        }
+
+        sequences.lazySet(slot, position + 1);
     }
-    
+
 
     @Override
     public void run(){
 
-        boolean isMessageAvailable;
-        boolean wasEnabled = false;
-        BufferedWriter writer = null;
-
         while(true){
 
-            synchronized (messageAvailable){
-                try {
-                    messageAvailable.wait(1000);
-                } catch (InterruptedException ex)
-                {}
-            }
+            int drained = 0;
 
-            File f = new File(touchLogFileName);
-            loggingEnabled = f.exists();
-
-            //
-            //  Turning it on, create a file.
-            //
-            if (loggingEnabled && !wasEnabled) {
-
-                Calendar now = Calendar.getInstance();
-                
-                String filename =   logPath + "/" +
-                                    (now.get(Calendar.YEAR)) + "_" +
-                                    now.get(Calendar.MONTH) + "_" +
-                                    now.get(Calendar.DAY_OF_MONTH) + "___" +
-                                    now.get(Calendar.HOUR_OF_DAY) + "_" +
-                                    now.get(Calendar.MINUTE) + "_" +
-                                    now.get(Calendar.SECOND) + 
-                                    ".log";
-
-                File logFile=new File(filename);
-
-                try {
-                    writer = new BufferedWriter(new FileWriter(logFile));
-                } catch(IOException ex) {
-                    System.out.println("Log Writer Failed making writer " + ex);
-                    writer = null;
-                }
-            }
-            //
-            //  Turning it off, close the file.
-            //
-            else if (!loggingEnabled && wasEnabled) {
-                if (writer != null){
-                    try{
-                        writer.flush();
-                        writer.close();
-                    }catch(IOException ex){
-                        System.out.println("Log Writer Close Exception " + ex);
-                    }
+            while (true) {
+
+                int slot = (int)head & slotMask;
+
+                if (sequences.get(slot) != head + 1) {
+                    break;
                 }
-            }
 
-            wasEnabled = loggingEnabled;
+                if (writeBuffer.remaining() < RecordHeaderLength + lengths[slot]) {
+                    writeOut();
+                }
 
-            if (!loggingEnabled) {
-                continue;
+                writeBuffer.putLong(timestamps[slot]);
+                writeBuffer.putInt(types[slot]);
+                writeBuffer.putInt(lengths[slot]);
+                writeBuffer.putInt(frameLengths[slot]);
+                writeBuffer.put(data[slot], 0, lengths[slot]);
+
+                //
+                //  Slot goes back to the producers, one lap on.
+                //
+                sequences.lazySet(slot, head + slotMask + 1);
+                head++;
+                drained++;
             }
 
-            synchronized(logLock) {
-
-                isMessageAvailable = !messageQueue.isEmpty();
-                
-                while (isMessageAvailable) {
-                    
-                    LogMessage msg = messageQueue.poll();
-                    try {
-                        //System.out.println(msg.toString());
-                        writer.write(msg.toString() + "\n");
-                    } catch (IOException ex) {
-                        System.out.println("Log Writer Failed writing " + ex);
-                    }
-
-                    isMessageAvailable = !messageQueue.isEmpty();
+            long dropped = droppedCount.get();
+            if (dropped != droppedReported) {
+                if (writeBuffer.remaining() < RecordHeaderLength + 8) {
+                    writeOut();
                 }
+                writeBuffer.putLong(System.nanoTime());
+                writeBuffer.putInt(TypeDropped);
+                writeBuffer.putInt(8);
+                writeBuffer.putInt(8);
+                writeBuffer.putLong(dropped - droppedReported);
+                droppedReported = dropped;
             }
 
-            try {
-                writer.flush();
-            } catch (IOException ex) {
-                System.out.println("Log Writer Failed flushing " + ex);
+            if (writeBuffer.position() > 0) {
+                writeOut();
+            }
+
+            writtenCount.addAndGet(drained);
+
+            if (drained == 0) {
+                LockSupport.parkNanos(idleParkNanos);
             }
         }
     }
 
 
-    public void Log(String message, byte [] buffer, int dataLength){
-        
-        if (loggingEnabled){
+    private boolean openLogFile(String directory) {
 
-            LogMessage msg = new LogMessage(message, buffer, dataLength);
+        Calendar now = Calendar.getInstance();
 
-            synchronized(logLock){
-                messageQueue.add(msg);
-            }
+        String filename =   directory + "/" +
+                            (now.get(Calendar.YEAR)) + "_" +
+                            now.get(Calendar.MONTH) + "_" +
+                            now.get(Calendar.DAY_OF_MONTH) + "___" +
+                            now.get(Calendar.HOUR_OF_DAY) + "_" +
+                            now.get(Calendar.MINUTE) + "_" +
+                            now.get(Calendar.SECOND) +
+                            ".cilog";
 
-            synchronized(messageAvailable){
-                messageAvailable.notify();
+        try {
+            logFile = new File(filename);
+            channel = new FileOutputStream(logFile).getChannel();
+        } catch (IOException ex) {
+            System.out.println("Log Writer Failed making file " + ex);
+            return false;
+        }
+
+        writeBuffer = ByteBuffer.allocateDirect(writeBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        writeBuffer.putInt(Magic);
+        writeBuffer.putInt(Version);
+        writeBuffer.putLong(System.currentTimeMillis());
+        writeBuffer.putLong(System.nanoTime());
+        writeOut();
+
+        return true;
+    }
+
+
+    private void writeOut() {
+
+        writeBuffer.flip();
+
+        try {
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
             }
+        } catch (IOException ex) {
+            System.out.println("Log Writer Failed writing " + ex);
         }
+
+        writeBuffer.clear();
     }
 
 
     public static void main(String argv[]){
         System.out.println("Unit Test of logging");
 
-        Logger logger = Logger.getInstance();
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setLogDirectory(argv.length > 0 ? argv[0] : "/tmp");
 
-        logger.Log("Hi from a log string", null, 0);
+        Logger logger = Logger.getInstance();
+        logger.start(configuration);
 
-        try {
-            Thread.sleep(3000);
-        } catch (InterruptedException ex) {
-        }
+        logger.Log("Hi from a log string");
 
-        
-        for (int i = 0; i<100; i++){
-            logger.Log("LogStr " + i, null, 0);
+        byte[] frame = new byte[64];
+        for (int i = 0; i < 100000; i++){
+            logger.Log(TypeStatus, frame, frame.length);
         }
 
         try {
-            Thread.sleep(3000);
+            Thread.sleep(1000);
         } catch (InterruptedException ex) {
         }
 
-        for (int i = 1000; i<1100; i++){
-            logger.Log("LogStr " + i, null, 0);
-        }
-
-        
-        try {
-            Thread.sleep(30000);
-        } catch (InterruptedException ex) {
-        }
+        System.out.println("Wrote " + logger.getWrittenCount() +
+                            " dropped " + logger.getDroppedCount() +
+                            " to " + logger.getLogFile());
 
         System.out.println("Exiting Unit Test");
     }
@@ -1,24 +1,187 @@
 package com.tainstruments.mercury.common_instrument_interface;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+/**
+ *  One reusable slot in the MessagesInFlight ring.
+ *
+ *  The sequence number and the state live together in a single long, so
+ *  every transition is one CAS that also proves the slot still belongs to
+ *  the command we think it does. A slot that was freed and handed to a
+ *  new command can't be touched by a stale ACK / RSP / timeout.
+ *
+ *      Free -> Reserved -> Sent -> Acked -> Done -> Free
+ *                            \______________/
+ */
 class MessageTracker {
 
-    private final CommandCompletion commandCompletion;
-    private boolean ackReceived;
+    static final int StateFree = 0;
+    static final int StateReserved = 1;
+    static final int StateSent = 2;
+    static final int StateAcked = 3;
+    static final int StateDone = 4;
+
+    private static final AtomicLongFieldUpdater<MessageTracker> StampUpdater =
+            AtomicLongFieldUpdater.newUpdater(MessageTracker.class, "stamp");
+
+    private final MessagesInFlight owner;
+    private volatile long stamp;
+    private CommandCompletion commandCompletion;
+    private boolean claimedAfterAck;
+    private long sentAt;
+    private CommandTrace trace;
+
+    //
+    //  Owned by the TimingWheel, only touched under its lock.
+    //
+    MessageTracker wheelNext;
+    MessageTracker wheelPrev;
+    int wheelBucket;
+    int wheelSequenceNumber;
+    long deadlineTick;
+
+    public MessageTracker(MessagesInFlight owner) {
+        this.owner = owner;
+        stamp = pack(0, StateFree);
+        wheelBucket = -1;
+    }
+
+    public MessagesInFlight getOwner() {
+        return owner;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceOf(stamp);
+    }
 
-    public MessageTracker(CommandCompletion c) {
-        commandCompletion = c;
+    public int getState() {
+        return stateOf(stamp);
     }
 
+    /**
+     *  Only stable while the caller owns the slot, or before it checks the
+     *  slot still has the sequence number it expects.
+     */
     public CommandCompletion getCommandCompletion() {
         return commandCompletion;
     }
 
+    /**
+     *  True while this slot holds the command and it is still waiting on
+     *  an answer.
+     */
+    public boolean isInFlight(int sequenceNumber) {
+        long v = stamp;
+        int state = stateOf(v);
+        return  (sequenceOf(v) == sequenceNumber) &&
+                ((state == StateSent) || (state == StateAcked));
+    }
+
+    /**
+     *  System.nanoTime() when the command went in flight. Same rules as
+     *  getCommandCompletion().
+     */
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    /**
+     *  null unless the client traces commands. Same rules again.
+     */
+    public CommandTrace getTrace() {
+        return trace;
+    }
+
     public boolean getAckReceived() {
-        return ackReceived;
+        return stateOf(stamp) == StateAcked;
+    }
+
+    /**
+     *  For the owner of a claimed slot, was the ACK in before the claim.
+     */
+    public boolean wasAckedWhenClaimed() {
+        return claimedAfterAck;
+    }
+
+    /**
+     *  @return false if this slot is not waiting on an ACK for this
+     *  sequence number, i.e. a double ACK or a stale one.
+     */
+    public boolean setAckReceived(int sequenceNumber) {
+        return StampUpdater.compareAndSet(this,
+                                            pack(sequenceNumber, StateSent),
+                                            pack(sequenceNumber, StateAcked));
+    }
+
+
+    boolean tryReserve(int sequenceNumber) {
+        long v = stamp;
+        if (stateOf(v) != StateFree) {
+            return false;
+        }
+        return StampUpdater.compareAndSet(this, v, pack(sequenceNumber, StateReserved));
+    }
+
+    boolean isReserved(int sequenceNumber) {
+        return stamp == pack(sequenceNumber, StateReserved);
+    }
+
+    /**
+     *  Reserved -> Sent. The volatile write publishes the completion to
+     *  the reader thread.
+     */
+    boolean publish(int sequenceNumber, CommandCompletion completion, CommandTrace trace) {
+        if (stamp != pack(sequenceNumber, StateReserved)) {
+            return false;
+        }
+        commandCompletion = completion;
+        this.trace = trace;
+        sentAt = System.nanoTime();
+        stamp = pack(sequenceNumber, StateSent);
+        return true;
+    }
+
+    /**
+     *  Sent or Acked -> Done. Whoever wins this owns the completion until
+     *  they release the slot.
+     *  @return The state we took it from, or StateFree if we lost.
+     */
+    int claim(int sequenceNumber) {
+        while (true) {
+            long v = stamp;
+            int state = stateOf(v);
+            if ((sequenceOf(v) != sequenceNumber) ||
+                ((state != StateSent) && (state != StateAcked))) {
+                return StateFree;
+            }
+            if (StampUpdater.compareAndSet(this, v, pack(sequenceNumber, StateDone))) {
+                claimedAfterAck = (state == StateAcked);
+                return state;
+            }
+        }
     }
 
-    public void setAckReceived() {
-        ackReceived = true;
+    /**
+     *  Done (or a Reserved slot that was never sent) -> Free.
+     */
+    void release() {
+        commandCompletion = null;
+        trace = null;
+        stamp = pack(sequenceOf(stamp), StateFree);
+        owner.released();
     }
 
+
+    private static long pack(int sequenceNumber, int state) {
+        return ((long)sequenceNumber << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    private static int sequenceOf(long v) {
+        return (int)(v >>> 32);
+    }
+
+    private static int stateOf(long v) {
+        return (int)v;
+    }
 }
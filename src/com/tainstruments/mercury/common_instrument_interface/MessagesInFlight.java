@@ -1,89 +1,300 @@
 package com.tainstruments.mercury.common_instrument_interface;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+
+/**
+ *  Fixed size ring of preallocated MessageTracker slots. A sequence number
+ *  maps straight to its slot, so there is no map, no boxing and no lock
+ *  between the senders and the reader thread.
+ */
 class MessagesInFlight {
 
-    private int sequenceNumberGenerator;
-    private final Object sequenceNumberLock;
-    private final HashMap<Integer, MessageTracker> messagesInFlight;
+    private final AtomicInteger sequenceNumberGenerator;
+    private final MessageTracker[] slots;
+    private final int slotMask;
+    private final TimingWheel timingWheel;
+    private final CommandWindow window;
 
 
     public MessagesInFlight() {
-        sequenceNumberLock = new Object();
-        sequenceNumberGenerator = Integer.MAX_VALUE - 10;
-        messagesInFlight = new HashMap<>();
+        this(1024);
     }
 
-    
-    public int getSequenceNumber() {
 
-        int value;
+    /**
+     *  @param capacity Most commands that can be outstanding at once,
+     *  rounded up to a power of two.
+     */
+    public MessagesInFlight(int capacity) {
+        this(capacity, null);
+    }
 
-        synchronized(sequenceNumberLock){
-            
-            do {
 
-                sequenceNumberGenerator++;
+    /**
+     *  @param window Given back a slot each time a command leaves flight,
+     *  may be null.
+     */
+    MessagesInFlight(int capacity, CommandWindow window) {
 
-                if (sequenceNumberGenerator == Integer.MAX_VALUE){
-                    sequenceNumberGenerator = 1;
-                }
-                else if (sequenceNumberGenerator <= 0){
-                    sequenceNumberGenerator = 1;
-                }
-                
-            } while (messagesInFlight.containsKey(sequenceNumberGenerator));
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
 
-            value = sequenceNumberGenerator;
+        slots = new MessageTracker[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new MessageTracker(this);
         }
-        
-        return value;
+        slotMask = size - 1;
+
+        sequenceNumberGenerator = new AtomicInteger(Integer.MAX_VALUE - 10);
+        timingWheel = TimingWheel.getInstance();
+        this.window = window;
     }
 
-    
-    public void add(int sequenceNumber, CommandCompletion completion) {
-        
-        synchronized (sequenceNumberLock) {
-
-            //System.out.println("Adding sequenceNumber - " + sequenceNumber);
-            MessageTracker v = messagesInFlight.put(sequenceNumber, new MessageTracker(completion));
-            
-            //
-            //  Sanity check, this should ALWAYS be null.
-            //
-            if (v != null){
-                throw new RuntimeException("Internal Error - duplicate messages in flight");
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+
+    /**
+     *  Walks the ring, so it's for monitoring, not the hot path.
+     *  @return Commands sent and not yet answered, a snapshot.
+     */
+    public int getInFlightCount() {
+
+        int count = 0;
+
+        for (MessageTracker tracker : slots) {
+            int state = tracker.getState();
+            if ((state == MessageTracker.StateSent) || (state == MessageTracker.StateAcked)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     *  Reserves a slot for a new command.
+     *  @return The sequence number, or -1 if every slot is in use.
+     */
+    public int getSequenceNumber() {
+
+        for (int attempt = 0; attempt < slots.length; attempt++) {
+
+            int sequenceNumber = nextSequenceNumber();
+
+            if (slots[sequenceNumber & slotMask].tryReserve(sequenceNumber)) {
+                return sequenceNumber;
             }
         }
+
+        return -1;
+    }
+
+
+    public void add(int sequenceNumber, CommandCompletion completion) {
+        add(sequenceNumber, completion, 0);
+    }
+
+
+    /**
+     *  @param timeoutInMs If the command is still in flight after this long
+     *  it is dropped and its completion gets receiveTimeout().
+     *  0 means wait forever.
+     */
+    public void add(int sequenceNumber, CommandCompletion completion, long timeoutInMs) {
+        add(sequenceNumber, completion, timeoutInMs, null);
+    }
+
+
+    /**
+     *  @param trace Stamped as the command times out or is lost, may be
+     *  null.
+     */
+    public void add(int sequenceNumber, CommandCompletion completion, long timeoutInMs, CommandTrace trace) {
+
+        MessageTracker tracker = slots[sequenceNumber & slotMask];
+
+        //
+        //  Schedule while the slot is still only Reserved, and so ours.
+        //  Once it's published it can be answered and reserved for the
+        //  next command, which a late schedule here would clobber. If
+        //  the deadline passes before the publish, expire() puts it back.
+        //
+        if (timeoutInMs > 0) {
+            timingWheel.schedule(tracker, sequenceNumber, timeoutInMs);
+        }
+
+        //
+        //  Sanity check, the slot has to be the one we reserved.
+        //
+        if (!tracker.publish(sequenceNumber, completion, trace)) {
+            throw new RuntimeException("Internal Error - duplicate messages in flight");
+        }
     }
 
-    
-    public void remove(int sequenceNumber) {
 
-        synchronized (sequenceNumberLock) {
-            //System.out.println("Removing sequenceNumber - " + sequenceNumber);
-            messagesInFlight.remove(sequenceNumber);
+    /**
+     *  Drop a command without telling its completion.
+     *  @return false if it was already out of flight, answered, timed out
+     *  or lost with the connection.
+     */
+    public boolean remove(int sequenceNumber) {
+
+        MessageTracker tracker = slots[sequenceNumber & slotMask];
+
+        if (tracker.claim(sequenceNumber) == MessageTracker.StateFree) {
+            return false;
         }
+
+        tracker.release();
+        return true;
     }
 
 
+    /**
+     *  Returns the slot for a command that is still waiting on an answer,
+     *  or null. Use claim() to take it out of flight.
+     */
     public MessageTracker get(int sequenceNumber) {
 
-        synchronized (sequenceNumberLock) {
-            MessageTracker messageTracker = messagesInFlight.get(sequenceNumber);
-            return messageTracker;
+        MessageTracker tracker = slots[sequenceNumber & slotMask];
+
+        if (tracker.isInFlight(sequenceNumber)) {
+            return tracker;
         }
+        return null;
     }
 
+
+    /**
+     *  Takes a command out of flight. The caller owns the returned slot
+     *  until it calls release() on it.
+     *  @return The slot, or null if the command is not in flight.
+     */
+    public MessageTracker claim(int sequenceNumber) {
+
+        MessageTracker tracker = slots[sequenceNumber & slotMask];
+
+        if (tracker.claim(sequenceNumber) == MessageTracker.StateFree) {
+            return null;
+        }
+        return tracker;
+    }
+
+
+    /**
+     *  Takes every command out of flight and tells each completion the
+     *  connection is gone, so nobody waits out their timeout for an answer
+     *  that can't come.
+     */
     public void clear() {
 
-        synchronized (sequenceNumberLock) {
-            messagesInFlight.clear();
+        //
+        //  First, so nothing queued gets sent into the slots we're
+        //  freeing.
+        //
+        if (window != null) {
+            window.abandonQueued();
+        }
+
+        for (MessageTracker tracker : slots) {
+
+            int sequenceNumber = tracker.getSequenceNumber();
+
+            if (tracker.claim(sequenceNumber) == MessageTracker.StateFree) {
+                continue;
+            }
+
+            CommandCompletion completion = tracker.getCommandCompletion();
+            CommandTrace trace = tracker.getTrace();
+            tracker.release();
+
+            if (trace != null) {
+                trace.answered(CommandTrace.OutcomeConnectionLost, System.nanoTime());
+            }
+
+            if (completion != null) {
+                try {
+                    completion.receiveConnectionLost();
+                } catch (RuntimeException ex) {
+                    //
+                    //  Don't let one bad completion strand the rest.
+                    //
+                    System.out.println("MessagesInFlight.clear completion threw " + ex);
+                }
+            }
+
+            if (trace != null) {
+                trace.completed(System.nanoTime());
+            }
+        }
+    }
+
+
+    /**
+     *  Called from the TimingWheel thread once a deadline passes. The
+     *  command may well have completed in the meantime, that's fine.
+     */
+    void expire(MessageTracker tracker, int sequenceNumber) {
+
+        if (tracker.claim(sequenceNumber) == MessageTracker.StateFree) {
+            if (tracker.isReserved(sequenceNumber)) {
+                //
+                //  Still on its way out, give it another tick.
+                //
+                timingWheel.schedule(tracker, sequenceNumber, 1);
+            }
+            return;
+        }
+
+        CommandCompletion completion = tracker.getCommandCompletion();
+        CommandTrace trace = tracker.getTrace();
+        tracker.release();
+
+        if (trace != null) {
+            trace.answered(CommandTrace.OutcomeTimeout, System.nanoTime());
+        }
+
+        if (completion != null) {
+            completion.receiveTimeout();
+        }
+
+        if (trace != null) {
+            trace.completed(System.nanoTime());
         }
     }
 
 
-    
+    /**
+     *  A slot went back to Free.
+     */
+    void released() {
+        if (window != null) {
+            window.release();
+        }
+    }
+
+
+    private int nextSequenceNumber() {
+
+        while (true) {
+
+            int current = sequenceNumberGenerator.get();
+            int next = current + 1;
 
+            if ((next == Integer.MAX_VALUE) || (next <= 0)) {
+                next = 1;
+            }
+
+            if (sequenceNumberGenerator.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
 }
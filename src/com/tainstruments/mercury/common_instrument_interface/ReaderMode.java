@@ -0,0 +1,13 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * How the reader pulls frames off the socket.
+ */
+public enum ReaderMode
+{
+    /**  Two blocking reads per frame, header then body. */
+    FrameAtATime,
+
+    /**  Read everything available, then parse every complete frame in place. */
+    Bulk
+}
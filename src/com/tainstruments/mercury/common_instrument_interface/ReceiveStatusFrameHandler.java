@@ -0,0 +1,24 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+/**
+ * A status handler that takes the message as a CiiFrame, so it can keep
+ * the data past the callback with retain() / release() instead of
+ * copying it.
+ */
+public interface ReceiveStatusFrameHandler extends ReceiveStatusHandler {
+
+    void receiveStatus(int substatus, CiiFrame frame);
+
+    /*
+     *  Only used if the client isn't pooling frames, wraps a copy.
+     */
+    @Override
+    default void receiveStatus(int substatus, byte[] buffer, int startingOffset, int dataLength) {
+        CiiFrame frame = CiiFramePool.copyOf(buffer, startingOffset, dataLength);
+        try {
+            receiveStatus(substatus, frame);
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+
+/**
+ *  The non blocking transport. The socket lives on one of the threads of
+ *  a CiiEventLoopGroup, which reads it whenever there is something to read
+ *  and routes the frames from there.
+ *
+ *  Sends go straight out on the caller's thread when the socket takes
+ *  them. Whatever it doesn't take is queued, in order, and written by the
+ *  loop as room frees up.
+ */
+class SelectorTransport implements ClientTransport, CiiEventLoopGroup.Handler {
+
+    /*
+     *  Public API -------------------------------------------------------
+     */
+    @Override
+    public boolean connect() {
+
+        disconnectRequested = false;
+
+        SocketChannel newChannel = null;
+
+        try {
+            newChannel = openChannel();
+            newChannel.socket().connect(new InetSocketAddress(serverAddress, serverConnectionPort),
+                                        connectTimeout);
+            newChannel.configureBlocking(false);
+        } catch (IOException ex) {
+            ciiClient.asyncErrorManager.sendAsyncError(
+                    "Connect failed with IOException " + ex);
+            closeQuietly(newChannel);
+            return false;
+        }
+
+        attach(newChannel);
+
+        final SocketChannel registering = newChannel;
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                register(registering);
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> connectAsync(long timeoutInMs) {
+
+        disconnectRequested = false;
+
+        final SocketChannel newChannel;
+
+        try {
+            newChannel = openChannel();
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new CiiConnectException("Connect failed with " + ex));
+            return failed;
+        }
+
+        return ChannelConnector.connect(eventLoop,
+                                        newChannel,
+                                        new InetSocketAddress(serverAddress, serverConnectionPort),
+                                        timeoutInMs)
+                .thenApplyAsync(new Function<Void, Void>() {
+                    @Override
+                    public Void apply(Void ignored) {
+                        //
+                        //  Always on our loop, the connect may have been
+                        //  done before we got to add this.
+                        //
+                        attach(newChannel);
+                        register(newChannel);
+                        return null;
+                    }
+                }, eventLoop);
+    }
+
+    @Override
+    public void disconnect() {
+
+        disconnectRequested = true;
+
+        SocketChannel closing;
+
+        synchronized (sendMessageLock) {
+            closing = channel;
+            channel = null;
+            pendingWrites.clear();
+        }
+
+        //
+        //  Closing cancels the key, the loop drops it on its next select.
+        //
+        closeQuietly(closing);
+        eventLoop.getSelector().wakeup();
+    }
+
+    @Override
+    public byte[] getLocalAddress() {
+
+        SocketChannel current = channel;
+        InetAddress localAddress = current.socket().getLocalAddress();
+        return localAddress.getAddress();
+    }
+
+    @Override
+    public boolean sendMessage(byte[] buffer) {
+        return sendFrame(FrameEncoder.wrapPayload(buffer));
+    }
+
+    @Override
+    public boolean sendFrame(byte[] frame) {
+
+        SocketChannel failed = null;
+
+        synchronized (sendMessageLock) {
+
+            if (channel == null) {
+                return false;
+            }
+
+            if (batch != null) {
+                batch.write(frame, 0, frame.length);
+                return true;
+            }
+
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(frame);
+
+                //
+                //  Only write directly if nothing is queued ahead of us,
+                //  or frames would go out of order.
+                //
+                if (pendingWrites.isEmpty()) {
+                    channel.write(bb);
+                }
+
+                if (bb.hasRemaining()) {
+                    pendingWrites.add(bb);
+                    if (pendingWrites.size() == 1) {
+                        requestWritable();
+                    }
+                }
+
+                return true;
+            }
+            catch (IOException ex) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        "SendMessage failed with IOException " + ex);
+                failed = channel;
+                channel = null;
+                pendingWrites.clear();
+            }
+        }
+
+        //
+        //  Closing cancels the key, so the loop would never see a read
+        //  fail. Report the drop from there ourselves, as a read would.
+        //
+        final SocketChannel lost = failed;
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectionLost(lost);
+            }
+        });
+
+        return false;
+    }
+
+    @Override
+    public void beginBatch() {
+        synchronized (sendMessageLock) {
+            if (batch == null) {
+                batch = new ByteArrayOutputStream();
+            }
+        }
+    }
+
+    @Override
+    public boolean isReceiveThread() {
+        return eventLoop.inEventLoop();
+    }
+
+    @Override
+    public void endBatch() {
+        synchronized (sendMessageLock) {
+            ByteArrayOutputStream held = batch;
+            batch = null;
+            if ((held != null) && (held.size() > 0)) {
+                sendFrame(held.toByteArray());
+            }
+        }
+    }
+
+
+    public SelectorTransport(String serverIpString,
+                                CiiClient client,
+                                CiiClientConfiguration configuration) {
+
+        try {
+            serverAddress = InetAddress.getByName(serverIpString);
+            if (serverAddress == null){
+                throw new RuntimeException("Invalid IP Address");
+            }
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("Invalid IP Address " + ex);
+        }
+
+        ciiClient = client;
+        serverConnectionPort = configuration.getPort();
+        tcpNoDelay = configuration.getTcpNoDelay();
+        sendBufferSize = configuration.getSendBufferSize();
+        receiveBufferSize = configuration.getReceiveBufferSize();
+        connectTimeout = (int)Math.min(Integer.MAX_VALUE, configuration.getConnectTimeout());
+
+        eventLoop = configuration.getEventLoopGroup().next();
+
+        frameDecoder = new FrameDecoder(client, maxReadBuffer, initialReadBuffer);
+        frameDecoder.setName("SelectorTransport " + serverIpString);
+
+        pendingWrites = new ArrayDeque<>();
+        sendMessageLock = new Object();
+        disconnectRequested = false;
+    }
+
+
+
+    /***********************************************************************
+     *                          Private
+     **********************************************************************/
+    private final InetAddress serverAddress;
+    private final int serverConnectionPort;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int connectTimeout;
+    private final int maxReadBuffer = 10 * 1024 * 1024;
+    private final int initialReadBuffer = 64 * 1024;
+    private final CiiClient ciiClient;
+    private final CiiEventLoopGroup.EventLoop eventLoop;
+    private final FrameDecoder frameDecoder;
+
+    /*
+     *  Guarded by sendMessageLock. The loop thread reads channel without
+     *  it, it only ever acts on the channel of the key it was woken for.
+     */
+    private final Object sendMessageLock;
+    private final ArrayDeque<ByteBuffer> pendingWrites;
+    private ByteArrayOutputStream batch;
+    private volatile SocketChannel channel;
+    private SelectionKey key;
+
+    private volatile boolean disconnectRequested;
+
+    /*
+     *  Loop thread only. Rewrapped when the decoder grows its buffer.
+     */
+    private ByteBuffer readView;
+
+
+
+    private SocketChannel openChannel() throws IOException {
+
+        SocketChannel newChannel = SocketChannel.open();
+
+        try {
+            newChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            if (sendBufferSize > 0) {
+                newChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                newChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+        } catch (IOException ex) {
+            closeQuietly(newChannel);
+            throw ex;
+        }
+
+        return newChannel;
+    }
+
+
+    private void attach(SocketChannel newChannel) {
+        synchronized (sendMessageLock) {
+            pendingWrites.clear();
+            key = null;
+            channel = newChannel;
+        }
+    }
+
+
+    /**
+     *  Loop thread.
+     */
+    private void register(SocketChannel registering) {
+
+        synchronized (sendMessageLock) {
+
+            if (channel != registering) {
+                //
+                //  Disconnected before we got here.
+                //
+                return;
+            }
+
+            //
+            //  Any half frame left from the last connection goes.
+            //
+            frameDecoder.reset();
+
+            int ops = SelectionKey.OP_READ;
+            if (!pendingWrites.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+
+            try {
+                key = registering.register(eventLoop.getSelector(), ops, this);
+            } catch (ClosedChannelException ex) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     *  Holding sendMessageLock. Asks the loop for a writable callback.
+     */
+    private void requestWritable() {
+
+        final SelectionKey current = key;
+
+        if (current == null) {
+            //
+            //  Not registered yet, register() picks up the pending writes.
+            //
+            return;
+        }
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (current.isValid()) {
+                    current.interestOps(current.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
+
+    @Override
+    public void readable(SelectionKey readyKey) {
+
+        SocketChannel ready = (SocketChannel)readyKey.channel();
+
+        if (ready != channel) {
+            readyKey.cancel();
+            return;
+        }
+
+        byte[] buffer = frameDecoder.getBuffer();
+
+        if ((readView == null) || (readView.array() != buffer)) {
+            readView = ByteBuffer.wrap(buffer);
+        }
+
+        readView.limit(buffer.length);
+        readView.position(frameDecoder.getWriteIndex());
+
+        int bytesRead;
+
+        try {
+            bytesRead = ready.read(readView);
+        } catch (IOException ex) {
+            ciiClient.asyncErrorManager.sendAsyncError(
+                    "SelectorTransport Read failed with IOException " + ex);
+            connectionLost(ready);
+            return;
+        }
+
+        if (bytesRead == -1) {
+            ciiClient.asyncErrorManager.sendAsyncError(
+                    "SelectorTransport Read shutting down");
+            connectionLost(ready);
+            return;
+        }
+
+        frameDecoder.bytesWritten(bytesRead);
+
+        if (!frameDecoder.decodeFrames()) {
+            //
+            //  If this fails, we already sent an AsyncError.
+            //
+            connectionLost(ready);
+        }
+    }
+
+
+    @Override
+    public void connectable(SelectionKey readyKey) {
+        //
+        //  Connects are done by a ChannelConnector, never on our key.
+        //
+    }
+
+
+    @Override
+    public void writable(SelectionKey readyKey) {
+
+        SocketChannel ready = (SocketChannel)readyKey.channel();
+        boolean failed = false;
+
+        synchronized (sendMessageLock) {
+
+            if (ready != channel) {
+                readyKey.cancel();
+                return;
+            }
+
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer bb = pendingWrites.peek();
+                    ready.write(bb);
+                    if (bb.hasRemaining()) {
+                        break;
+                    }
+                    pendingWrites.poll();
+                }
+
+                if (pendingWrites.isEmpty()) {
+                    readyKey.interestOps(readyKey.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            } catch (IOException ex) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        "SendMessage failed with IOException " + ex);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            connectionLost(ready);
+        }
+    }
+
+
+    /**
+     *  Loop thread. The client only schedules its reconnect from here, so
+     *  it can run right on the loop. A failed send has already taken the
+     *  channel, a read or write failing for the same drop after that gets
+     *  here too, harmlessly, the client is already not connected.
+     */
+    private void connectionLost(SocketChannel lost) {
+
+        synchronized (sendMessageLock) {
+            if (channel == lost) {
+                channel = null;
+                pendingWrites.clear();
+            }
+        }
+
+        closeQuietly(lost);
+
+        if (disconnectRequested) {
+            return;
+        }
+
+        ciiClient.handleUnexpectedDisconnect();
+    }
+
+
+    private static void closeQuietly(SocketChannel closing) {
+        if (closing != null) {
+            try {
+                closing.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.tainstruments.mercury.common_instrument_interface;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,35 +9,84 @@ import java.net.*;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-class SocketClientBackEndManager implements Runnable {
+/**
+ *  The blocking transport, one reader thread per connection.
+ */
+class SocketClientBackEndManager implements ClientTransport, Runnable {
     
     /*
      *  Public API -------------------------------------------------------
      */
+    @Override
     public boolean connect() {
 
         disconnectRequested = false;
 
         try {
-            socket = new Socket(serverAddress, serverConnectionPort);
-            outputStream = socket.getOutputStream();
-            inputStream = socket.getInputStream();
+            Socket newSocket = new Socket();
+            applySocketOptions(newSocket);
+            newSocket.connect(new InetSocketAddress(serverAddress, serverConnectionPort), connectTimeout);
+            startReader(newSocket);
         } catch (IOException ex) {
             ciiClient.asyncErrorManager.sendAsyncError(
                     "Connect failed with IOException " + ex);
             return false;
         }
 
-        readerThread = new Thread(this, "Reader-Thread");
-        readerThread.setDaemon(true);
-        readerThread.setPriority(Thread.MAX_PRIORITY);
-        readerThread.start();
-
         return true;
     }
 
+    /**
+     *  The connect itself waits on the shared connect loop rather than a
+     *  thread of ours, the reader thread only starts once it's done.
+     */
+    @Override
+    public CompletableFuture<Void> connectAsync(long timeoutInMs) {
+
+        disconnectRequested = false;
+
+        final SocketChannel channel;
+
+        try {
+            channel = SocketChannel.open();
+            applySocketOptions(channel.socket());
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new CiiConnectException("Connect failed with " + ex));
+            return failed;
+        }
+
+        return ChannelConnector.connect(CiiEventLoopGroup.connectLoop(),
+                                        channel,
+                                        new InetSocketAddress(serverAddress, serverConnectionPort),
+                                        timeoutInMs)
+                .thenApply(new Function<Void, Void>() {
+                    @Override
+                    public Void apply(Void ignored) {
+                        try {
+                            channel.configureBlocking(true);
+                            startReader(channel.socket());
+                        } catch (IOException ex) {
+                            try {
+                                channel.close();
+                            } catch (IOException closeEx) {
+                            }
+                            throw new CompletionException(
+                                    new CiiConnectException("Connect failed with " + ex));
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Override
     public void disconnect() {
 
         disconnectRequested = true;
@@ -61,26 +111,46 @@ class SocketClientBackEndManager implements Runnable {
         inputStream = null;
         readerThread = null;
     }
-        
-    byte[] getLocalAddress(){
+
+    @Override
+    public byte[] getLocalAddress(){
 
         InetAddress localAddress = socket.getLocalAddress();
         return localAddress.getAddress();
     }
         
+    @Override
     public boolean sendMessage(byte[] buffer) {
+        return sendFrame(FrameEncoder.wrapPayload(buffer));
+    }
+
+    /**
+     *  Sends a frame built by FrameEncoder, in one write.
+     */
+    @Override
+    public boolean sendFrame(byte[] frame) {
 
-        byte[] length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(buffer.length).array();
         boolean success = false;
 
         try
         {
-            synchronized (sendMessageLock)
+            //
+            //  A lock, not synchronized, so a virtual thread blocked in
+            //  the write doesn't pin its carrier.
+            //
+            sendMessageLock.lock();
+            try
             {
-                outputStream.write(sync);
-                outputStream.write(length);
-                outputStream.write(buffer);
-                outputStream.write(end);
+                if (batch != null) {
+                    batch.write(frame, 0, frame.length);
+                }
+                else {
+                    outputStream.write(frame);
+                }
+            }
+            finally
+            {
+                sendMessageLock.unlock();
             }
 
             success = true;
@@ -94,7 +164,40 @@ class SocketClientBackEndManager implements Runnable {
         return success;
     }
 
-    public SocketClientBackEndManager(String serverIpString, CiiClient client) {
+    @Override
+    public void beginBatch() {
+        sendMessageLock.lock();
+        try {
+            if (batch == null) {
+                batch = new ByteArrayOutputStream();
+            }
+        } finally {
+            sendMessageLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isReceiveThread() {
+        return Thread.currentThread() == readerThread;
+    }
+
+    @Override
+    public void endBatch() {
+        sendMessageLock.lock();
+        try {
+            ByteArrayOutputStream held = batch;
+            batch = null;
+            if ((held != null) && (held.size() > 0)) {
+                sendFrame(held.toByteArray());
+            }
+        } finally {
+            sendMessageLock.unlock();
+        }
+    }
+
+    public SocketClientBackEndManager(String serverIpString,
+                                        CiiClient client,
+                                        CiiClientConfiguration configuration) {
 
         try {
             //
@@ -110,22 +213,24 @@ class SocketClientBackEndManager implements Runnable {
             throw new RuntimeException("Invalid IP Address " + ex);
         }
 
-        readBuffer = new byte[maxReadBuffer];
         ciiClient = client;
+        readerMode = configuration.getReaderMode();
+        serverConnectionPort = configuration.getPort();
+        tcpNoDelay = configuration.getTcpNoDelay();
+        sendBufferSize = configuration.getSendBufferSize();
+        receiveBufferSize = configuration.getReceiveBufferSize();
+        connectTimeout = (int)Math.min(Integer.MAX_VALUE, configuration.getConnectTimeout());
+
+        if (readerMode == ReaderMode.Bulk) {
+            frameDecoder = new FrameDecoder(client, maxReadBuffer);
+        }
+        else {
+            readBuffer = new byte[maxReadBuffer];
+        }
 
-        sync = new byte[4];
-        sync[0] = (byte)'S';
-        sync[1] = (byte)'Y';
-        sync[2] = (byte)'N';
-        sync[3] = (byte)'C';
-
-        end = new byte[4];
-        end[0] = (byte)'E';
-        end[1] = (byte)'N';
-        end[2] = (byte)'D';
-        end[3] = (byte)' ';
+        executionMode = configuration.getExecutionMode();
 
-        sendMessageLock = new Object();
+        sendMessageLock = new ReentrantLock();
         disconnectRequested = false;
     }
 
@@ -136,13 +241,19 @@ class SocketClientBackEndManager implements Runnable {
      *                          Private
      **********************************************************************/
     private InetAddress serverAddress;
-    private final int serverConnectionPort = 8080;
+    private final int serverConnectionPort;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int connectTimeout;
     private final int maxReadBuffer = 10 * 1024 * 1024;
     private byte[] readBuffer;
+    private FrameDecoder frameDecoder;
+    private final ReaderMode readerMode;
     private CiiClient ciiClient;
-    private final byte[] sync;
-    private final byte[] end;
-    private final Object sendMessageLock;
+    private final ExecutionMode executionMode;
+    private final ReentrantLock sendMessageLock;
+    private ByteArrayOutputStream batch;
     private volatile boolean disconnectRequested;
 
     private Socket socket;
@@ -152,6 +263,28 @@ class SocketClientBackEndManager implements Runnable {
 
 
 
+    private void applySocketOptions(Socket newSocket) throws IOException {
+        newSocket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            newSocket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            newSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+
+    private void startReader(Socket connected) throws IOException {
+
+        socket = connected;
+        outputStream = socket.getOutputStream();
+        inputStream = socket.getInputStream();
+
+        readerThread = CiiThreads.newThread(executionMode, this, "Reader-Thread", Thread.MAX_PRIORITY);
+        readerThread.start();
+    }
+
+
     private void shutdownNetwork() {
         if (socket != null) {
             try {
@@ -227,6 +360,65 @@ class SocketClientBackEndManager implements Runnable {
     @Override
     public void run(){
 
+        if (readerMode == ReaderMode.Bulk) {
+            runBulk();
+        }
+        else {
+            runFrameAtATime();
+        }
+    }
+
+
+    /**
+     *  One read per wakeup, as much as the kernel has for us, then route
+     *  every complete frame in it.
+     */
+    private void runBulk(){
+
+        frameDecoder.reset();
+        frameDecoder.setName("ReaderThread " + readerThread.getId());
+
+        while (true)
+        {
+            int bytesRead;
+
+            try
+            {
+                bytesRead = inputStream.read(frameDecoder.getBuffer(),
+                                            frameDecoder.getWriteIndex(),
+                                            frameDecoder.getWritableBytes());
+            }
+            catch (IOException ex) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        "ReaderThread " + readerThread.getId() +
+                                " Read failed with IOException " + ex);
+                threadTeardown();
+                break;
+            }
+
+            if (bytesRead == -1) {
+                ciiClient.asyncErrorManager.sendAsyncError(
+                        "ReaderThread " + readerThread.getId() +
+                                " Read shutting down");
+                threadTeardown();
+                break;
+            }
+
+            frameDecoder.bytesWritten(bytesRead);
+
+            if (!frameDecoder.decodeFrames()) {
+                //
+                //  If this fails, we already sent an AsyncError.
+                //
+                threadTeardown();
+                break;
+            }
+        }
+    }
+
+
+    private void runFrameAtATime(){
+
         while (true)
         {
             boolean success = receiveUntilComplete(8);
@@ -294,7 +486,7 @@ class SocketClientBackEndManager implements Runnable {
             //
             //  Bounce to CII interface now.
             //
-            ciiClient.routeReceivedMessage(readBuffer, length);
+            ciiClient.frameReceived(readBuffer, 0, length);
         }
 
     }
@@ -0,0 +1,138 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  Bounded single producer / single consumer queue of frames.
+ *
+ *  Every entry owns a byte[] that is reused, so once the buffers have
+ *  grown to the size of the traffic nothing is allocated. The consumer
+ *  works on the entry in place and only then hands it back.
+ *
+ *  Package visibility
+ */
+class SpscFrameQueue {
+
+    private final byte[][] buffers;
+    private final int[] lengths;
+    private final CiiFrame[] frames;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+
+    /**
+     *  @param capacity Rounded up to a power of two.
+     */
+    public SpscFrameQueue(int capacity) {
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        buffers = new byte[size][];
+        lengths = new int[size];
+        frames = new CiiFrame[size];
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+
+        for (int i = 0; i < size; i++) {
+            buffers[i] = new byte[256];
+        }
+    }
+
+
+    /**
+     *  Producer side. Copies the frame in.
+     *  @return false if the queue is full.
+     */
+    public boolean offer(byte[] buffer, int offset, int dataLength) {
+
+        long t = tail.get();
+
+        if (t - head.get() > mask) {
+            return false;
+        }
+
+        int index = (int)(t & mask);
+
+        if (buffers[index].length < dataLength) {
+            buffers[index] = new byte[Math.max(dataLength, buffers[index].length * 2)];
+        }
+
+        System.arraycopy(buffer, offset, buffers[index], 0, dataLength);
+        lengths[index] = dataLength;
+
+        //
+        //  A full volatile write, the producer reads the consumer's parked
+        //  flag right after this and must not see it before the frame.
+        //
+        tail.set(t + 1);
+        return true;
+    }
+
+
+    /**
+     *  Producer side. Queues a pooled frame by reference, no copy, the
+     *  consumer takes over the producer's reference.
+     *  @return false if the queue is full.
+     */
+    public boolean offer(CiiFrame frame) {
+
+        long t = tail.get();
+
+        if (t - head.get() > mask) {
+            return false;
+        }
+
+        frames[(int)(t & mask)] = frame;
+
+        tail.set(t + 1);
+        return true;
+    }
+
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+
+    /**
+     *  Consumer side. The next frame's buffer, valid until pop(), or null.
+     */
+    public byte[] peekBuffer() {
+
+        long h = head.get();
+
+        if (h == tail.get()) {
+            return null;
+        }
+
+        return buffers[(int)(h & mask)];
+    }
+
+    /**
+     *  Consumer side. The next entry if it was queued as a CiiFrame, null
+     *  if it's a copy in peekBuffer().
+     */
+    public CiiFrame peekFrame() {
+        return frames[(int)(head.get() & mask)];
+    }
+
+    public int peekLength() {
+        return lengths[(int)(head.get() & mask)];
+    }
+
+    public void pop() {
+        long h = head.get();
+        frames[(int)(h & mask)] = null;
+        head.lazySet(h + 1);
+    }
+
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+}
@@ -0,0 +1,199 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.Arrays;
+
+
+/**
+ *  Substatus -> handlers lookup for STAT messages.
+ *
+ *  Copy on write: every register / unregister builds a fresh, immutable
+ *  open addressed table and publishes it with one volatile write. The
+ *  reader thread just probes whatever table is current, no lock, no
+ *  boxing, no allocation, and a slow handler can't block registration.
+ *
+ *  Package visibility
+ */
+class StatusDispatchTable {
+
+    private static final int MinimumSize = 16;
+
+    private static final class Table {
+
+        final int[] keys;
+        final ReceiveStatusHandler[][] handlers;
+        final int mask;
+        final int count;
+
+        Table(int size, int count) {
+            keys = new int[size];
+            handlers = new ReceiveStatusHandler[size][];
+            mask = size - 1;
+            this.count = count;
+        }
+    }
+
+    private volatile Table table;
+    private final Object writeLock;
+
+
+    public StatusDispatchTable() {
+        table = new Table(MinimumSize, 0);
+        writeLock = new Object();
+    }
+
+
+    /**
+     *  @return Every handler for the substatus, in registration order, or
+     *  null if there are none. Don't modify the array.
+     */
+    public ReceiveStatusHandler[] get(int substatus) {
+
+        Table t = table;
+        int index = hash(substatus) & t.mask;
+
+        while (true) {
+
+            ReceiveStatusHandler[] h = t.handlers[index];
+
+            if (h == null) {
+                return null;
+            }
+            if (t.keys[index] == substatus) {
+                return h;
+            }
+
+            index = (index + 1) & t.mask;
+        }
+    }
+
+
+    /**
+     *  Adds a handler alongside any already registered for the substatus.
+     *  Registering the same handler twice is a no-op.
+     */
+    public void add(int substatus, ReceiveStatusHandler handler) {
+
+        synchronized (writeLock) {
+
+            ReceiveStatusHandler[] current = get(substatus);
+            ReceiveStatusHandler[] updated;
+
+            if (current == null) {
+                updated = new ReceiveStatusHandler[] { handler };
+            }
+            else {
+                for (ReceiveStatusHandler h : current) {
+                    if (h == handler) {
+                        return;
+                    }
+                }
+                updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = handler;
+            }
+
+            table = rebuild(substatus, updated);
+        }
+    }
+
+
+    public void remove(int substatus, ReceiveStatusHandler handler) {
+
+        synchronized (writeLock) {
+
+            ReceiveStatusHandler[] current = get(substatus);
+
+            if (current == null) {
+                return;
+            }
+
+            int found = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == handler) {
+                    found = i;
+                    break;
+                }
+            }
+
+            if (found < 0) {
+                return;
+            }
+
+            ReceiveStatusHandler[] updated = null;
+
+            if (current.length > 1) {
+                updated = new ReceiveStatusHandler[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, found);
+                System.arraycopy(current, found + 1, updated, found, current.length - found - 1);
+            }
+
+            table = rebuild(substatus, updated);
+        }
+    }
+
+
+    public void removeAll(int substatus) {
+
+        synchronized (writeLock) {
+
+            if (get(substatus) != null) {
+                table = rebuild(substatus, null);
+            }
+        }
+    }
+
+
+    /**
+     *  Copy of the current table with one substatus replaced, or dropped
+     *  when handlers is null. Called under writeLock.
+     */
+    private Table rebuild(int substatus, ReceiveStatusHandler[] handlers) {
+
+        Table old = table;
+        int count = old.count;
+
+        if (get(substatus) != null) {
+            count--;
+        }
+        if (handlers != null) {
+            count++;
+        }
+
+        int size = MinimumSize;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+
+        Table t = new Table(size, count);
+
+        for (int i = 0; i < old.keys.length; i++) {
+            if ((old.handlers[i] != null) && (old.keys[i] != substatus)) {
+                insert(t, old.keys[i], old.handlers[i]);
+            }
+        }
+
+        if (handlers != null) {
+            insert(t, substatus, handlers);
+        }
+
+        return t;
+    }
+
+
+    private static void insert(Table t, int key, ReceiveStatusHandler[] handlers) {
+
+        int index = hash(key) & t.mask;
+
+        while (t.handlers[index] != null) {
+            index = (index + 1) & t.mask;
+        }
+
+        t.keys[index] = key;
+        t.handlers[index] = handlers;
+    }
+
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
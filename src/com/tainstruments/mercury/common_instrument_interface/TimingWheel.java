@@ -0,0 +1,191 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *  Hashed timing wheel for command deadlines. Trackers are linked straight
+ *  into the buckets, so scheduling and expiring are O(1) and one wheel
+ *  serves every CiiClient in the process.
+ *
+ *  Cancellation is lazy. A tracker that completes normally just stays in
+ *  its bucket until the sweep reaches it, and its owning MessagesInFlight
+ *  ignores the expiry because the slot no longer holds that sequence
+ *  number. A slot that is reused before then is simply moved.
+ *
+ *  Package visibility, we are a singleton.
+ */
+class TimingWheel implements Runnable {
+
+    private static final long TickInMs = 50;
+    private static final int WheelSize = 512;
+
+    static private TimingWheel instance;
+
+    private final MessageTracker[] buckets;
+    private final Object lock;
+    private final long startTime;
+    private long currentTick;
+
+
+    /**
+     *  Private ctor, we are a singleton.
+     */
+    private TimingWheel() {
+        buckets = new MessageTracker[WheelSize];
+        lock = new Object();
+        startTime = System.nanoTime();
+        currentTick = 0;
+    }
+
+
+    static synchronized public TimingWheel getInstance() {
+
+        if (instance == null) {
+
+            instance = new TimingWheel();
+            Thread thread = new Thread(instance, "Cii-Timer-Thread");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            thread.start();
+        }
+
+        return instance;
+    }
+
+
+    /**
+     *  Expire the command no sooner than timeoutInMs from now.
+     */
+    public void schedule(MessageTracker tracker, int sequenceNumber, long timeoutInMs) {
+
+        //
+        //  currentTick trails the clock by up to one tick, pad for it.
+        //
+        long ticks = (timeoutInMs + TickInMs - 1) / TickInMs + 1;
+
+        synchronized (lock) {
+
+            if (tracker.wheelBucket >= 0) {
+                unlink(tracker);
+            }
+
+            tracker.wheelSequenceNumber = sequenceNumber;
+            tracker.deadlineTick = currentTick + ticks;
+            link(tracker, (int)(tracker.deadlineTick % WheelSize));
+        }
+    }
+
+
+    @Override
+    public void run() {
+
+        ArrayList<MessageTracker> expired = new ArrayList<>();
+        int[] expiredSequenceNumbers = new int[64];
+
+        while (true) {
+
+            long now = (System.nanoTime() - startTime) / 1000000L;
+            long nextTickTime;
+
+            synchronized (lock) {
+                nextTickTime = (currentTick + 1) * TickInMs;
+            }
+
+            if (now < nextTickTime) {
+                try {
+                    Thread.sleep(nextTickTime - now);
+                } catch (InterruptedException ex) {
+                }
+                continue;
+            }
+
+            synchronized (lock) {
+
+                //
+                //  Catch up on every tick we slept through.
+                //
+                while ((currentTick + 1) * TickInMs <= now) {
+                    currentTick++;
+                    sweep((int)(currentTick % WheelSize), expired);
+                }
+
+                //
+                //  Grab the sequence numbers now, once we let go of the
+                //  lock a slot can be rescheduled for its next command.
+                //
+                if (expiredSequenceNumbers.length < expired.size()) {
+                    expiredSequenceNumbers = Arrays.copyOf(expiredSequenceNumbers, expired.size() * 2);
+                }
+                for (int i = 0; i < expired.size(); i++) {
+                    expiredSequenceNumbers[i] = expired.get(i).wheelSequenceNumber;
+                }
+            }
+
+            //
+            //  Fire outside the lock, the callbacks belong to the user.
+            //
+            for (int i = 0; i < expired.size(); i++) {
+                MessageTracker tracker = expired.get(i);
+                try {
+                    tracker.getOwner().expire(tracker, expiredSequenceNumbers[i]);
+                } catch (RuntimeException ex) {
+                    System.out.println("TimingWheel expire threw " + ex);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+
+    private void sweep(int bucket, ArrayList<MessageTracker> expired) {
+
+        MessageTracker tracker = buckets[bucket];
+
+        while (tracker != null) {
+
+            MessageTracker next = tracker.wheelNext;
+
+            if (tracker.deadlineTick <= currentTick) {
+                unlink(tracker);
+                expired.add(tracker);
+            }
+
+            tracker = next;
+        }
+    }
+
+
+    private void link(MessageTracker tracker, int bucket) {
+
+        MessageTracker head = buckets[bucket];
+
+        tracker.wheelBucket = bucket;
+        tracker.wheelPrev = null;
+        tracker.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = tracker;
+        }
+        buckets[bucket] = tracker;
+    }
+
+
+    private void unlink(MessageTracker tracker) {
+
+        if (tracker.wheelPrev != null) {
+            tracker.wheelPrev.wheelNext = tracker.wheelNext;
+        }
+        else {
+            buckets[tracker.wheelBucket] = tracker.wheelNext;
+        }
+
+        if (tracker.wheelNext != null) {
+            tracker.wheelNext.wheelPrev = tracker.wheelPrev;
+        }
+
+        tracker.wheelBucket = -1;
+        tracker.wheelPrev = null;
+        tracker.wheelNext = null;
+    }
+}
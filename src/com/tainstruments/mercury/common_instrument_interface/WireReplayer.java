@@ -0,0 +1,196 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Plays the status traffic in a wire capture, made with
+ * CiiClient.startCapture(), back into a CiiClient's status handlers.
+ *
+ * replay() runs on the caller's thread, at the captured pace, at speed
+ * times it, or with AsFastAsPossible, back to back. Sent frames are only
+ * used for timing. A replay is the same every time, so it makes a
+ * benchmark out of real traffic: STAT bursts from the field, handler
+ * throughput, all without an instrument.
+ *
+ * The client mustn't be connected, replayed frames would be mixed in with
+ * live ones. Each STAT is routed straight to the handlers on replay()'s
+ * thread, rather than thrown away as early. Everything else received is
+ * skipped: answers to commands and ACPTs belong to a session that's gone,
+ * they'd only clash with whatever the client has in flight.
+ */
+public class WireReplayer {
+
+    public static final int TagReceived = 1;
+    public static final int TagSent = 2;
+
+    /**  Speed for replay() that doesn't wait between frames at all. */
+    public static final double AsFastAsPossible = 0;
+
+    private final int parkThresholdNanos = 2000000;
+
+    private final CiiClient ciiClient;
+    private final File directory;
+    private final String prefix;
+
+    private volatile boolean stopRequested;
+    private volatile long framesReplayed;
+    private volatile long maxLagNanos;
+    private volatile long elapsedNanos;
+    private volatile long capturedNanos;
+
+
+    /**
+     * @param directory Where the capture's FrameJournal lives.
+     * @param prefix The journal's prefix.
+     */
+    public WireReplayer(CiiClient ciiClient, File directory, String prefix) {
+        this.ciiClient = ciiClient;
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+
+    /**
+     * Replays the whole capture.
+     * @param speed 1.0 for the captured pace, 10.0 for ten times as fast,
+     * AsFastAsPossible to not wait at all.
+     * @return Received frames replayed, STATs and the frames skipped.
+     * @throws IllegalStateException If the client is connected, or
+     * connects part way through.
+     */
+    public long replay(double speed) throws IOException {
+
+        if ((speed < 0) || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Bad replay speed " + speed);
+        }
+
+        if (ciiClient.isConnected()) {
+            throw new IllegalStateException("Can't replay into a connected client");
+        }
+
+        stopRequested = false;
+        framesReplayed = 0;
+        maxLagNanos = 0;
+
+        FrameJournalReader reader = new FrameJournalReader(directory, prefix);
+
+        boolean paced = speed != AsFastAsPossible;
+        long firstTimestamp = 0;
+        long lastTimestamp = 0;
+        long start = System.nanoTime();
+        long replayed = 0;
+        long maxLag = 0;
+        boolean first = true;
+
+        while (!stopRequested && reader.next()) {
+
+            long timestamp = reader.getTimestamp();
+
+            if (first) {
+                firstTimestamp = timestamp;
+                first = false;
+            }
+            lastTimestamp = timestamp;
+
+            if (reader.getTag() != TagReceived) {
+                continue;
+            }
+
+            if (paced) {
+                long due = start + (long)((timestamp - firstTimestamp) / speed);
+                long lag = waitUntil(due);
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+            }
+
+            if (ciiClient.isConnected()) {
+                throw new IllegalStateException("Client connected during replay");
+            }
+
+            ciiClient.routeReplayed(reader.getData(), 0, reader.getDataLength());
+
+            replayed++;
+            if ((replayed & 0xFFF) == 0) {
+                framesReplayed = replayed;
+            }
+        }
+
+        elapsedNanos = System.nanoTime() - start;
+        capturedNanos = lastTimestamp - firstTimestamp;
+        framesReplayed = replayed;
+        maxLagNanos = maxLag;
+
+        return replayed;
+    }
+
+
+    /**
+     * Ends a replay running on another thread after its current frame.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public long getFramesReplayed() {
+        return framesReplayed;
+    }
+
+    /**
+     * @return How long the last replay took, ns.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return How long the capture itself lasted, first record to last, ns.
+     */
+    public long getCapturedNanos() {
+        return capturedNanos;
+    }
+
+    /**
+     * @return The furthest a paced replay fell behind the pace it was
+     * asked for, ns. More than a little means the handlers can't keep up.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    /**
+     * @return Received frames per second the last replay delivered.
+     */
+    public double getFramesPerSecond() {
+        return (elapsedNanos == 0) ? 0 : framesReplayed * 1e9 / elapsedNanos;
+    }
+
+
+    /**
+     *  Parks for most of the wait and yields for the last bit, the park
+     *  alone overshoots by far too much for a burst.
+     *  @return How late we already were, ns.
+     */
+    private long waitUntil(long due) {
+
+        long remaining = due - System.nanoTime();
+
+        if (remaining < 0) {
+            return -remaining;
+        }
+
+        while (remaining > parkThresholdNanos) {
+            LockSupport.parkNanos(remaining - parkThresholdNanos);
+            remaining = due - System.nanoTime();
+        }
+
+        while (due - System.nanoTime() > 0) {
+            Thread.yield();
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,284 @@
+package com.tainstruments.mercury.common_messages;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import sun.misc.Unsafe;
+
+
+/**
+ * Fixed size, off heap history of real time signal samples.
+ *
+ * Stored by column, one long column of receive timestamps (ms since the
+ * epoch) and one float column per signal, all in a single direct buffer.
+ * Size it as sample rate * seconds of history, e.g. 50 Hz for 10 minutes
+ * is 30000 samples.
+ *
+ * There is exactly one writer, the thread delivering the 0x20002 status
+ * messages, and it never allocates or waits. Readers copy what they want
+ * out and then check the writer didn't lap them while they were at it,
+ * anything it did overwrite is trimmed off the front of the result. The
+ * buffer accesses are plain, so both sides fence around claimSequence.
+ *
+ * If the instrument changes how many signals it sends, samples from
+ * before the change may have NaN or stale values in the extra columns.
+ */
+public class RealTimeSignalHistory {
+
+    private static final Unsafe unsafe = loadUnsafe();
+
+    private final int capacity;
+    private final int maxSignals;
+    private final ByteBuffer store;
+    private final int signalColumnsOffset;
+
+    /**
+     *  Samples fully written. Published after each sample.
+     */
+    private volatile long writeSequence;
+
+    /**
+     *  One past the sample the writer is working on, bumped before it
+     *  starts. Anything older than claimSequence - capacity may be in the
+     *  middle of being overwritten.
+     */
+    private volatile long claimSequence;
+
+    private volatile int signalCount;
+
+
+    /**
+     * @param capacity Number of samples kept.
+     * @param maxSignals Signals kept per sample, extra ones are dropped.
+     */
+    public RealTimeSignalHistory(int capacity, int maxSignals) {
+
+        long bytes = (long)capacity * (8 + 4L * maxSignals);
+
+        if ((capacity <= 0) || (maxSignals <= 0) || (bytes > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException(
+                    "Bad history size " + capacity + " x " + maxSignals);
+        }
+
+        this.capacity = capacity;
+        this.maxSignals = maxSignals;
+        store = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+        signalColumnsOffset = capacity * 8;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxSignals() {
+        return maxSignals;
+    }
+
+    /**
+     * @return Signals in the most recent sample, capped at maxSignals.
+     */
+    public int getSignalCount() {
+        return signalCount;
+    }
+
+    /**
+     * @return Total samples ever written. The newest is getWriteSequence() - 1.
+     */
+    public long getWriteSequence() {
+        return writeSequence;
+    }
+
+    /**
+     * @return Sequence of the oldest sample still held.
+     */
+    public long getOldestSequence() {
+        return Math.max(0, claimSequence - capacity);
+    }
+
+
+    /**
+     *  Writer side. Decodes count little endian floats straight out of the
+     *  status buffer.
+     */
+    void append(long timestamp, byte[] buffer, int startingOffset, int count) {
+
+        long sequence = writeSequence;
+        int row = (int)(sequence % capacity);
+
+        claimSequence = sequence + 1;
+
+        //
+        //  The claim has to be visible before any of the row is touched, a
+        //  volatile store alone lets the writes below move ahead of it.
+        //
+        unsafe.storeFence();
+
+        store.putLong(row * 8, timestamp);
+
+        int kept = Math.min(count, maxSignals);
+        int index = startingOffset;
+
+        for (int signal = 0; signal < kept; signal++) {
+            int bits =  (buffer[index] & 0xFF) |
+                        ((buffer[index + 1] & 0xFF) << 8) |
+                        ((buffer[index + 2] & 0xFF) << 16) |
+                        ((buffer[index + 3] & 0xFF) << 24);
+            store.putFloat(columnIndex(signal, row), Float.intBitsToFloat(bits));
+            index += 4;
+        }
+
+        for (int signal = kept; signal < signalCount; signal++) {
+            store.putFloat(columnIndex(signal, row), Float.NaN);
+        }
+
+        signalCount = kept;
+        writeSequence = sequence + 1;
+    }
+
+
+    /**
+     * Copies out the most recent samples.
+     * @param maxSamples Upper limit on what comes back.
+     */
+    public Samples readLatest(int maxSamples) {
+        long end = writeSequence;
+        long start = Math.max(getOldestSequence(), end - maxSamples);
+        return read(start, end);
+    }
+
+
+    /**
+     * Copies out every sample received in [fromTime, toTime), timestamps in
+     * ms since the epoch.
+     */
+    public Samples readRange(long fromTime, long toTime) {
+
+        long end = writeSequence;
+        long oldest = getOldestSequence();
+
+        long start = lowerBound(oldest, end, fromTime);
+        long stop = lowerBound(start, end, toTime);
+
+        return read(start, stop);
+    }
+
+
+    /**
+     * Copies out samples [fromSequence, toSequence), whatever part of that
+     * is still held.
+     */
+    public Samples read(long fromSequence, long toSequence) {
+
+        long end = Math.min(toSequence, writeSequence);
+        long start = Math.max(fromSequence, getOldestSequence());
+        int columns = signalCount;
+
+        if (end <= start) {
+            return new Samples(start, new long[0], new float[columns][0]);
+        }
+
+        int count = (int)(end - start);
+        long[] timestamps = new long[count];
+        float[][] values = new float[columns][count];
+
+        for (int i = 0; i < count; i++) {
+            int row = (int)((start + i) % capacity);
+            timestamps[i] = store.getLong(row * 8);
+            for (int signal = 0; signal < columns; signal++) {
+                values[signal][i] = store.getFloat(columnIndex(signal, row));
+            }
+        }
+
+        //
+        //  Did the writer come around on us while we were copying? The
+        //  fence keeps the copies above from moving past this read.
+        //
+        unsafe.loadFence();
+        long firstIntact = claimSequence - capacity;
+
+        if (firstIntact > start) {
+
+            int lost = (int)Math.min(count, firstIntact - start);
+
+            timestamps = Arrays.copyOfRange(timestamps, lost, count);
+            for (int signal = 0; signal < columns; signal++) {
+                values[signal] = Arrays.copyOfRange(values[signal], lost, count);
+            }
+            start += lost;
+        }
+
+        return new Samples(start, timestamps, values);
+    }
+
+
+    /**
+     *  First sequence in [from, to) with a timestamp >= time. Timestamps
+     *  only go forward, so a binary search does it. A probe the writer has
+     *  lapped counts as too old, read() trims it off anyway, and what was
+     *  lapped is always a run off the front, so the search stays sorted.
+     */
+    private long lowerBound(long from, long to, long time) {
+
+        long low = from;
+        long high = to;
+
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long timestamp = store.getLong((int)(mid % capacity) * 8);
+
+            unsafe.loadFence();
+
+            if ((mid < claimSequence - capacity) || (timestamp < time)) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    private int columnIndex(int signal, int row) {
+        return signalColumnsOffset + ((signal * capacity) + row) * 4;
+    }
+
+
+    /*
+     *  Only for its fences, Java 8 has no other way to get them.
+     */
+    private static Unsafe loadUnsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe)field.get(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+
+    /**
+     * A copy of a run of samples. values[signal][sample] lines up with
+     * timestamps[sample].
+     */
+    public static final class Samples {
+
+        public final long firstSequence;
+        public final long[] timestamps;
+        public final float[][] values;
+
+        Samples(long firstSequence, long[] timestamps, float[][] values) {
+            this.firstSequence = firstSequence;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        public int size() {
+            return timestamps.length;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.tainstruments.mercury.common_messages;
+
+import com.tainstruments.mercury.common_instrument_interface.*;
+import com.tainstruments.mercury.cii_client_helpers.*;
+
+
+/**
+ * Records every real time signal status message, as received, into a
+ * FrameJournal. Each record is tagged with the substatus and stamped with
+ * System.nanoTime() on arrival, the payload is the raw little endian
+ * floats. Use a FrameJournalReader to get them back.
+ *
+ * Costs one copy into the mapped file and a CRC per message, so it keeps
+ * up with the full status rate. Several instruments can share a journal,
+ * or each have their own.
+ */
+public class RealTimeSignalRecorder {
+
+    private final int RealTimeSignalsSubstatus = 0x20002;
+    private final FrameJournal journal;
+    private final RecorderStatusMessage recorderStatus;
+
+
+    public RealTimeSignalRecorder(CiiClient ciiClient, FrameJournal journal) {
+        this.journal = journal;
+        recorderStatus = new RecorderStatusMessage(ciiClient, RealTimeSignalsSubstatus);
+    }
+
+
+    public FrameJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Stops recording. The journal stays open, close it yourself.
+     */
+    public void close() {
+        recorderStatus.close();
+    }
+
+
+    private class RecorderStatusMessage extends StatusMessage {
+
+        public RecorderStatusMessage(CiiClient ciiClient, int subStatus) {
+            super(ciiClient, subStatus);
+        }
+
+        @Override
+        public void receiveStatus(int substatus, byte[] buffer, int startingOffset, int dataLength) {
+            journal.append(substatus, System.nanoTime(), buffer, startingOffset, dataLength);
+        }
+    }
+}
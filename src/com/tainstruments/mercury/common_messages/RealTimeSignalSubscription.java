@@ -0,0 +1,120 @@
+package com.tainstruments.mercury.common_messages;
+
+import java.util.Observer;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A conflating subscription to RealTimeSignals, made by
+ * RealTimeSignals.subscribe().
+ *
+ * The observer only ever sees the newest sample, and no more often than
+ * the rate it asked for. Samples that arrive in between replace the one
+ * waiting and are counted as dropped. Delivery happens on the
+ * "Cii-Conflation-Thread", never on the thread reading the instrument, so
+ * a slow observer only slows itself down.
+ */
+public class RealTimeSignalSubscription {
+
+    private final RealTimeSignals owner;
+    private final Observer observer;
+    private final long intervalInNs;
+
+    /**
+     *  Samples offered since the last delivery.
+     */
+    private final AtomicLong pending;
+    private final AtomicLong dropped;
+    private final AtomicLong delivered;
+
+    /*
+     *  Only touched by the conflation thread.
+     */
+    private long nextDeliveryTime;
+
+
+    RealTimeSignalSubscription(RealTimeSignals owner, Observer observer, int maxUpdatesPerSecond) {
+
+        if (maxUpdatesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bad update rate " + maxUpdatesPerSecond);
+        }
+
+        this.owner = owner;
+        this.observer = observer;
+        intervalInNs = 1000000000L / maxUpdatesPerSecond;
+
+        pending = new AtomicLong();
+        dropped = new AtomicLong();
+        delivered = new AtomicLong();
+
+        nextDeliveryTime = System.nanoTime();
+    }
+
+
+    /**
+     * @return Samples that were replaced by a newer one before this
+     * observer got to see them.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Times the observer has been called.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public Observer getObserver() {
+        return observer;
+    }
+
+    /**
+     * Stops deliveries. One already under way still finishes.
+     */
+    public void close() {
+        owner.unsubscribe(this);
+    }
+
+
+    /**
+     *  Reader side, a new sample is in.
+     *  @return true if this made the subscription go from idle to pending.
+     */
+    boolean offer() {
+        return pending.getAndIncrement() == 0;
+    }
+
+
+    /**
+     *  Conflation thread. Delivers if something is pending and it's time.
+     *  @return When it next wants to run, or Long.MAX_VALUE if idle.
+     */
+    long poll(long now) {
+
+        if (pending.get() == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        if (now - nextDeliveryTime < 0) {
+            return nextDeliveryTime;
+        }
+
+        long taken = pending.getAndSet(0);
+        if (taken > 1) {
+            dropped.addAndGet(taken - 1);
+        }
+
+        nextDeliveryTime = now + intervalInNs;
+        delivered.incrementAndGet();
+
+        try {
+            observer.update(owner, owner.get());
+        } catch (RuntimeException ex) {
+            System.out.println("RealTimeSignalSubscription observer threw " + ex);
+        }
+
+        return (pending.get() == 0) ? Long.MAX_VALUE : nextDeliveryTime;
+    }
+}
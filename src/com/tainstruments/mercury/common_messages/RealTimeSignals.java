@@ -4,7 +4,10 @@ import com.tainstruments.mercury.common_instrument_interface.*;
 import com.tainstruments.mercury.cii_client_helpers.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class RealTimeSignals extends Observable implements DisconnectHandler {
@@ -13,6 +16,11 @@ public class RealTimeSignals extends Observable implements DisconnectHandler {
     private int signalCount;
     private final Object lock;
     private float [] signalValues;
+    private final RealTimeSignalHistory history;
+
+    private final Object subscriptionLock;
+    private volatile RealTimeSignalSubscription[] subscriptions;
+    private volatile Thread conflationThread;
     
 
     public float[] get(){
@@ -29,15 +37,156 @@ public class RealTimeSignals extends Observable implements DisconnectHandler {
     }
 
 
+    /**
+     * Returns the sample history, or null if this object was built without
+     * one.
+     */
+    public RealTimeSignalHistory getHistory(){
+        return history;
+    }
+
+
     public RealTimeSignals(CiiClient ciiClient){
+        this(ciiClient, null);
+    }
+
+
+    /**
+     * @param history Every sample received is also appended here, may be null.
+     */
+    public RealTimeSignals(CiiClient ciiClient, RealTimeSignalHistory history){
 
         lock = new Object();
+        this.history = history;
+        subscriptionLock = new Object();
+        subscriptions = new RealTimeSignalSubscription[0];
         realTimeSignalStatus = new RealTimeSignalStatusMessage(ciiClient, RealTimeSignalsSubstatus);
 
         ciiClient.registerDisconnectHandler(this);
     }
 
 
+    /**
+     * Subscribes an observer that only wants the newest sample, at most
+     * maxUpdatesPerSecond times a second. Use this instead of addObserver()
+     * for anything that can't keep up with the full status rate, a UI for
+     * one. The observer is called on a separate thread with this object
+     * and a copy of the newest values, null after a disconnect.
+     */
+    public RealTimeSignalSubscription subscribe(Observer observer, int maxUpdatesPerSecond){
+
+        RealTimeSignalSubscription subscription =
+                new RealTimeSignalSubscription(this, observer, maxUpdatesPerSecond);
+
+        synchronized(subscriptionLock){
+            //
+            //  Thread first, the reader finds it through the volatile
+            //  subscriptions write. One runs only while there are
+            //  subscriptions, the last one leaving lets it exit.
+            //
+            if (conflationThread == null){
+                conflationThread = new Thread(new ConflationRunnable(), "Cii-Conflation-Thread");
+                conflationThread.setDaemon(true);
+                conflationThread.setPriority(Thread.NORM_PRIORITY);
+                conflationThread.start();
+            }
+
+            RealTimeSignalSubscription[] current = subscriptions;
+            RealTimeSignalSubscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+
+        return subscription;
+    }
+
+
+    void unsubscribe(RealTimeSignalSubscription subscription){
+        synchronized(subscriptionLock){
+            RealTimeSignalSubscription[] current = subscriptions;
+            for (int i = 0; i < current.length; i++){
+                if (current[i] == subscription){
+                    RealTimeSignalSubscription[] updated = new RealTimeSignalSubscription[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    subscriptions = updated;
+
+                    if (updated.length == 0){
+                        LockSupport.unpark(conflationThread);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Reader thread. Marks every subscription pending and wakes the
+     *  conflation thread if one of them was idle, nothing more.
+     */
+    private void offerToSubscribers(){
+
+        RealTimeSignalSubscription[] current = subscriptions;
+        boolean wake = false;
+
+        for (RealTimeSignalSubscription subscription : current){
+            if (subscription.offer()){
+                wake = true;
+            }
+        }
+
+        if (wake){
+            LockSupport.unpark(conflationThread);
+        }
+    }
+
+
+    private class ConflationRunnable implements Runnable {
+
+        @Override
+        public void run(){
+
+            while (true){
+
+                RealTimeSignalSubscription[] current = subscriptions;
+
+                if (current.length == 0){
+                    synchronized(subscriptionLock){
+                        if (subscriptions.length == 0){
+                            conflationThread = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                long wakeTime = Long.MAX_VALUE;
+
+                for (RealTimeSignalSubscription subscription : current){
+                    long next = subscription.poll(now);
+                    if (next != Long.MAX_VALUE){
+                        if ((wakeTime == Long.MAX_VALUE) || (next - wakeTime < 0)){
+                            wakeTime = next;
+                        }
+                    }
+                }
+
+                if (wakeTime == Long.MAX_VALUE){
+                    LockSupport.park(this);
+                }
+                else{
+                    long delay = wakeTime - System.nanoTime();
+                    if (delay > 0){
+                        LockSupport.parkNanos(this, delay);
+                    }
+                }
+            }
+        }
+    }
+
+
     private final RealTimeSignalStatusMessage realTimeSignalStatus;
 
     
@@ -62,10 +211,15 @@ public class RealTimeSignals extends Observable implements DisconnectHandler {
                 for (int i = 0; i<count; i++){
                     signalValues[i] = bb.getFloat();
                 }
+
+                if (history != null){
+                    history.append(System.currentTimeMillis(), buffer, startingOffset, count);
+                }
             }
 
             setChanged();
             notifyObservers();
+            offerToSubscribers();
         }
     }
 
@@ -82,5 +236,6 @@ public class RealTimeSignals extends Observable implements DisconnectHandler {
 
         setChanged();
         notifyObservers();
+        offerToSubscribers();
     }
 }
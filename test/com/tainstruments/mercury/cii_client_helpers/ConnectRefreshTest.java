@@ -0,0 +1,87 @@
+package com.tainstruments.mercury.cii_client_helpers;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import com.tainstruments.mercury.common_instrument_interface.CiiClient;
+import com.tainstruments.mercury.common_instrument_interface.CiiClientConfiguration;
+import com.tainstruments.mercury.common_instrument_interface.ConnectHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConnectRefreshTest {
+
+    private static final int Handlers = 5;
+    private static final int Window = 2;
+
+    private CiiSimulator simulator;
+    private CiiClient ciiClient;
+    private final Semaphore answered = new Semaphore(0);
+    private final AtomicInteger failedSends = new AtomicInteger();
+
+
+    @Before
+    public void setUp() throws Exception {
+
+        simulator = new CiiSimulator(0);
+        simulator.start();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+        configuration.setMaxOutstandingCommands(Window);
+        configuration.setAdmissionTimeout(2000);
+
+        ciiClient = new CiiClient("127.0.0.1", configuration);
+
+        for (int i = 0; i < Handlers; i++) {
+            final GetMessage refresh = new GetMessage(ciiClient, 2) {
+                @Override
+                public void receiveResponse(int subcommand, int statusCode, byte[] data, int startingOffset, int dataLength) {
+                    super.receiveResponse(subcommand, statusCode, data, startingOffset, dataLength);
+                    answered.release();
+                }
+            };
+            ciiClient.registerConnectHandler(new ConnectHandler() {
+                @Override
+                public void connected() {
+                    if (!refresh.get()) {
+                        failedSends.incrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+
+    @After
+    public void tearDown() {
+        ciiClient.close();
+        simulator.stop();
+    }
+
+
+    /*
+     *  More connect handlers than the window has slots, each sending its
+     *  refresh from the reader thread with the batch open. Those past the
+     *  window queue instead of waiting, on connect and on every reconnect.
+     */
+    @Test
+    public void refreshesPastTheWindowQueue() throws Exception {
+
+        assertEquals(ciiClient.AccessLevel_Master,
+                     (int)ciiClient.connectAsync(ciiClient.AccessLevel_Master, 2000).get(1, TimeUnit.SECONDS));
+        assertTrue(answered.tryAcquire(Handlers, 1, TimeUnit.SECONDS));
+
+        simulator.dropConnections();
+
+        assertTrue(answered.tryAcquire(Handlers, 10, TimeUnit.SECONDS));
+        assertTrue(ciiClient.isConnected());
+        assertEquals(0, failedSends.get());
+        assertEquals(0, ciiClient.getCommandWindow().getOutstanding());
+    }
+}
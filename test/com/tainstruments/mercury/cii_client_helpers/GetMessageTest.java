@@ -0,0 +1,58 @@
+package com.tainstruments.mercury.cii_client_helpers;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import com.tainstruments.mercury.common_instrument_interface.CiiClient;
+import com.tainstruments.mercury.common_instrument_interface.CiiClientConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class GetMessageTest {
+
+    private CiiSimulator simulator;
+    private CiiClient ciiClient;
+
+
+    @Before
+    public void setUp() throws Exception {
+
+        simulator = new CiiSimulator(0);
+        simulator.start();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+
+        ciiClient = new CiiClient("127.0.0.1", configuration);
+        assertTrue(ciiClient.connect(ciiClient.AccessLevel_Master));
+    }
+
+
+    @After
+    public void tearDown() {
+        ciiClient.disconnect();
+        simulator.stop();
+    }
+
+
+    /*
+     *  The helpers get reused. The client's timer fires a tick or two after
+     *  the first call has given up, that mustn't fail the second one.
+     */
+    @Test
+    public void timedOutGetDoesNotSpoilTheNextOne() {
+
+        GetMessage get = new GetMessage(ciiClient, 2);
+
+        simulator.setDropProbability(1.0);
+        assertFalse(get.getSynchronous(100));
+        assertEquals(0, ciiClient.getCommandsInFlight());
+
+        simulator.setDropProbability(0);
+        simulator.setResponseLatency(300);
+        assertTrue(get.getSynchronous(2000));
+    }
+}
@@ -0,0 +1,93 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class CiiClientConnectTest {
+
+    private static final int Threads = 8;
+
+    private CiiSimulator simulator;
+    private CiiClient ciiClient;
+
+
+    @Before
+    public void setUp() throws Exception {
+
+        simulator = new CiiSimulator(0);
+        simulator.start();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+
+        ciiClient = new CiiClient("127.0.0.1", configuration);
+    }
+
+
+    @After
+    public void tearDown() {
+        ciiClient.close();
+        simulator.stop();
+    }
+
+
+    /*
+     *  Callers racing to connect one client. Exactly one gets to, the rest
+     *  are told it's already connecting.
+     */
+    @Test
+    public void onlyOneConcurrentConnectAsyncWins() throws Exception {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+
+        Thread[] threads = new Thread[Threads];
+        for (int i = 0; i < Threads; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    CompletableFuture<Integer> result = ciiClient.connectAsync(ciiClient.AccessLevel_Master, 2000);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            }, "CiiClientConnectTest-" + i);
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int connected = 0;
+        for (CompletableFuture<Integer> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                connected++;
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof CiiConnectException);
+            }
+        }
+
+        assertEquals(1, connected);
+        assertTrue(ciiClient.isConnected());
+        assertEquals(1, simulator.getSessionCount());
+    }
+}
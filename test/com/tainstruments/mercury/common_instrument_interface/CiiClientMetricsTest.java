@@ -0,0 +1,94 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CiiClientMetricsTest {
+
+    private static final String JmxName = "CiiClientMetricsTest";
+
+    private CiiSimulator simulator;
+    private MBeanServer server;
+    private ObjectName objectName;
+
+
+    @Before
+    public void setUp() throws Exception {
+
+        simulator = new CiiSimulator(0);
+        simulator.start();
+
+        server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("com.tainstruments.mercury:type=CiiClient,name=" + ObjectName.quote(JmxName));
+    }
+
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+
+    /*
+     *  Registered once connected, not while the client is being built,
+     *  and gone again after close().
+     */
+    @Test
+    public void registeredFromConnectToClose() throws Exception {
+
+        CiiClient ciiClient = new CiiClient("127.0.0.1", configuration());
+        assertFalse(server.isRegistered(objectName));
+
+        assertTrue(ciiClient.connect(ciiClient.AccessLevel_Master));
+        assertTrue(server.isRegistered(objectName));
+
+        ciiClient.close();
+        assertFalse(server.isRegistered(objectName));
+    }
+
+
+    @Test
+    public void nameTakenIsAnAsyncError() throws Exception {
+
+        CiiClient first = new CiiClient("127.0.0.1", configuration());
+        CiiClient second = new CiiClient("127.0.0.1", configuration());
+
+        final CountDownLatch reported = new CountDownLatch(1);
+        second.registerAsyncErrorHandler(new AsyncErrorHandler() {
+            @Override
+            public void handleError(String description) {
+                if (description.contains(JmxName)) {
+                    reported.countDown();
+                }
+            }
+        });
+
+        try {
+            assertTrue(first.connect(first.AccessLevel_Master));
+            assertTrue(second.connect(second.AccessLevel_Master));
+            assertTrue(reported.await(2, TimeUnit.SECONDS));
+        } finally {
+            second.close();
+            first.close();
+        }
+        assertFalse(server.isRegistered(objectName));
+    }
+
+
+    private CiiClientConfiguration configuration() {
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+        configuration.setJmxName(JmxName);
+        return configuration;
+    }
+}
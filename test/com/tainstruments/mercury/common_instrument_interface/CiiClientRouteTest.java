@@ -0,0 +1,100 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class CiiClientRouteTest {
+
+    private static final int Ack = 0x204B4341;          /* "ACK " */
+    private static final int Nak = 0x204B414E;          /* "NAK " */
+    private static final int Response = 0x20505352;     /* "RSP " */
+
+    private CiiClient ciiClient;
+    private int sequenceNumber;
+    private final LinkedBlockingQueue<CommandTrace> traced = new LinkedBlockingQueue<>();
+
+
+    @Before
+    public void setUp() {
+        ciiClient = new CiiClient("127.0.0.1", new CiiClientConfiguration());
+    }
+
+
+    @Test
+    public void doubleAckFailsTheCommand() throws Exception {
+        CompletableFuture<CiiResponse> future = inFlight();
+        route(Ack, sequenceNumber);
+        route(Ack, sequenceNumber);
+        assertProtocolError(future);
+    }
+
+    @Test
+    public void ackThenNakFailsTheCommand() throws Exception {
+        CompletableFuture<CiiResponse> future = inFlight();
+        route(Ack, sequenceNumber);
+        route(Nak, sequenceNumber, 1);
+        assertProtocolError(future);
+    }
+
+    @Test
+    public void responseWithoutAckFailsTheCommand() throws Exception {
+        CompletableFuture<CiiResponse> future = inFlight();
+        route(Response, sequenceNumber, 7, 0);
+        assertProtocolError(future);
+    }
+
+
+    /*
+     *  Puts an async command in flight, traced, as if it had been sent.
+     */
+    private CompletableFuture<CiiResponse> inFlight() {
+        MessagesInFlight messagesInFlight = ciiClient.getMessagesInFlight();
+        FutureCommandCompletion completion = new FutureCommandCompletion(7, null);
+        sequenceNumber = messagesInFlight.getSequenceNumber();
+        completion.saveSequenceNumber(sequenceNumber);
+
+        CommandTrace trace = new CommandTrace(new CommandTracer() {
+            @Override
+            public void commandTraced(CommandTrace trace) {
+                traced.add(trace);
+            }
+        }, sequenceNumber, 7, System.nanoTime());
+
+        messagesInFlight.add(sequenceNumber, completion, 0, trace);
+        trace.written(System.nanoTime());
+        return completion.getFuture();
+    }
+
+    private void route(int... words) {
+        ByteBuffer bb = ByteBuffer.allocate(4 * words.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int word : words) {
+            bb.putInt(word);
+        }
+        ciiClient.routeReceivedMessage(bb.array(), bb.capacity());
+    }
+
+    private void assertProtocolError(CompletableFuture<CiiResponse> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Completed normally");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CiiCommandException);
+        }
+        assertEquals(0, ciiClient.getCommandsInFlight());
+
+        CommandTrace trace = traced.poll(1, TimeUnit.SECONDS);
+        assertTrue(trace != null);
+        assertEquals(CommandTrace.OutcomeProtocolError, trace.getOutcome());
+        assertTrue(trace.getCompletedAt() >= trace.getAnsweredAt());
+    }
+}
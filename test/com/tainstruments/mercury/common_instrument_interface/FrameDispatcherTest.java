@@ -0,0 +1,76 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class FrameDispatcherTest {
+
+    private static final int Substatus = 0x30001;
+
+    private CiiSimulator simulator;
+
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new CiiSimulator(0);
+        simulator.addStatusStream(Substatus, 16, 500);
+        simulator.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+
+    @Test
+    public void closeStopsTheWorkers() throws Exception {
+
+        int before = dispatchThreadCount();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+        configuration.setDispatchThreads(3);
+
+        CiiClient ciiClient = new CiiClient("127.0.0.1", configuration);
+
+        final CountDownLatch received = new CountDownLatch(20);
+        ciiClient.registerStatusHandler(Substatus, new ReceiveStatusHandler() {
+            @Override
+            public void receiveStatus(int substatus, byte[] buffer, int offset, int length) {
+                received.countDown();
+            }
+        });
+
+        assertTrue(ciiClient.connect(ciiClient.AccessLevel_Master));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(before + 3, dispatchThreadCount());
+
+        ciiClient.close();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while ((dispatchThreadCount() > before) && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(before, dispatchThreadCount());
+    }
+
+
+    private static int dispatchThreadCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("Cii-Dispatch-Thread-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
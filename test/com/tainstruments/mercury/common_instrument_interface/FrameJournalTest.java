@@ -0,0 +1,70 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class FrameJournalTest {
+
+    private static final String Prefix = "test";
+    private static final int SegmentSize = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /*
+     *  A STAT with nothing after its header is journaled with no payload,
+     *  it mustn't end the segment.
+     */
+    @Test
+    public void emptyRecordInTheMiddleOfASegment() throws IOException {
+
+        File directory = folder.getRoot();
+        byte[][] payloads = { { 1, 2, 3 }, {}, { 4, 5 }, { 6 } };
+
+        FrameJournal journal = new FrameJournal(directory, Prefix, SegmentSize);
+        for (int i = 0; i < payloads.length; i++) {
+            assertTrue(journal.append(i, 1000 + i, payloads[i], 0, payloads[i].length));
+        }
+        journal.close();
+
+        assertReadsBack(directory, payloads);
+
+        //
+        //  Reopening recovers all of them, and appends after the last.
+        //
+        FrameJournal reopened = new FrameJournal(directory, Prefix, SegmentSize);
+        assertEquals(payloads.length, reopened.getRecordCount());
+        assertTrue(reopened.append(payloads.length, 2000, new byte[] { 7 }, 0, 1));
+        reopened.close();
+
+        byte[][] all = { { 1, 2, 3 }, {}, { 4, 5 }, { 6 }, { 7 } };
+        assertReadsBack(directory, all);
+    }
+
+
+    private static void assertReadsBack(File directory, byte[][] payloads) throws IOException {
+
+        FrameJournalReader reader = new FrameJournalReader(directory, Prefix);
+
+        for (int i = 0; i < payloads.length; i++) {
+            assertTrue("record " + i, reader.next());
+            assertEquals(i, reader.getTag());
+            assertEquals(payloads[i].length, reader.getDataLength());
+            byte[] data = new byte[reader.getDataLength()];
+            System.arraycopy(reader.getData(), 0, data, 0, data.length);
+            assertArrayEquals(payloads[i], data);
+        }
+
+        assertFalse(reader.next());
+        assertEquals(0, reader.getCorruptCount());
+    }
+}
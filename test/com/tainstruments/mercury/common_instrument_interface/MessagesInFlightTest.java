@@ -0,0 +1,204 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessagesInFlightTest {
+
+    private static final int Threads = 8;
+
+
+    /*
+     *  Many senders on a small ring. No sequence number is handed out
+     *  twice while in flight, and every command is answered exactly once.
+     */
+    @Test
+    public void concurrentReserveAddAnswer() throws Exception {
+
+        final MessagesInFlight messagesInFlight = new MessagesInFlight(16);
+        final ConcurrentHashMap<Integer, Boolean> inFlight = new ConcurrentHashMap<>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+        final int perThread = 20000;
+
+        runThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < perThread; i++) {
+
+                    int sequenceNumber = messagesInFlight.getSequenceNumber();
+                    if (sequenceNumber < 0) {
+                        i--;
+                        Thread.yield();
+                        continue;
+                    }
+
+                    if (inFlight.putIfAbsent(sequenceNumber, Boolean.TRUE) != null) {
+                        duplicates.incrementAndGet();
+                    }
+
+                    CountingCompletion completion = new CountingCompletion();
+                    messagesInFlight.add(sequenceNumber, completion, 0);
+
+                    inFlight.remove(sequenceNumber);
+                    MessageTracker tracker = messagesInFlight.claim(sequenceNumber);
+                    if ((tracker != null) && (tracker.getCommandCompletion() == completion)) {
+                        tracker.release();
+                        answered.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertEquals(0, duplicates.get());
+        assertEquals(Threads * perThread, answered.get());
+        assertEquals(0, messagesInFlight.getInFlightCount());
+    }
+
+
+    /*
+     *  The answer and the timer race for each command. Exactly one of them
+     *  wins, never both and never neither.
+     */
+    @Test
+    public void answerAndExpireRace() throws Exception {
+
+        final MessagesInFlight messagesInFlight = new MessagesInFlight(1024);
+        final List<CountingCompletion> completions = new ArrayList<>();
+        final List<Boolean> answeredByUs = new ArrayList<>();
+        final int count = 600;
+
+        for (int i = 0; i < count; i++) {
+            int sequenceNumber = messagesInFlight.getSequenceNumber();
+            CountingCompletion completion = new CountingCompletion();
+            completion.saveSequenceNumber(sequenceNumber);
+            messagesInFlight.add(sequenceNumber, completion, 1);
+            completions.add(completion);
+        }
+
+        //
+        //  Answer them while the wheel is expiring them.
+        //
+        for (CountingCompletion completion : completions) {
+            MessageTracker tracker = messagesInFlight.claim(completion.sequenceNumber);
+            if (tracker != null) {
+                tracker.release();
+            }
+            answeredByUs.add(tracker != null);
+            Thread.sleep(0, 200000);
+        }
+
+        Thread.sleep(300);
+
+        for (int i = 0; i < count; i++) {
+            int timeouts = completions.get(i).timeouts.get();
+            assertEquals("command " + i, answeredByUs.get(i) ? 0 : 1, timeouts);
+        }
+        assertEquals(0, messagesInFlight.getInFlightCount());
+    }
+
+
+    /*
+     *  Slots get answered and reused as fast as they can be. The last
+     *  command on each thread is left unanswered and has to time out, a
+     *  stale schedule from an earlier command mustn't lose its deadline.
+     */
+    @Test
+    public void reusedSlotsStillTimeOut() throws Exception {
+
+        final MessagesInFlight messagesInFlight = new MessagesInFlight(Threads);
+        final List<CountingCompletion> last = new ArrayList<>();
+        final AtomicInteger earlyTimeouts = new AtomicInteger();
+
+        runThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5000; i++) {
+
+                    int sequenceNumber = messagesInFlight.getSequenceNumber();
+                    if (sequenceNumber < 0) {
+                        i--;
+                        Thread.yield();
+                        continue;
+                    }
+
+                    CountingCompletion completion = new CountingCompletion();
+                    messagesInFlight.add(sequenceNumber, completion, 100);
+
+                    if (i == 4999) {
+                        synchronized (last) {
+                            last.add(completion);
+                        }
+                        return;
+                    }
+
+                    MessageTracker tracker = messagesInFlight.claim(sequenceNumber);
+                    if (tracker != null) {
+                        tracker.release();
+                    }
+                    else {
+                        earlyTimeouts.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        for (CountingCompletion completion : last) {
+            assertTrue(completion.timedOut.await(2, TimeUnit.SECONDS));
+        }
+        assertEquals(0, earlyTimeouts.get());
+        assertEquals(0, messagesInFlight.getInFlightCount());
+    }
+
+
+    private static void runThreads(Runnable body) throws InterruptedException {
+
+        Thread[] threads = new Thread[Threads];
+        for (int i = 0; i < Threads; i++) {
+            threads[i] = new Thread(body, "MessagesInFlightTest-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+
+    private static class CountingCompletion implements CommandCompletion {
+
+        final AtomicInteger timeouts = new AtomicInteger();
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        volatile int sequenceNumber;
+
+        @Override
+        public void receiveAck() {
+        }
+
+        @Override
+        public void receiveNak(int errorCode) {
+        }
+
+        @Override
+        public void receiveResponse(int subcommand, int statusCode, byte[] data, int startingOffset, int dataLength) {
+        }
+
+        @Override
+        public void saveSequenceNumber(int sequenceNumber) {
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public void receiveTimeout() {
+            timeouts.incrementAndGet();
+            timedOut.countDown();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SelectorTransportTest {
+
+    private static final int Accept = 0x54504341;       /* "ACPT" */
+    private static final int Status = 0x54415453;       /* "STAT" */
+    private static final int Substatus = 0x20002;
+
+    private ServerSocket serverSocket;
+    private BlockingQueue<Socket> accepted;
+    private CiiEventLoopGroup eventLoopGroup;
+    private CiiClient ciiClient;
+
+
+    @Before
+    public void setUp() throws IOException {
+
+        serverSocket = new ServerSocket(0);
+        accepted = new LinkedBlockingQueue<>();
+
+        //
+        //  A peer that accepts every login, the first and the reconnect.
+        //
+        Thread peer = new Thread("SelectorTransportTest-Peer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        readFrame(socket);
+                        writeFrame(socket, Accept, 3);
+                        accepted.add(socket);
+                    }
+                } catch (IOException ex) {
+                    //
+                    //  Closed by tearDown().
+                    //
+                }
+            }
+        };
+        peer.setDaemon(true);
+        peer.start();
+
+        eventLoopGroup = new CiiEventLoopGroup(1);
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        if (ciiClient != null) {
+            ciiClient.disconnect();
+        }
+        eventLoopGroup.close();
+        serverSocket.close();
+    }
+
+
+    /*
+     *  The peer resets while the event loop is busy, so the send is the
+     *  first to hit the dead socket. Closing it cancels the key and the
+     *  loop never gets to see a read fail, the send has to report the drop.
+     */
+    @Test
+    public void failedSendReportsTheDisconnectAndReconnects() throws Exception {
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(serverSocket.getLocalPort());
+        configuration.setEventLoopGroup(eventLoopGroup);
+        configuration.setReconnectBackoff(BackoffPolicy.fixed(50));
+
+        ciiClient = new CiiClient("127.0.0.1", configuration);
+
+        final CountDownLatch inHandler = new CountDownLatch(1);
+        final CountDownLatch releaseHandler = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+
+        ciiClient.registerStatusHandler(Substatus, new ReceiveStatusHandler() {
+            @Override
+            public void receiveStatus(int substatus, byte[] buffer, int offset, int length) {
+                inHandler.countDown();
+                try {
+                    releaseHandler.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertTrue(ciiClient.connect(ciiClient.AccessLevel_LocalUI));
+        Socket first = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+
+        ciiClient.registerDisconnectHandler(new DisconnectHandler() {
+            @Override
+            public void disconnected() {
+                disconnected.countDown();
+            }
+        });
+        ciiClient.registerConnectHandler(new ConnectHandler() {
+            @Override
+            public void connected() {
+                reconnected.countDown();
+            }
+        });
+
+        //
+        //  Park the loop in the handler, then reset the connection.
+        //
+        writeFrame(first, Status, Substatus, 0);
+        assertTrue(inHandler.await(5, TimeUnit.SECONDS));
+
+        first.setSoLinger(true, 0);
+        first.close();
+        Thread.sleep(100);
+
+        boolean sendFailed = false;
+        for (int i = 0; (i < 100) && !sendFailed; i++) {
+            sendFailed = !ciiClient.sendGet(1, null, new IgnoredCompletion());
+            Thread.sleep(10);
+        }
+        assertTrue(sendFailed);
+
+        releaseHandler.countDown();
+
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(ciiClient.isConnected());
+        assertFalse(accepted.isEmpty());
+    }
+
+
+    private static void readFrame(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] header = new byte[8];
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        in.readFully(new byte[length + 4]);
+    }
+
+
+    private static void writeFrame(Socket socket, int... words) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(12 + 4 * words.length).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put("SYNC".getBytes("US-ASCII"));
+        frame.putInt(4 * words.length);
+        for (int word : words) {
+            frame.putInt(word);
+        }
+        frame.put("END ".getBytes("US-ASCII"));
+        OutputStream out = socket.getOutputStream();
+        out.write(frame.array());
+        out.flush();
+    }
+
+
+    private static class IgnoredCompletion implements CommandCompletion {
+
+        @Override
+        public void receiveAck() {
+        }
+
+        @Override
+        public void receiveNak(int errorCode) {
+        }
+
+        @Override
+        public void receiveResponse(int subcommand, int errorCode, byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void saveSequenceNumber(int sequenceNumber) {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.tainstruments.mercury.common_instrument_interface;
+
+import com.tainstruments.mercury.cii_simulator.CiiSimulator;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class WireReplayerTest {
+
+    private static final String Prefix = "capture";
+    private static final int Status = 0x54415453;       /* "STAT" */
+    private static final int Accept = 0x54504341;       /* "ACPT" */
+    private static final int Ack = 0x204B4341;          /* "ACK " */
+    private static final int Substatus = 0x20002;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void replaysStatusIntoAClientThatIsNotConnected() throws Exception {
+
+        File directory = folder.getRoot();
+
+        FrameJournal journal = new FrameJournal(directory, Prefix, 64 * 1024);
+        long timestamp = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            byte[] payload = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(Status).putInt(Substatus).putInt(i).array();
+            assertTrue(journal.append(WireReplayer.TagReceived, timestamp + i, payload, 0, payload.length));
+        }
+        journal.close();
+
+        CiiClient ciiClient = new CiiClient("127.0.0.1", new CiiClientConfiguration());
+        assertFalse(ciiClient.isConnected());
+
+        final List<Integer> received = new ArrayList<>();
+
+        ciiClient.registerStatusHandler(Substatus, new ReceiveStatusHandler() {
+            @Override
+            public void receiveStatus(int substatus, byte[] buffer, int offset, int length) {
+                received.add(ByteBuffer.wrap(buffer, offset, length).order(ByteOrder.LITTLE_ENDIAN).getInt());
+            }
+        });
+
+        WireReplayer replayer = new WireReplayer(ciiClient, directory, Prefix);
+
+        assertEquals(3, replayer.replay(WireReplayer.AsFastAsPossible));
+        assertEquals(3, received.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, (int)received.get(i));
+        }
+    }
+
+
+    /*
+     *  Only the STATs are replayed. The ACPT and the ACK from the captured
+     *  session mustn't touch the client's access level or what it has in
+     *  flight.
+     */
+    @Test
+    public void skipsEverythingButStatus() throws Exception {
+
+        File directory = folder.getRoot();
+
+        CiiClient ciiClient = new CiiClient("127.0.0.1", new CiiClientConfiguration());
+        MessagesInFlight messagesInFlight = ciiClient.getMessagesInFlight();
+        int sequenceNumber = messagesInFlight.getSequenceNumber();
+        messagesInFlight.add(sequenceNumber, new FutureCommandCompletion(7, null));
+
+        FrameJournal journal = new FrameJournal(directory, Prefix, 64 * 1024);
+        append(journal, Accept, ciiClient.AccessLevel_Master);
+        append(journal, Ack, sequenceNumber);
+        append(journal, Status, Substatus, 0);
+        journal.close();
+
+        final List<Integer> received = new ArrayList<>();
+
+        ciiClient.registerStatusHandler(Substatus, new ReceiveStatusHandler() {
+            @Override
+            public void receiveStatus(int substatus, byte[] buffer, int offset, int length) {
+                received.add(substatus);
+            }
+        });
+
+        int access = ciiClient.getGrantedAccess();
+
+        assertEquals(3, new WireReplayer(ciiClient, directory, Prefix).replay(WireReplayer.AsFastAsPossible));
+        assertEquals(1, received.size());
+        assertEquals(access, ciiClient.getGrantedAccess());
+        assertEquals(1, ciiClient.getCommandsInFlight());
+    }
+
+
+    @Test
+    public void refusesAConnectedClient() throws Exception {
+
+        File directory = folder.getRoot();
+
+        FrameJournal journal = new FrameJournal(directory, Prefix, 64 * 1024);
+        append(journal, Status, Substatus, 0);
+        journal.close();
+
+        CiiSimulator simulator = new CiiSimulator(0);
+        simulator.start();
+
+        CiiClientConfiguration configuration = new CiiClientConfiguration();
+        configuration.setPort(simulator.getPort());
+        CiiClient ciiClient = new CiiClient("127.0.0.1", configuration);
+
+        try {
+            assertTrue(ciiClient.connect(ciiClient.AccessLevel_Master));
+            new WireReplayer(ciiClient, directory, Prefix).replay(WireReplayer.AsFastAsPossible);
+            fail("Replayed into a connected client");
+        } catch (IllegalStateException ex) {
+            assertTrue(ciiClient.isConnected());
+        } finally {
+            ciiClient.close();
+            simulator.stop();
+        }
+    }
+
+
+    private static void append(FrameJournal journal, int... words) {
+        ByteBuffer bb = ByteBuffer.allocate(4 * words.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int word : words) {
+            bb.putInt(word);
+        }
+        assertTrue(journal.append(WireReplayer.TagReceived, System.nanoTime(), bb.array(), 0, bb.capacity()));
+    }
+}
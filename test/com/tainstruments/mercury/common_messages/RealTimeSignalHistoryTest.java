@@ -0,0 +1,86 @@
+package com.tainstruments.mercury.common_messages;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+public class RealTimeSignalHistoryTest {
+
+    private static final int Signals = 4;
+
+
+    /*
+     *  The writer laps a small history as fast as it can. Sample n has
+     *  timestamp n and every signal n, so whatever a reader gets back has
+     *  to line up with its sequence.
+     */
+    @Test
+    public void readersNeverSeeTornSamples() throws Exception {
+
+        final RealTimeSignalHistory history = new RealTimeSignalHistory(64, Signals);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger torn = new AtomicInteger();
+
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            final boolean byTime = (r == 0);
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        RealTimeSignalHistory.Samples samples;
+                        if (byTime) {
+                            long newest = history.getWriteSequence();
+                            samples = history.readRange(newest - 48, newest);
+                        }
+                        else {
+                            samples = history.readLatest(64);
+                        }
+                        if (!consistent(samples)) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                }
+            }, "RealTimeSignalHistoryTest-" + r);
+            readers[r].start();
+        }
+
+        byte[] buffer = new byte[4 * Signals];
+        for (long sequence = 0; sequence < 2000000; sequence++) {
+            int bits = Float.floatToIntBits(sequence);
+            for (int signal = 0; signal < Signals; signal++) {
+                buffer[4 * signal] = (byte)bits;
+                buffer[4 * signal + 1] = (byte)(bits >> 8);
+                buffer[4 * signal + 2] = (byte)(bits >> 16);
+                buffer[4 * signal + 3] = (byte)(bits >> 24);
+            }
+            history.append(sequence, buffer, 0, Signals);
+        }
+
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, torn.get());
+    }
+
+
+    private static boolean consistent(RealTimeSignalHistory.Samples samples) {
+
+        for (int i = 0; i < samples.size(); i++) {
+            long sequence = samples.firstSequence + i;
+            if (samples.timestamps[i] != sequence) {
+                return false;
+            }
+            for (float[] column : samples.values) {
+                if (column[i] != (float)sequence) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package com.tainstruments.mercury.common_messages;
+
+import com.tainstruments.mercury.common_instrument_interface.CiiClient;
+import com.tainstruments.mercury.common_instrument_interface.CiiClientConfiguration;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+public class RealTimeSignalsTest {
+
+    /*
+     *  The conflation thread only runs while something is subscribed.
+     */
+    @Test
+    public void conflationThreadExitsWithTheLastSubscription() throws Exception {
+
+        int before = conflationThreadCount();
+
+        RealTimeSignals signals = new RealTimeSignals(
+                new CiiClient("127.0.0.1", new CiiClientConfiguration()));
+
+        Observer observer = new Observer() {
+            @Override
+            public void update(Observable o, Object arg) {
+            }
+        };
+
+        RealTimeSignalSubscription first = signals.subscribe(observer, 10);
+        RealTimeSignalSubscription second = signals.subscribe(observer, 10);
+        assertEquals(before + 1, conflationThreadCount());
+
+        first.close();
+        Thread.sleep(50);
+        assertEquals(before + 1, conflationThreadCount());
+
+        second.close();
+        assertEquals(before, waitForConflationThreads(before));
+
+        signals.subscribe(observer, 10).close();
+        assertEquals(before, waitForConflationThreads(before));
+    }
+
+
+    private static int waitForConflationThreads(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while ((conflationThreadCount() != count) && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        return conflationThreadCount();
+    }
+
+    private static int conflationThreadCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals("Cii-Conflation-Thread")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}